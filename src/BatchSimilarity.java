@@ -0,0 +1,224 @@
+
+/**
+ * The BatchSimilarity class ranks many query images at once, e.g. to find the
+ * similar images of every image for clustering or duplicate detection.
+ *
+ * The distances are calculated in tiles of 64 query images by 1024 images, so
+ * the rows of a tile stay in the CPU cache while every query of the tile is
+ * compared with them. Within a tile every row is compared with 4 queries at a
+ * time by DistanceKernel.distances. Tiles of queries are ranked by the threads of a
+ * ForkJoinPool and the top k images of every query are written to the output
+ * file in query order, one line per query
+ * queryNo,imageNo:distance,imageNo:distance,...
+ * The rankings are the same as the ones of CalculateUtil, equal distances are
+ * ranked by image number.
+ *
+ * It can be run from the pwd that holds the feature files with
+ * java BatchSimilarity intensity|colorcode|combined k outputFile [queryNo ...]
+ * where all images are queried if no queryNo is given.
+ */
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+public class BatchSimilarity {
+
+    private static final int QUERY_TILE = 64;
+    private static final int IMAGE_TILE = 1024;
+    // number of queries whose distances are calculated together
+    private static final int GROUP = 4;
+    private static final int THREADS = Math.max(1,
+            Integer.getInteger("cbir.queryThreads", Runtime.getRuntime().availableProcessors()));
+    private static final DistanceKernel KERNEL = DistanceKernel.load();
+
+    private final DoubleMatrix matrix;
+    private final double[] weight;
+    private final int k;
+
+    /**
+     * constructor
+     *
+     * pre: matrix holds a feature vector per image from row 1, weight is null
+     * for the Manhattan distance, k is the number of images to keep per query
+     *
+     * post: instantiates BatchSimilarity
+     */
+    BatchSimilarity(DoubleMatrix matrix, double[] weight, int k) {
+        this.matrix = matrix;
+        this.weight = weight;
+        this.k = Math.max(0, Math.min(k, matrix.rows() - 1));
+    }
+
+    /**
+     * The TileTask ranks one tile of query images against all images
+     */
+    private final class TileTask extends RecursiveTask<TopK[]> {
+        private final int[] queries;
+        private final int from;
+        private final int to;
+
+        TileTask(int[] queries, int from, int to) {
+            this.queries = queries;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected TopK[] compute() {
+            double[] values = matrix.data();
+            int cols = matrix.cols();
+            int rows = matrix.rows();
+            TopK[] closest = new TopK[to - from];
+            for (int q = 0; q < closest.length; q++) {
+                closest[q] = new TopK(k);
+            }
+            int[] group = new int[GROUP];
+            int[] single = new int[1];
+            double[] distances = new double[GROUP];
+            for (int tileStart = 1; tileStart < rows; tileStart += IMAGE_TILE) {
+                int tileEnd = Math.min(rows, tileStart + IMAGE_TILE);
+                for (int q = 0; q < closest.length; q += GROUP) {
+                    // the last queries of a tile may not fill a group
+                    int[] offsets = (q + GROUP <= closest.length) ? group : single;
+                    int groupSize = (offsets == group) ? GROUP : closest.length - q;
+                    for (int g = 0; g < groupSize; g += offsets.length) {
+                        for (int o = 0; o < offsets.length; o++) {
+                            offsets[o] = queries[from + q + g + o] * cols;
+                        }
+                        for (int i = tileStart, row = tileStart * cols; i < tileEnd; i++, row += cols) {
+                            KERNEL.distances(values, weight, offsets, row, cols, distances);
+                            for (int o = 0; o < offsets.length; o++) {
+                                closest[q + g + o].offer(i, distances[o]);
+                            }
+                        }
+                    }
+                }
+            }
+            return closest;
+        }
+    }
+
+    /**
+     * run method ranks the query images and writes the top k images of each
+     *
+     * pre: queries holds image numbers between 1 and matrix.rows() - 1
+     *
+     * post: output has one line per query in the order of queries, returns the
+     * number of queries written
+     */
+    public int run(int[] queries, Writer output) throws IOException {
+        int tiles = (queries.length + QUERY_TILE - 1) / QUERY_TILE;
+        // at most 2 tiles per thread are ranked ahead of the writer
+        int window = 2 * THREADS;
+        ForkJoinPool pool = new ForkJoinPool(THREADS);
+        try {
+            TileTask[] tasks = new TileTask[tiles];
+            int[] order = new int[k];
+            StringBuilder line = new StringBuilder();
+            for (int t = 0; t < tiles; t++) {
+                for (int ahead = t; ahead < Math.min(tiles, t + window); ahead++) {
+                    if (tasks[ahead] == null) {
+                        int from = ahead * QUERY_TILE;
+                        tasks[ahead] = new TileTask(queries, from, Math.min(queries.length, from + QUERY_TILE));
+                        pool.execute(tasks[ahead]);
+                    }
+                }
+                TopK[] closest = tasks[t].join();
+                tasks[t] = null;
+                for (int q = 0; q < closest.length; q++) {
+                    int count = closest[q].drainTo(order, 0);
+                    line.setLength(0);
+                    line.append(queries[t * QUERY_TILE + q]);
+                    for (int rank = 0; rank < count; rank++) {
+                        line.append(',').append(order[rank]).append(':').append(closest[q].distanceAt(rank));
+                    }
+                    line.append('\n');
+                    output.append(line);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return queries.length;
+    }
+
+    /**
+     * main method ranks the images of the feature files in the pwd
+     *
+     * pre: args are intensity|colorcode|combined, k, output file and optionally
+     * the query image numbers
+     *
+     * post: the output file is written
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.out.println("usage: java BatchSimilarity intensity|colorcode|combined k outputFile [queryNo ...]");
+            return;
+        }
+        IntMatrix intensityMatrix = FeatureStore.load("Intensity", 26, false);
+        IntMatrix colorCodeMatrix = FeatureStore.load("ColorCode", 65, false);
+        IntMatrix imageSizeMatrix = FeatureStore.load("ImageSize", 3, false);
+        if (intensityMatrix == null || colorCodeMatrix == null || imageSizeMatrix == null) {
+            System.out.println("The feature files are missing, start the application to extract them");
+            return;
+        }
+        int imageCount = Math.min(intensityMatrix.rows(), Math.min(colorCodeMatrix.rows(), imageSizeMatrix.rows())) - 1;
+        intensityMatrix.setRows(imageCount + 1);
+        colorCodeMatrix.setRows(imageCount + 1);
+        int[] imageSize = new int[imageCount + 1];
+        for (int i = 1; i <= imageCount; i++) {
+            imageSize[i] = imageSizeMatrix.get(i, 1) * imageSizeMatrix.get(i, 2);
+        }
+
+        CalculateUtil calculate = new CalculateUtil();
+        DoubleMatrix matrix;
+        double[] weight = null;
+        if ("combined".equals(args[0])) {
+            matrix = new DoubleMatrix(imageCount + 1, intensityMatrix.cols() + colorCodeMatrix.cols() - 1);
+            calculate.calculateGaussianNormalization(matrix, intensityMatrix, colorCodeMatrix, imageSize);
+            weight = new double[matrix.cols()];
+            calculate.calculateWeight(weight, new HashSet<Integer>(), matrix, 1);
+        } else if ("intensity".equals(args[0]) || "colorcode".equals(args[0])) {
+            IntMatrix histogram = "intensity".equals(args[0]) ? intensityMatrix : colorCodeMatrix;
+            matrix = new DoubleMatrix(histogram.cols());
+            calculate.calculateAreaNormalization(matrix, histogram, imageSize);
+        } else {
+            System.out.println("Unknown feature " + args[0]);
+            return;
+        }
+
+        int[] queries;
+        if (args.length > 3) {
+            queries = new int[args.length - 3];
+            for (int i = 0; i < queries.length; i++) {
+                queries[i] = Integer.parseInt(args[i + 3]);
+                if (queries[i] < 1 || queries[i] > imageCount) {
+                    System.out.println("There is no image " + queries[i]);
+                    return;
+                }
+            }
+        } else {
+            queries = new int[imageCount];
+            for (int i = 0; i < imageCount; i++) {
+                queries[i] = i + 1;
+            }
+        }
+
+        long start = System.nanoTime();
+        Path outputFile = Paths.get(args[2]);
+        try (BufferedWriter writer = Files.newBufferedWriter(outputFile, StandardCharsets.UTF_8)) {
+            new BatchSimilarity(matrix, weight, Integer.parseInt(args[1])).run(queries, writer);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Ranked %d queries against %d images in %.2f s (%.1f queries/sec)",
+                queries.length, imageCount, seconds, queries.length / seconds));
+    }
+}
@@ -1,63 +1,170 @@
-
 /**
  * The CalculateUtil class contains all the methods that calculate certain values. 
- * It is responsible for instantiating the priority queue sortedDistance.
+ * It is responsible for ranking the images with the bounded heap topK.
+ * 
+ * Rankings of more than -Dcbir.parallelThreshold images (50000 by default) are
+ * split into partitions that are scanned by the threads of a ForkJoinPool,
+ * -Dcbir.queryThreads of them. Every partition keeps its own TopK and the
+ * partitions are merged in order. TopK orders equal distances by image number,
+ * so the result is the same as the one of a sequential scan. Rankings of
+ * almost all images are scanned sequentially, because merging the partitions
+ * would cost as much as the scan.
+ * 
+ * With -Dcbir.pruning=true the weighted rankings abandon an image as soon as
+ * its partial distance is larger than the distance of the k-th closest image
+ * so far. The features are added up in descending order of weight, so the
+ * features that decide most are checked first. An image that is not abandoned
+ * gets its full distance from the KERNEL, so the ranking is the same as
+ * without pruning. pruningReport returns the features checked per image.
+ * 
+ * calculateQuantizedDistance ranks the images on the codes of a
+ * QuantizedMatrix and ranks the -Dcbir.rescore (400) closest of them again
+ * with the exact distance.
+ * 
+ * A scan tells its Progress how many images are done every PROGRESS_ROWS
+ * images or partition, and stops with a CancellationException when the
+ * Progress is cancelled, so a query that is no longer wanted does not run to
+ * the end.
  * 
  * @author Divya Kamath
  */
 
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
-/**
- * The DistanceValue Class object is designed to hold two values
- * (a) index of an image
- * (b) Manhattan distance of the image with the selected image
- * 
- */
-class DistanceValue {
+public class CalculateUtil {
 
-    private final int imageIndex;
-    private final double distance;
+    // kernel calculates the distances of the sorts, see DistanceKernel.load
+    private static final DistanceKernel KERNEL = DistanceKernel.load();
+
+    private static final int QUERY_THREADS = Math.max(1,
+            Integer.getInteger("cbir.queryThreads", Runtime.getRuntime().availableProcessors()));
+    private static final int PARALLEL_THRESHOLD = Integer.getInteger("cbir.parallelThreshold", 50000);
+    // smallest partition that is scanned by one task
+    private static final int MIN_PARTITION = 4096;
+    private static final ForkJoinPool QUERY_POOL = (QUERY_THREADS > 1) ? new ForkJoinPool(QUERY_THREADS) : null;
+    private static final boolean PRUNING = Boolean.getBoolean("cbir.pruning");
+    // the partial distances are added in another order than the full ones, an
+    // image is only abandoned if it is farther than this relative rounding slack
+    private static final double PRUNING_SLACK = 1e-12;
+    // images of a quantized ranking that are ranked again with the exact distance
+    private static final int RESCORE = Math.max(1, Integer.getInteger("cbir.rescore", 400));
+    // images a sequential scan ranks between two calls of its Progress
+    private static final int PROGRESS_ROWS = 16384;
 
-    DistanceValue(double distance, int index) {
-        this.distance = distance;
-        this.imageIndex = index;
-    }
+    /**
+     * The Progress is told how many of the images of a scan are done and can
+     * cancel the scan. It is called by the thread that ranks.
+     */
+    interface Progress {
+        void scanned(int images, int total);
 
-    public double getDistance() {
-        return distance;
+        boolean isCancelled();
     }
 
-    public int getImageIndex() {
-        return imageIndex;
+    /**
+     * The RowScan offers the images from to to of a ranking to closest, pruned
+     * counts the features added up and the images abandoned by pruned scans
+     */
+    private interface RowScan {
+        void scan(int from, int to, TopK closest, long[] pruned);
     }
-}
 
-/**
- * constructor
- * 
- * pre: none
- * 
- * post: instantiates sortedDistance
- * 
- * 
- */
+    /**
+     * The ScanTask scans the rows from to to of a ranking into its own TopK
+     */
+    private static final class ScanTask extends RecursiveTask<TopK> {
+        private final RowScan rowScan;
+        private final int from;
+        private final int to;
+        private final int k;
+        private final long[] pruned = new long[2];
+
+        ScanTask(RowScan rowScan, int from, int to, int k) {
+            this.rowScan = rowScan;
+            this.from = from;
+            this.to = to;
+            this.k = k;
+        }
 
-public class CalculateUtil {
+        @Override
+        protected TopK compute() {
+            TopK closest = new TopK(k);
+            rowScan.scan(from, to, closest, pruned);
+            return closest;
+        }
+    }
+
+    // topK keeps the closest images of a ranking, it is reused by every query,
+    // so a CalculateUtil ranks for one thread at a time, see RetrievalSession
+    private TopK topK = new TopK(0);
+    private Progress progress = null;
 
-    PriorityQueue<DistanceValue> sortedDistance;
+    // statistics of the pruned rankings
+    private long prunedImages = 0;
+    private long abandonedImages = 0;
+    private long checkedFeatures = 0;
+    private long featureCount = 0;
 
+    /**
+     * constructor
+     * 
+     * pre: none
+     * 
+     * post: instantiates CalculateUtil
+     * 
+     */
     CalculateUtil() {
-        sortedDistance = new PriorityQueue<DistanceValue>(100,
-                new Comparator<DistanceValue>() {
-                    @Override
-                    public int compare(DistanceValue o1, DistanceValue o2) {
-                        return Double.compare(o1.getDistance(), o2.getDistance());
-                    }
-                });
+    }
+
+    /**
+     * setProgress method sets the Progress of the scans that follow
+     * 
+     * pre: none
+     * 
+     * post: the scans report to progress, or to nothing if it is null
+     */
+    public void setProgress(Progress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * calculateAreaNormalization method divides the histogram values of every
+     * image by its size, so the Manhattan distance sorts do not have to divide
+     * for every query
+     * 
+     * pre: colrCodeMatrix or intensityMatrix is populated with values
+     * 
+     * post: normalizedMatrix has the rows and columns of matrix and holds the
+     * histogram values divided by the image size
+     * 
+     */
+    public void calculateAreaNormalization(DoubleMatrix normalizedMatrix, IntMatrix matrix, int[] imageSize) {
+        normalizedMatrix.setRows(matrix.rows());
+        for (int i = 1; i < matrix.rows(); i++) {
+            double sizeOfImage = imageSize[i];
+            for (int j = 1; j < matrix.cols(); j++) {
+                normalizedMatrix.set(i, j, matrix.get(i, j) / sizeOfImage);
+            }
+        }
+    }
+
+    /**
+     * calculateManhattanDistance method ranks every image by its manhattan
+     * distance to the selected image
+     * 
+     * pre: normalizedMatrix is populated by calculateAreaNormalization
+     * 
+     * post: buttonOrder holds all image numbers in ascending order of distance
+     * 
+     */
+
+    public void calculateManhattanDistance(DoubleMatrix normalizedMatrix, int picNo, int[] buttonOrder) {
+        calculateManhattanDistance(normalizedMatrix, picNo, buttonOrder, buttonOrder.length - 1);
     }
 
     /**
@@ -65,34 +172,17 @@ public class CalculateUtil {
      * the
      * selected image and every other image based on the matrix passed
      * 
-     * pre: colrCodeMatrix and/or intensityMatrix is populated with values
+     * pre: normalizedMatrix is populated by calculateAreaNormalization, k is the
+     * number of images to rank
      * 
-     * post: Following changes are made after calculating manhattan distance
-     * (a) Arranges the image index in ascending values of the manhattan distance in
-     * buttonOrder
-     * (b) calls ImageOrder method to diplay the image on rightPanel in the defined
-     * order
+     * post: Arranges the k closest image numbers in ascending values of the
+     * manhattan distance in buttonOrder from element 1, returns the number of
+     * images ranked
      * 
      */
 
-    public void calculateManhattanDistance(int[][] matrix, int[] imageSize, int picNo, int[] buttonOrder) {
-        // sortedDistance stores the DistanceValue object of each image
-
-        double sizeOfSelectedImage = imageSize[picNo];
-        double sizeOfImage;
-
-        for (int i = 1; i < matrix.length; i++) {
-            double distance = 0.0;
-            sizeOfImage = imageSize[i];
-            for (int j = 1; j < matrix[i].length; j++) {
-                double value = (matrix[picNo][j] / sizeOfSelectedImage) - (matrix[i][j] / sizeOfImage);
-                distance += Math.abs(value);
-            }
-            sortedDistance.add(new DistanceValue(distance, i));
-        }
-        for (int i = 1; i < buttonOrder.length; i++) {
-            buttonOrder[i] = sortedDistance.poll().getImageIndex();
-        }
+    public int calculateManhattanDistance(DoubleMatrix normalizedMatrix, int picNo, int[] buttonOrder, int k) {
+        return rank(normalizedMatrix, null, picNo, buttonOrder, k);
     }
 
     /**
@@ -106,36 +196,32 @@ public class CalculateUtil {
      * (1) dividing each feature by the image size
      * (2) calculating the average and standard deviation of each feature
      * (3) by using gaussian normalisation formula on each feature
+     * returns the FeatureNormalization that keeps it up to date when images are
+     * added or removed
      * 
      */
-    public void calculateGaussianNormalization(double[][] normalizedFeatureMartix, int[][] intensityMatrix,
-            int[][] colorCodeMatrix, int[] imageSize) {
-
-        int colorIndex = 1;
-        int intensityIndex = 1;
-        double[][] featureMatrix = new double[normalizedFeatureMartix.length][normalizedFeatureMartix[0].length];
-        double[][] avgSdMatrix = new double[featureMatrix[0].length][2];
-
-        for (int i = 1; i < featureMatrix.length; i++) {
-            for (int j = 1; j < featureMatrix[i].length; j++) {
-                if (j < intensityMatrix[i].length) {
-                    featureMatrix[i][j] = (intensityMatrix[i][intensityIndex++] / ((double) imageSize[i]));
-                } else {
-                    featureMatrix[i][j] = (colorCodeMatrix[i][colorIndex++] / ((double) imageSize[i]));
-                }
-            }
-            colorIndex = 1;
-            intensityIndex = 1;
-        }
-
-        calculateStandardDeviation(featureMatrix, avgSdMatrix);
+    public FeatureNormalization calculateGaussianNormalization(DoubleMatrix normalizedFeatureMartix,
+            IntMatrix intensityMatrix, IntMatrix colorCodeMatrix, int[] imageSize) {
+        return calculateGaussianNormalization(normalizedFeatureMartix, intensityMatrix, colorCodeMatrix, imageSize,
+                null);
+    }
 
-        for (int i = 1; i < normalizedFeatureMartix.length; i++) {
-            for (int j = 1; j < normalizedFeatureMartix[i].length; j++) {
-                double value = (featureMatrix[i][j] - avgSdMatrix[j][0]) / avgSdMatrix[j][1];
-                normalizedFeatureMartix[i][j] = (Double.isNaN(value)) ? 0 : value;
-            }
-        }
+    /**
+     * calculateGaussianNormalization method normalises the feature of all the
+     * images with the average and standard deviation of stats
+     * 
+     * pre: colrCodeMatrix and intensityMatrix is populated with values, stats is
+     * null or holds the statistics of their features, e.g. the ones kept by
+     * ReadImage
+     * 
+     * post: normalizedFeatureMartix is populated with normalised values, the
+     * statistics are only calculated from every image if stats is null,
+     * returns the FeatureNormalization that keeps it up to date
+     */
+    public FeatureNormalization calculateGaussianNormalization(DoubleMatrix normalizedFeatureMartix,
+            IntMatrix intensityMatrix, IntMatrix colorCodeMatrix, int[] imageSize, RunningStats stats) {
+        return new FeatureNormalization(normalizedFeatureMartix, intensityMatrix, colorCodeMatrix, imageSize,
+                stats);
     }
 
     /**
@@ -145,47 +231,11 @@ public class CalculateUtil {
      * pre: featureMatrix is populated with values
      * 
      * post: avgSdMatrix is populated with average and standard deviation of each
-     * feature in featureMatrix
+     * feature in featureMatrix, see RunningStats.averageSd for the corner case
+     * of a standard deviation of 0
      */
-    private void calculateStandardDeviation(double[][] featureMatrix, double[][] avgSdMatrix) {
-        // Calculate the average of each feature
-        for (int i = 1; i < featureMatrix[0].length; i++) {
-            for (int j = 1; j < featureMatrix.length; j++) {
-                avgSdMatrix[i][0] += featureMatrix[j][i];
-            }
-            avgSdMatrix[i][0] /= (double) (featureMatrix.length - 1);
-
-        }
-
-        // Corner case if SD = 0
-        double minStandardDeviation = Double.MAX_VALUE;
-        Set<Integer> zeroSD = new HashSet<>();
-
-        for (int i = 1; i < featureMatrix[0].length; i++) {
-            // Calculate Standard Deviation
-            for (int j = 1; j < featureMatrix.length; j++) {
-                avgSdMatrix[i][1] += Math.pow(featureMatrix[j][i] - avgSdMatrix[i][0], 2);
-            }
-            avgSdMatrix[i][1] /= (double) (featureMatrix.length - 2);
-            avgSdMatrix[i][1] = Math.sqrt(avgSdMatrix[i][1]);
-
-            // Catch corner case
-            if (avgSdMatrix[i][1] != 0 && avgSdMatrix[i][1] < minStandardDeviation) {
-                minStandardDeviation = avgSdMatrix[i][1];
-            }
-            if (avgSdMatrix[i][1] == 0) {
-                zeroSD.add(i);
-            }
-
-        }
-
-        // Fix corner case
-        for (Integer i : zeroSD) {
-            if (avgSdMatrix[i][0] != 0) {
-                avgSdMatrix[i][1] = 0.5 * minStandardDeviation;
-            }
-        }
-
+    private void calculateStandardDeviation(DoubleMatrix featureMatrix, double[][] avgSdMatrix) {
+        RunningStats.of(featureMatrix).averageSd(avgSdMatrix);
     }
 
     /**
@@ -193,35 +243,37 @@ public class CalculateUtil {
      * 
      * pre: normalisedFeatureMatrix, relevanceSet and picNo is populated with values
      * 
-     * post: calculates weight based on images in relevance set and populates weight
-     * array
+     * post: calculates weight based on images in relevance set and the query
+     * image and populates weight array, relevanceSet is not changed
      * it follows the following steps:
      * (1) selects all the feature of images that are present in relevance set - if
      * set is empty it sets the uniform weight of 1/ number of features
      * (2) calculates new average and standard deviation from the selected rows
      * (3) normalises the weight.
      */
-    public void calculateWeight(double[] weight, Set<Integer> relevanceSet, double[][] normalizedFeatureMartix,
+    public void calculateWeight(double[] weight, Set<Integer> relevanceSet, DoubleMatrix normalizedFeatureMartix,
             int picNo) {
         // First weight
         if (relevanceSet.isEmpty()) {
             for (int i = 1; i < weight.length; i++) {
-                weight[i] = 1 / 89.0; // or (double) weight.length;
+                weight[i] = 1 / (double) (weight.length - 1);
             }
         } else {
-            double[][] selectedFeatureMatrix = new double[relevanceSet.size() + 1][weight.length];
-            double[][] averageSdSelected = new double[weight.length][2];
-            int matrixIndex = 1;
-
-            // Add query image
+            // Add query image, to a copy so the set of the caller is not changed
+            Set<Integer> selectedSet = relevanceSet;
             if (!relevanceSet.contains(picNo)) {
-                relevanceSet.add(picNo);
+                selectedSet = new HashSet<Integer>(relevanceSet);
+                selectedSet.add(picNo);
             }
 
+            DoubleMatrix selectedFeatureMatrix = new DoubleMatrix(selectedSet.size() + 1, weight.length);
+            double[][] averageSdSelected = new double[weight.length][2];
+            int matrixIndex = 1;
+
             // get selected image features
-            for (Integer i : relevanceSet) {
-                for (int j = 1; j < normalizedFeatureMartix[i].length; j++) {
-                    selectedFeatureMatrix[matrixIndex][j] = normalizedFeatureMartix[i][j];
+            for (Integer i : selectedSet) {
+                for (int j = 1; j < normalizedFeatureMartix.cols(); j++) {
+                    selectedFeatureMatrix.set(matrixIndex, j, normalizedFeatureMartix.get(i, j));
                 }
                 matrixIndex++;
             }
@@ -244,38 +296,293 @@ public class CalculateUtil {
 
     }
 
+    /**
+     * calculateDistanceMetrix method ranks every image by its weighted distance
+     * to the query image
+     * 
+     * pre: normalisedFeatureMatrix, weight and picNo is populated with values
+     * 
+     * post: buttonOrder holds all image numbers in ascending order of distance
+     */
+    public void calculateDistanceMetrix(DoubleMatrix normalizedFeatureMartix, double[] weight, int picNo,
+            int[] buttonOrder) {
+        calculateDistanceMetrix(normalizedFeatureMartix, weight, picNo, buttonOrder, buttonOrder.length - 1);
+    }
+
     /**
      * calculateDistanceMetrix method is responsible for calculating the distance of
      * every image with query image
      * 
-     * pre: normalisedFeatureMatrix, weight and picNo is populated with values
+     * pre: normalisedFeatureMatrix, weight and picNo is populated with values, k is
+     * the number of images to rank
      * 
-     * post: populates the buttonorder array accoringly
+     * post: populates the buttonorder array accoringly and returns the number of
+     * images ranked
      * it follows the following steps:
-     * (1) calculates the distance using distance metrix formula
-     * (2) sorts the distance in descending order
-     * (3) populates the buttonOrder.
+     * (1) calculates the distance using distance metrix formula with the KERNEL
+     * (2) keeps the k smallest distances in topK, see rank
+     * (3) populates the buttonOrder from element 1 in ascending order of distance.
      */
-    public void calculateDistanceMetrix(double[][] normalizedFeatureMartix, double[] weight, int picNo,
-            int[] buttonOrder) {
+    public int calculateDistanceMetrix(DoubleMatrix normalizedFeatureMartix, double[] weight, int picNo,
+            int[] buttonOrder, int k) {
+        return rank(normalizedFeatureMartix, weight, picNo, buttonOrder, k);
+
+    }
+
+    /**
+     * calculateDistanceMetrix method ranks only the candidate images by their
+     * weighted distance to the query image
+     * 
+     * pre: normalisedFeatureMatrix, weight and picNo is populated with values,
+     * candidates holds count image numbers from element 0
+     * 
+     * post: buttonOrder holds the k closest candidates from element 1 in
+     * ascending order of distance, returns the number of images ranked
+     */
+    public int calculateDistanceMetrix(DoubleMatrix normalizedFeatureMartix, double[] weight, int picNo,
+            int[] candidates, int count, int[] buttonOrder, int k) {
+        double[] values = normalizedFeatureMartix.data();
+        int cols = normalizedFeatureMartix.cols();
+        int query = picNo * cols;
+        TopK closest = topK(Math.min(k, count));
+        for (int c = 0; c < count; c++) {
+            closest.offer(candidates[c], KERNEL.weightedDistance(values, weight, query, candidates[c] * cols, cols));
+        }
+        return closest.drainTo(buttonOrder, 1);
+    }
+
+    /**
+     * calculateQuantizedDistance method ranks the images by their approximate
+     * weighted distance on the codes and the closest of them by the exact
+     * weighted distance of their rows
+     * 
+     * pre: the codes weighted by codeWeight approximate the rows weighted by
+     * weight, e.g. quantized is quantized from featureRows and codeWeight is
+     * weight, which is populated by calculateWeight, k is the number of images
+     * to rank
+     * 
+     * post: buttonOrder holds the k closest of the RESCORE approximately
+     * closest images from element 1 in ascending order of exact distance,
+     * returns the number of images ranked
+     */
+    public int calculateQuantizedDistance(QuantizedMatrix quantized, double[] codeWeight, FeatureRows featureRows,
+            double[] weight, int picNo, int[] buttonOrder, int k) {
+        int rows = quantized.rows();
+        int[] stepWeight = new int[quantized.cols()];
+        quantized.stepWeights(codeWeight, stepWeight);
+        TopK candidates = new TopK(Math.min(rows - 1, Math.max(k, RESCORE)));
+        scanRows(rows, candidates, (from, to, partition, counts) -> {
+            for (int i = from; i < to; i++) {
+                partition.offer(i, quantized.distance(stepWeight, picNo, i));
+            }
+        });
+        int[] candidateOrder = new int[candidates.size()];
+        int count = candidates.drainTo(candidateOrder, 0);
+
+        // the query row is followed by the row of the candidate to rescore
+        int cols = featureRows.cols();
+        double[] values = new double[2 * cols];
+        featureRows.row(picNo, values, 0);
+        TopK closest = topK(k);
+        for (int c = 0; c < count; c++) {
+            featureRows.row(candidateOrder[c], values, cols);
+            closest.offer(candidateOrder[c], KERNEL.weightedDistance(values, weight, 0, cols, cols));
+        }
+        return closest.drainTo(buttonOrder, 1);
+    }
+
+    /**
+     * rank method keeps the k images closest to the query image, scanning the
+     * matrix in parallel when it has more than PARALLEL_THRESHOLD rows
+     * 
+     * pre: matrix holds a feature vector per image, weight is null for the
+     * unweighted distance
+     * 
+     * post: buttonOrder holds the k closest image numbers from element 1 in
+     * ascending order of distance, returns the number of images ranked
+     */
+    private int rank(DoubleMatrix matrix, double[] weight, int picNo, int[] buttonOrder, int k) {
+        double[] values = matrix.data();
+        int cols = matrix.cols();
+        int query = picNo * cols;
+        int rows = matrix.rows();
+
+        TopK closest = topK(k);
+        if (PRUNING && weight != null && k < rows - 1) {
+            int[] features = pruningOrder(weight);
+            long[] pruned = scanRows(rows, closest,
+                    (from, to, partition, counts) -> prunedScan(values, weight, features, cols, query, from, to,
+                            partition, counts));
+            prunedImages += rows - 1;
+            checkedFeatures += pruned[0];
+            abandonedImages += pruned[1];
+            featureCount += (long) (rows - 1) * (cols - 1);
+        } else {
+            scanRows(rows, closest, (from, to, partition, counts) -> scan(values, weight, cols, query, from, to,
+                    partition));
+        }
+        return closest.drainTo(buttonOrder, 1);
+    }
 
-        for (int i = 1; i < normalizedFeatureMartix.length; i++) {
-            double distance = 0.0;
-            for (int j = 1; j < normalizedFeatureMartix[i].length; j++) {
-                double value = weight[j] * Math.abs(normalizedFeatureMartix[picNo][j] - normalizedFeatureMartix[i][j]);
-                distance += value;
+    /**
+     * scanRows method offers the images 1 to rows - 1 to closest, in parallel
+     * when there are more than PARALLEL_THRESHOLD images
+     * 
+     * pre: closest is empty
+     * 
+     * post: closest holds the closest images, returns the pruning counts of
+     * the scan. Throws a CancellationException if progress is cancelled.
+     */
+    private long[] scanRows(int rows, TopK closest, RowScan rowScan) {
+        long[] pruned = new long[2];
+        int k = closest.capacity();
+        // about 4 partitions per thread, so a slow thread does not hold up the query
+        int partitionSize = Math.max(MIN_PARTITION, (rows - 1) / (4 * QUERY_THREADS) + 1);
+        int partitions = (rows - 1 + partitionSize - 1) / partitionSize;
+        if (QUERY_POOL == null || rows - 1 < PARALLEL_THRESHOLD || (long) k * partitions >= rows - 1) {
+            if (progress == null) {
+                rowScan.scan(1, rows, closest, pruned);
+                return pruned;
+            }
+            // the blocks are offered in order, so the ranking is the same
+            for (int from = 1; from < rows; from += PROGRESS_ROWS) {
+                checkCancelled();
+                int to = Math.min(rows, from + PROGRESS_ROWS);
+                rowScan.scan(from, to, closest, pruned);
+                progress.scanned(to - 1, rows - 1);
+            }
+            return pruned;
+        }
 
+        ScanTask[] tasks = new ScanTask[partitions];
+        for (int p = 0; p < partitions; p++) {
+            int from = 1 + p * partitionSize;
+            tasks[p] = new ScanTask(rowScan, from, Math.min(rows, from + partitionSize), k);
+            QUERY_POOL.execute(tasks[p]);
+        }
+        for (int p = 0; p < partitions; p++) {
+            if (progress != null && progress.isCancelled()) {
+                for (ScanTask task : tasks) {
+                    task.cancel(false);
+                }
+                throw new CancellationException();
             }
+            tasks[p].join().mergeInto(closest);
+            pruned[0] += tasks[p].pruned[0];
+            pruned[1] += tasks[p].pruned[1];
+            if (progress != null) {
+                progress.scanned(Math.min(rows - 1, (p + 1) * partitionSize), rows - 1);
+            }
+        }
+        return pruned;
+    }
 
-            sortedDistance.add(new DistanceValue(distance, i));
+    private void checkCancelled() {
+        if (progress != null && progress.isCancelled()) {
+            throw new CancellationException();
+        }
+    }
 
+    private static void scan(double[] values, double[] weight, int cols, int query, int from, int to,
+            TopK closest) {
+        for (int i = from, row = from * cols; i < to; i++, row += cols) {
+            closest.offer(i, (weight == null) ? KERNEL.distance(values, query, row, cols)
+                    : KERNEL.weightedDistance(values, weight, query, row, cols));
         }
+    }
 
-        for (int i = 1; i < buttonOrder.length; i++) {
-            buttonOrder[i] = sortedDistance.poll().getImageIndex();
+    /**
+     * prunedScan method offers the images from to to whose partial distance
+     * never gets larger than the threshold of closest
+     * 
+     * pre: features holds the features with a weight in the order they are
+     * added up
+     * 
+     * post: closest holds the same images as after scan, pruned[0] is increased
+     * by the number of features added up and pruned[1] by the number of
+     * abandoned images
+     */
+    private static void prunedScan(double[] values, double[] weight, int[] features, int cols, int query,
+            int from, int to, TopK closest, long[] pruned) {
+        long checked = 0;
+        long abandoned = 0;
+        for (int i = from, row = from * cols; i < to; i++, row += cols) {
+            double threshold = closest.threshold();
+            if (threshold != Double.POSITIVE_INFINITY) {
+                double limit = threshold + threshold * PRUNING_SLACK;
+                double partial = 0.0;
+                int f = 0;
+                while (f < features.length && partial <= limit) {
+                    int j = features[f++];
+                    partial += weight[j] * Math.abs(values[query + j] - values[row + j]);
+                }
+                checked += f;
+                if (partial > limit) {
+                    abandoned++;
+                    continue;
+                }
+            }
+            checked += cols - 1;
+            closest.offer(i, KERNEL.weightedDistance(values, weight, query, row, cols));
+        }
+        pruned[0] += checked;
+        pruned[1] += abandoned;
+    }
 
+    /**
+     * pruningOrder method sorts the features with a weight by descending weight
+     * 
+     * pre: weight is populated by calculateWeight
+     * 
+     * post: returns the feature columns, features without weight are left out
+     */
+    private static int[] pruningOrder(double[] weight) {
+        Integer[] features = new Integer[weight.length - 1];
+        int count = 0;
+        for (int j = 1; j < weight.length; j++) {
+            if (weight[j] != 0) {
+                features[count++] = j;
+            }
+        }
+        Arrays.sort(features, 0, count, (a, b) -> Double.compare(weight[b], weight[a]));
+        int[] order = new int[count];
+        for (int f = 0; f < count; f++) {
+            order[f] = features[f];
         }
+        return order;
+    }
 
+    /**
+     * pruningReport method returns the statistics of the pruned rankings
+     * 
+     * pre: none
+     * 
+     * post: returns the images ranked, the share abandoned and the features
+     * added up per image, including the full distance of images that are kept
+     */
+    public String pruningReport() {
+        if (prunedImages == 0) {
+            return "Pruning: no pruned rankings";
+        }
+        return String.format("Pruning: %d images ranked, %.1f%% abandoned, %.1f features added per image "
+                + "(%.1f%% of a full scan)", prunedImages, 100.0 * abandonedImages / prunedImages,
+                checkedFeatures / (double) prunedImages, 100.0 * checkedFeatures / featureCount);
+    }
+
+    /**
+     * topK method returns the empty heap for a ranking of k images
+     * 
+     * pre: k is the number of images to rank
+     * 
+     * post: topK holds at most k images, it is only allocated again when k
+     * changes
+     */
+    private TopK topK(int k) {
+        if (topK.capacity() != k) {
+            topK = new TopK(k);
+        }
+        topK.clear();
+        return topK;
     }
 
 }
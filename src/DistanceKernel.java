@@ -0,0 +1,72 @@
+
+/**
+ * The DistanceKernel calculates the Manhattan distance between two rows of a
+ * row-major feature array, optionally weighting every feature.
+ *
+ * The ScalarDistanceKernel is always available. The VectorDistanceKernel uses
+ * the jdk.incubator.vector module, its source is in the vector directory
+ * because it only compiles with --add-modules jdk.incubator.vector. It is
+ * loaded when its class and the module are present, unless
+ * -Dcbir.distanceKernel=scalar is set. KernelCheck compares its distances with
+ * the ones of the scalar kernel.
+ */
+
+public interface DistanceKernel {
+
+    /**
+     * distance method calculates the Manhattan distance of two rows
+     *
+     * pre: query and row are the offsets of the rows in values, column 0 of both
+     * rows is 0
+     *
+     * post: returns the sum of |values[query + j] - values[row + j]|
+     */
+    double distance(double[] values, int query, int row, int cols);
+
+    /**
+     * weightedDistance method calculates the weighted Manhattan distance of two
+     * rows
+     *
+     * pre: query and row are the offsets of the rows in values, weight has cols
+     * elements and weight[0] is 0
+     *
+     * post: returns the sum of weight[j] * |values[query + j] - values[row + j]|
+     */
+    double weightedDistance(double[] values, double[] weight, int query, int row, int cols);
+
+    /**
+     * distances method calculates the distances of one row to several query rows,
+     * each distance is the same as the one returned by distance or
+     * weightedDistance
+     *
+     * pre: queries holds the offsets of the query rows, weight is null for the
+     * unweighted distance, distances has as many elements as queries
+     *
+     * post: distances[q] holds the distance of the row to query row q
+     */
+    default void distances(double[] values, double[] weight, int[] queries, int row, int cols, double[] distances) {
+        for (int q = 0; q < queries.length; q++) {
+            distances[q] = (weight == null) ? distance(values, queries[q], row, cols)
+                    : weightedDistance(values, weight, queries[q], row, cols);
+        }
+    }
+
+    /**
+     * load method returns the fastest kernel that is available
+     *
+     * pre: none
+     *
+     * post: returns the VectorDistanceKernel if it can be loaded, otherwise the
+     * ScalarDistanceKernel
+     */
+    static DistanceKernel load() {
+        if (!"scalar".equals(System.getProperty("cbir.distanceKernel"))) {
+            try {
+                return (DistanceKernel) Class.forName("VectorDistanceKernel").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // not compiled or started without --add-modules jdk.incubator.vector
+            }
+        }
+        return new ScalarDistanceKernel();
+    }
+}
@@ -0,0 +1,116 @@
+
+/**
+ * The DoubleMatrix class stores a matrix of double values in a single row-major
+ * array instead of an array of rows.
+ *
+ * The number of columns is fixed, rows can be added and removed. The array
+ * grows like an ArrayList, so appending rows is cheap.
+ *
+ * Every change made through the methods is counted, so a cache of results
+ * calculated from the matrix can tell that they are out of date.
+ */
+
+import java.util.Arrays;
+
+public class DoubleMatrix {
+
+    private final int cols;
+    private int rows;
+    private double[] data;
+    private int modifications = 0;
+
+    DoubleMatrix(int cols) {
+        this(0, cols);
+    }
+
+    DoubleMatrix(int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+        this.data = new double[Math.multiplyExact(rows, cols)];
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int cols() {
+        return cols;
+    }
+
+    public double get(int row, int col) {
+        return data[row * cols + col];
+    }
+
+    public void set(int row, int col, double value) {
+        data[row * cols + col] = value;
+        modifications++;
+    }
+
+    /**
+     * modifications method returns the number of changes of the matrix
+     *
+     * pre: none
+     *
+     * post: returns a number that changes whenever a value or the number of
+     * rows is changed by a method of the matrix, writes into data() are not
+     * counted
+     */
+    public int modifications() {
+        return modifications;
+    }
+
+    /**
+     * data method returns the array that holds the values, so a scan over all
+     * rows can walk it without the index calculation of get
+     *
+     * pre: none
+     *
+     * post: returns the row-major array, row r starts at r * cols(). The array
+     * is replaced when the matrix grows.
+     */
+    public double[] data() {
+        return data;
+    }
+
+    /**
+     * setRows method changes the number of rows
+     *
+     * pre: none
+     *
+     * post: the matrix has the given number of rows, added rows are 0
+     */
+    public void setRows(int newRows) {
+        int size = Math.multiplyExact(newRows, cols);
+        if (size > data.length) {
+            int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(size, data.length + (long) (data.length >> 1)));
+            data = Arrays.copyOf(data, capacity);
+        }
+        if (newRows > rows) {
+            Arrays.fill(data, rows * cols, size, 0);
+        }
+        rows = newRows;
+        modifications++;
+    }
+
+    /**
+     * addRow method appends a row of 0s
+     *
+     * pre: none
+     *
+     * post: returns the index of the new row
+     */
+    public int addRow() {
+        setRows(rows + 1);
+        return rows - 1;
+    }
+
+    public void copyRow(int from, int to) {
+        System.arraycopy(data, from * cols, data, to * cols, cols);
+        modifications++;
+    }
+
+    public void clearRow(int row) {
+        Arrays.fill(data, row * cols, (row + 1) * cols, 0);
+        modifications++;
+    }
+}
@@ -0,0 +1,225 @@
+
+/**
+ * The EngineStress runs many RetrievalSessions on one RetrievalEngine at the
+ * same time and checks that they do not disturb each other.
+ *
+ * Every session runs the same script of queries as a user would: it selects a
+ * query image, one of 20 popular images half of the time, ranks it by color
+ * code, by intensity and by color code + intensity, marks two of the closest
+ * images as relevant and ranks again. The scripts are run one after the other
+ * first, and then every session on its own thread at the same time. It prints
+ * the queries per second of both runs, the sessions whose rankings differ
+ * from the ones of the first run, and how often and how long the session
+ * threads were blocked on a lock, which is time they waited for each other.
+ *
+ * It is run from the pwd that holds the feature files with
+ * java EngineStress [sessions [rounds [imageCount]]]
+ * sessions is 200 and rounds 5 by default. If imageCount is given the
+ * histograms of imageCount synthetic images are ranked instead of the
+ * feature files.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+public class EngineStress {
+
+    private static final int POPULAR_IMAGES = 20;
+    private static final int QUERIES_PER_ROUND = 4;
+
+    /**
+     * main method runs the stress test
+     *
+     * pre: args are optionally the number of sessions, rounds and synthetic
+     * images
+     *
+     * post: prints the throughput, the differing sessions and the contention
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int sessions = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+        int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 5;
+        IntMatrix[] histograms = (args.length > 2) ? synthetic(Integer.parseInt(args[2])) : features();
+        if (histograms == null) {
+            return;
+        }
+        int[] imageSize = new int[histograms[2].rows()];
+        for (int i = 1; i < imageSize.length; i++) {
+            imageSize[i] = histograms[2].get(i, 1) * histograms[2].get(i, 2);
+        }
+        long queries = (long) sessions * rounds * QUERIES_PER_ROUND;
+
+        // every run gets its own engine, so both start without cached rankings
+        RetrievalEngine engine = RetrievalEngine.build(histograms[0], histograms[1], imageSize);
+        System.out.println(String.format("%d sessions of %d rounds on %d images", sessions, rounds,
+                engine.imageCount()));
+        long[] expected = new long[sessions];
+        long start = System.nanoTime();
+        for (int s = 0; s < sessions; s++) {
+            expected[s] = script(engine.newSession(), s, rounds);
+        }
+        report("One after the other", queries, System.nanoTime() - start);
+        System.out.println(engine.report());
+
+        RetrievalEngine sharedEngine = RetrievalEngine.build(histograms[0], histograms[1], imageSize);
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean.isThreadContentionMonitoringSupported()) {
+            threadBean.setThreadContentionMonitoringEnabled(true);
+        }
+        long[] checksums = new long[sessions];
+        Thread[] threads = new Thread[sessions];
+        CountDownLatch ready = new CountDownLatch(sessions);
+        CountDownLatch go = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(sessions);
+        long[] blockedCount = new long[sessions];
+        long[] blockedMillis = new long[sessions];
+        for (int s = 0; s < sessions; s++) {
+            final int script = s;
+            threads[s] = new Thread(() -> {
+                RetrievalSession session = sharedEngine.newSession();
+                ready.countDown();
+                try {
+                    go.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                checksums[script] = script(session, script, rounds);
+                ThreadInfo info = threadBean.getThreadInfo(Thread.currentThread().getId());
+                blockedCount[script] = info.getBlockedCount();
+                blockedMillis[script] = info.getBlockedTime();
+                done.countDown();
+            }, "session-" + s);
+            threads[s].start();
+        }
+        ready.await();
+        start = System.nanoTime();
+        go.countDown();
+        done.await();
+        report("At the same time", queries, System.nanoTime() - start);
+        System.out.println(sharedEngine.report());
+
+        int differing = 0;
+        long blocked = 0;
+        long blockedTime = 0;
+        for (int s = 0; s < sessions; s++) {
+            threads[s].join();
+            if (checksums[s] != expected[s]) {
+                differing++;
+            }
+            blocked += blockedCount[s];
+            blockedTime += Math.max(0, blockedMillis[s]);
+        }
+        System.out.println(String.format("%d of %d sessions ranked differently", differing, sessions));
+        System.out.println(String.format("Session threads were blocked %d times for %d ms in total "
+                + "(%.3f times per query)", blocked, blockedTime, blocked / (double) queries));
+    }
+
+    /**
+     * script method runs the queries of one session
+     *
+     * pre: script numbers the session, the same number gives the same queries
+     *
+     * post: returns a checksum of every ranking of the session
+     */
+    private static long script(RetrievalSession session, int script, int rounds) {
+        Random random = new Random(script);
+        int imageCount = session.getButtonOrder().length - 1;
+        long checksum = 0;
+        for (int round = 0; round < rounds; round++) {
+            int picNo = (random.nextBoolean()) ? 1 + random.nextInt(Math.min(POPULAR_IMAGES, imageCount))
+                    : 1 + random.nextInt(imageCount);
+            session.select(picNo);
+            checksum = checksum(checksum, session, session.rankColorCode());
+            checksum = checksum(checksum, session, session.rankIntensity());
+            int count = session.rankColorIntensity();
+            checksum = checksum(checksum, session, count);
+            for (int marked = 0; marked < 2 && count > 1; marked++) {
+                session.toggleRelevant(session.getButtonOrder()[2 + random.nextInt(Math.min(10, count - 1))]);
+            }
+            checksum = checksum(checksum, session, session.rankColorIntensity());
+        }
+        return checksum;
+    }
+
+    private static long checksum(long checksum, RetrievalSession session, int count) {
+        int[] buttonOrder = session.getButtonOrder();
+        for (int rank = 1; rank <= count; rank++) {
+            checksum = checksum * 31 + buttonOrder[rank];
+        }
+        return checksum;
+    }
+
+    private static void report(String run, long queries, long nanos) {
+        System.out.println(String.format("%s: %d queries in %.2f s, %.0f queries/s", run, queries, nanos / 1e9,
+                queries / (nanos / 1e9)));
+    }
+
+    /**
+     * features method loads the histograms of the feature files in the pwd
+     *
+     * pre: none
+     *
+     * post: returns the intensity, color code and image size matrices with the
+     * same rows, or null if the files are missing
+     */
+    private static IntMatrix[] features() {
+        IntMatrix intensityMatrix = FeatureStore.load("Intensity", 26, false);
+        IntMatrix colorCodeMatrix = FeatureStore.load("ColorCode", 65, false);
+        IntMatrix imageSizeMatrix = FeatureStore.load("ImageSize", 3, false);
+        if (intensityMatrix == null || colorCodeMatrix == null || imageSizeMatrix == null) {
+            System.out.println("The feature files are missing, start the application to extract them");
+            return null;
+        }
+        int rows = Math.min(intensityMatrix.rows(), Math.min(colorCodeMatrix.rows(), imageSizeMatrix.rows()));
+        intensityMatrix.setRows(rows);
+        colorCodeMatrix.setRows(rows);
+        imageSizeMatrix.setRows(rows);
+        return new IntMatrix[] { intensityMatrix, colorCodeMatrix, imageSizeMatrix };
+    }
+
+    /**
+     * synthetic method creates the histograms of 64x64 images whose bins
+     * follow random cluster profiles, like the histograms of similar images
+     *
+     * pre: imageCount > 0
+     *
+     * post: returns the intensity, color code and image size matrices of
+     * imageCount images from row 1
+     */
+    private static IntMatrix[] synthetic(int imageCount) {
+        int size = 64;
+        int clusters = Math.max(1, imageCount / 100);
+        Random random = new Random(11);
+        IntMatrix[] histograms = { new IntMatrix(imageCount + 1, 26), new IntMatrix(imageCount + 1, 65),
+                new IntMatrix(imageCount + 1, 3) };
+        double[][][] profiles = new double[clusters][2][];
+        for (double[][] profile : profiles) {
+            for (int h = 0; h < 2; h++) {
+                profile[h] = new double[histograms[h].cols()];
+                double sum = 0.0;
+                for (int j = 1; j < profile[h].length; j++) {
+                    profile[h][j] = -Math.log(1 - random.nextDouble());
+                    sum += profile[h][j];
+                }
+                for (int j = 1; j < profile[h].length; j++) {
+                    profile[h][j] /= sum;
+                }
+            }
+        }
+        for (int i = 1; i <= imageCount; i++) {
+            double[][] profile = profiles[random.nextInt(clusters)];
+            for (int h = 0; h < 2; h++) {
+                for (int j = 1; j < profile[h].length; j++) {
+                    double pixels = size * size * profile[h][j] * (1 + 0.2 * random.nextGaussian());
+                    histograms[h].set(i, j, (int) Math.max(0, Math.round(pixels)));
+                }
+            }
+            histograms[2].set(i, 1, size);
+            histograms[2].set(i, 2, size);
+        }
+        return histograms;
+    }
+}
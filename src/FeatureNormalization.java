@@ -0,0 +1,229 @@
+
+/**
+ * The FeatureNormalization keeps the normalized feature matrix of the color
+ * code + intensity sort up to date while images are added and removed.
+ *
+ * A feature is the intensity or color code histogram value of an image divided
+ * by its size. It is normalized with the average and standard deviation of the
+ * feature over all images, which are kept as RunningStats, so adding or
+ * removing an image updates them in O(features). The normalized rows are not
+ * rewritten on every change: the rows are normalized with the statistics of
+ * the last full normalization, and all rows are normalized again only when an
+ * average or standard deviation has moved more than -Dcbir.normalizationDrift
+ * (0.01) standard deviations, or relatively, from them.
+ *
+ * ReadImage keeps the statistics of the stored images with a FeatureNormalization
+ * made by statistics, which has no rows: it adds the new and changed images and
+ * removes the deleted and changed ones, and saves them with
+ * RunningStats.save, so the engine is built with them instead of calculating
+ * them from every image.
+ */
+
+import java.util.Arrays;
+
+public class FeatureNormalization {
+
+    private static final double DRIFT_THRESHOLD = Double.parseDouble(
+            System.getProperty("cbir.normalizationDrift", "0.01"));
+
+    // null if only the statistics are kept
+    private final DoubleMatrix normalizedFeatureMartix;
+    private final IntMatrix intensityMatrix;
+    private final IntMatrix colorCodeMatrix;
+    private int[] imageSize;
+    private final RunningStats stats;
+    // average and standard deviation the rows were normalized with
+    private final double[][] avgSdMatrix;
+    private final double[] features;
+    private int renormalizations = 0;
+
+    /**
+     * constructor normalizes the features of every image
+     *
+     * pre: intensityMatrix and colorCodeMatrix are populated for the images 1 to
+     * normalizedFeatureMartix.rows() - 1, imageSize holds their sizes
+     *
+     * post: normalizedFeatureMartix is populated with normalised values that is
+     * calculated by
+     * (1) dividing each feature by the image size
+     * (2) calculating the average and standard deviation of each feature
+     * (3) by using gaussian normalisation formula on each feature
+     */
+    FeatureNormalization(DoubleMatrix normalizedFeatureMartix, IntMatrix intensityMatrix,
+            IntMatrix colorCodeMatrix, int[] imageSize) {
+        this(normalizedFeatureMartix, intensityMatrix, colorCodeMatrix, imageSize, null);
+    }
+
+    /**
+     * constructor normalizes the features of every image with the statistics
+     * kept by ReadImage
+     *
+     * pre: intensityMatrix and colorCodeMatrix are populated for the images 1 to
+     * normalizedFeatureMartix.rows() - 1, imageSize holds their sizes, stats is
+     * null or holds the statistics of their features
+     *
+     * post: normalizedFeatureMartix is populated with the features normalized
+     * with stats, which are calculated from every image if stats is null
+     */
+    FeatureNormalization(DoubleMatrix normalizedFeatureMartix, IntMatrix intensityMatrix,
+            IntMatrix colorCodeMatrix, int[] imageSize, RunningStats stats) {
+        this.normalizedFeatureMartix = normalizedFeatureMartix;
+        this.intensityMatrix = intensityMatrix;
+        this.colorCodeMatrix = colorCodeMatrix;
+        this.imageSize = imageSize;
+        int cols = normalizedFeatureMartix.cols();
+        this.avgSdMatrix = new double[cols][2];
+        this.features = new double[cols];
+        if (stats == null) {
+            DoubleMatrix featureMatrix = new DoubleMatrix(normalizedFeatureMartix.rows(), cols);
+            for (int i = 1; i < featureMatrix.rows(); i++) {
+                features(i, imageSize[i], features);
+                for (int j = 1; j < cols; j++) {
+                    featureMatrix.set(i, j, features[j]);
+                }
+            }
+            stats = RunningStats.of(featureMatrix);
+        }
+        this.stats = stats;
+        stats.averageSd(avgSdMatrix);
+        for (int i = 1; i < normalizedFeatureMartix.rows(); i++) {
+            features(i, imageSize[i], features);
+            normalize(i, features, 0);
+        }
+    }
+
+    private FeatureNormalization(IntMatrix intensityMatrix, IntMatrix colorCodeMatrix, RunningStats stats) {
+        this.normalizedFeatureMartix = null;
+        this.intensityMatrix = intensityMatrix;
+        this.colorCodeMatrix = colorCodeMatrix;
+        this.imageSize = null;
+        this.stats = stats;
+        this.avgSdMatrix = null;
+        this.features = new double[stats.cols()];
+    }
+
+    /**
+     * statistics method returns a FeatureNormalization that only keeps the
+     * statistics of the features, without normalized rows
+     *
+     * pre: stats holds the statistics of the images in intensityMatrix and
+     * colorCodeMatrix, its columns are the intensity and then the color code
+     * features
+     *
+     * post: returns the FeatureNormalization that updates stats on add and
+     * remove
+     */
+    public static FeatureNormalization statistics(IntMatrix intensityMatrix, IntMatrix colorCodeMatrix,
+            RunningStats stats) {
+        return new FeatureNormalization(intensityMatrix, colorCodeMatrix, stats);
+    }
+
+    /**
+     * add method adds the features of a new image
+     *
+     * pre: the histograms of the image are in row image of intensityMatrix and
+     * colorCodeMatrix, size is its width times height
+     *
+     * post: the statistics include the image, row image of
+     * normalizedFeatureMartix holds its normalized features, all rows are
+     * normalized again if the statistics drifted
+     */
+    public void add(int image, int size) {
+        features(image, size, features);
+        stats.add(features, 0);
+        if (normalizedFeatureMartix == null) {
+            return;
+        }
+        if (image >= imageSize.length) {
+            imageSize = Arrays.copyOf(imageSize, Math.max(image + 1, 2 * imageSize.length));
+        }
+        imageSize[image] = size;
+        if (image >= normalizedFeatureMartix.rows()) {
+            normalizedFeatureMartix.setRows(image + 1);
+        }
+        if (!renormalizeIfDrifted()) {
+            normalize(image, features, 0);
+        }
+    }
+
+    /**
+     * remove method removes the features of an image
+     *
+     * pre: the image was added and its histograms are still in intensityMatrix
+     * and colorCodeMatrix, size is the width times height it was added with
+     *
+     * post: the statistics do not include the image, all rows are normalized
+     * again if the statistics drifted. The caller removes the rows.
+     */
+    public void remove(int image, int size) {
+        features(image, size, features);
+        stats.remove(features, 0);
+        if (normalizedFeatureMartix != null) {
+            renormalizeIfDrifted();
+        }
+    }
+
+    /**
+     * renormalizeIfDrifted method normalizes every row again if an average or
+     * standard deviation has moved more than DRIFT_THRESHOLD
+     *
+     * pre: none
+     *
+     * post: returns true if the rows were normalized again
+     */
+    private boolean renormalizeIfDrifted() {
+        double[][] current = new double[avgSdMatrix.length][2];
+        stats.averageSd(current);
+        double drift = 0.0;
+        for (int j = 1; j < current.length; j++) {
+            double sd = avgSdMatrix[j][1];
+            if (sd == 0 || Double.isNaN(sd)) {
+                drift = (current[j][1] != sd || current[j][0] != avgSdMatrix[j][0]) ? Double.POSITIVE_INFINITY
+                        : drift;
+                continue;
+            }
+            drift = Math.max(drift, Math.abs(current[j][0] - avgSdMatrix[j][0]) / sd);
+            drift = Math.max(drift, Math.abs(current[j][1] - sd) / sd);
+        }
+        if (!(drift > DRIFT_THRESHOLD)) {
+            return false;
+        }
+        for (int j = 1; j < current.length; j++) {
+            avgSdMatrix[j][0] = current[j][0];
+            avgSdMatrix[j][1] = current[j][1];
+        }
+        for (int i = 1; i < normalizedFeatureMartix.rows(); i++) {
+            features(i, imageSize[i], features);
+            normalize(i, features, 0);
+        }
+        renormalizations++;
+        return true;
+    }
+
+    public int getRenormalizations() {
+        return renormalizations;
+    }
+
+    public RunningStats getStats() {
+        return stats;
+    }
+
+    // the intensity features come first, then the color code features
+    private void features(int image, int size, double[] out) {
+        int intensityCols = intensityMatrix.cols();
+        for (int j = 1; j < out.length; j++) {
+            if (j < intensityCols) {
+                out[j] = intensityMatrix.get(image, j) / ((double) size);
+            } else {
+                out[j] = colorCodeMatrix.get(image, j - intensityCols + 1) / ((double) size);
+            }
+        }
+    }
+
+    private void normalize(int image, double[] values, int offset) {
+        for (int j = 1; j < normalizedFeatureMartix.cols(); j++) {
+            double value = (values[offset + j] - avgSdMatrix[j][0]) / avgSdMatrix[j][1];
+            normalizedFeatureMartix.set(image, j, (Double.isNaN(value)) ? 0 : value);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+
+/**
+ * The FeatureRows gives the normalized color code + intensity features of an
+ * image, either from a normalized feature matrix in memory or calculated when
+ * they are needed from the intensity and color code histograms, which the
+ * FeatureStore maps from the feature files. Calculated rows take no memory
+ * besides the histograms, e.g. for a QuantizedMatrix that ranks on codes and
+ * only needs the features of the query and the candidates it rescores.
+ *
+ * A calculated feature is the histogram value divided by the image size,
+ * normalized with the average and standard deviation of the feature over all
+ * images, with the same arithmetic as the FeatureNormalization, so the rows
+ * are the same as the rows of the normalized feature matrix. The rows of
+ * areaNormalize are only divided by the image size, like the rows of
+ * CalculateUtil.calculateAreaNormalization, with the intensity features first.
+ */
+
+public class FeatureRows {
+
+    private final int rows;
+    private final int cols;
+    private final DoubleMatrix matrix;
+    private final IntMatrix intensityMatrix;
+    private final IntMatrix colorCodeMatrix;
+    private final int[] imageSize;
+    // average and standard deviation of every feature, null for the features
+    // that are not normalized
+    private final double[][] avgSdMatrix;
+
+    /**
+     * constructor for the rows of a matrix in memory
+     *
+     * pre: matrix holds a normalized feature vector per image from row 1
+     *
+     * post: the rows are read from matrix
+     */
+    FeatureRows(DoubleMatrix matrix) {
+        this.rows = matrix.rows();
+        this.cols = matrix.cols();
+        this.matrix = matrix;
+        this.intensityMatrix = null;
+        this.colorCodeMatrix = null;
+        this.imageSize = null;
+        this.avgSdMatrix = null;
+    }
+
+    private FeatureRows(IntMatrix intensityMatrix, IntMatrix colorCodeMatrix, int[] imageSize,
+            double[][] avgSdMatrix) {
+        this.rows = intensityMatrix.rows();
+        this.cols = intensityMatrix.cols() + colorCodeMatrix.cols() - 1;
+        this.matrix = null;
+        this.intensityMatrix = intensityMatrix;
+        this.colorCodeMatrix = colorCodeMatrix;
+        this.imageSize = imageSize;
+        this.avgSdMatrix = avgSdMatrix;
+    }
+
+    /**
+     * normalize method calculates the average and standard deviation of every
+     * feature and returns the rows that are normalized with them when needed
+     *
+     * pre: intensityMatrix and colorCodeMatrix have a row per image, imageSize
+     * holds the number of pixels of every image
+     *
+     * post: returns the rows of the normalized features of every image
+     */
+    public static FeatureRows normalize(IntMatrix intensityMatrix, IntMatrix colorCodeMatrix, int[] imageSize) {
+        return normalize(intensityMatrix, colorCodeMatrix, imageSize, null);
+    }
+
+    /**
+     * normalize method returns the rows that are normalized with the average
+     * and standard deviation of stats when needed
+     *
+     * pre: intensityMatrix and colorCodeMatrix have a row per image, imageSize
+     * holds the number of pixels of every image, stats is null or holds the
+     * statistics of their features, e.g. the ones kept by ReadImage
+     *
+     * post: returns the rows of the normalized features of every image, the
+     * statistics are only calculated from every image if stats is null
+     */
+    public static FeatureRows normalize(IntMatrix intensityMatrix, IntMatrix colorCodeMatrix, int[] imageSize,
+            RunningStats stats) {
+        FeatureRows features = areaNormalize(intensityMatrix, colorCodeMatrix, imageSize);
+        double[][] avgSdMatrix = new double[features.cols()][2];
+        ((stats != null) ? stats : RunningStats.of(features)).averageSd(avgSdMatrix);
+        return new FeatureRows(intensityMatrix, colorCodeMatrix, imageSize, avgSdMatrix);
+    }
+
+    /**
+     * areaNormalize method returns the rows of the histogram values divided by
+     * the image size
+     *
+     * pre: intensityMatrix and colorCodeMatrix have a row per image, imageSize
+     * holds the number of pixels of every image
+     *
+     * post: returns the rows of the intensity and color code features of every
+     * image
+     */
+    public static FeatureRows areaNormalize(IntMatrix intensityMatrix, IntMatrix colorCodeMatrix, int[] imageSize) {
+        return new FeatureRows(intensityMatrix, colorCodeMatrix, imageSize, null);
+    }
+
+    /**
+     * averageSd method returns the average and standard deviation every feature
+     * is normalized with
+     *
+     * pre: the rows are made by normalize
+     *
+     * post: returns element j with the average and standard deviation of
+     * feature j
+     */
+    double[][] averageSd() {
+        return avgSdMatrix;
+    }
+
+    // number of columns of the intensity features, 0 for the rows of a matrix
+    int intensityCols() {
+        return (intensityMatrix == null) ? 0 : intensityMatrix.cols();
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int cols() {
+        return cols;
+    }
+
+    /**
+     * row method copies or calculates the features of an image
+     *
+     * pre: 0 < image < rows(), out has at least offset + cols() elements
+     *
+     * post: out[offset + j] holds feature j of the image, out[offset] is 0
+     */
+    public void row(int image, double[] out, int offset) {
+        out[offset] = 0.0;
+        if (matrix != null) {
+            System.arraycopy(matrix.data(), image * cols + 1, out, offset + 1, cols - 1);
+            return;
+        }
+        // the intensity features come first, then the color code features
+        int intensityCols = intensityMatrix.cols();
+        for (int j = 1; j < cols; j++) {
+            double feature;
+            if (j < intensityCols) {
+                feature = intensityMatrix.get(image, j) / ((double) imageSize[image]);
+            } else {
+                feature = colorCodeMatrix.get(image, j - intensityCols + 1) / ((double) imageSize[image]);
+            }
+            if (avgSdMatrix != null) {
+                feature = (feature - avgSdMatrix[j][0]) / avgSdMatrix[j][1];
+                feature = (Double.isNaN(feature)) ? 0 : feature;
+            }
+            out[offset + j] = feature;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+
+/**
+ * The FeatureStore class saves and opens the histogram matrices as binary
+ * feature files, e.g. Intensity.bin and ColorCode.bin.
+ *
+ * A feature file starts with a 64 byte header followed by the values of the
+ * matrix as little endian ints in row-major order. The header holds
+ * magic, version, header size, rows, cols, value size, CRC32 checksum of the
+ * values and the name of the feature layout.
+ *
+ * The files are opened with FileChannel.map, so the values are not parsed or
+ * copied, they are read from the page cache when they are first used. The
+ * checksum is only verified with -Dcbir.verifyStore=true, because it has to
+ * read the whole file.
+ *
+ * save writes a whole file. An Updater keeps a feature file up to date with a
+ * matrix that grows, e.g. at the checkpoints of ReadImage, by writing only
+ * the rows that changed since its last save at their offsets and then the
+ * header with the new row count and checksum. Values after the rows of the
+ * header, left by an update that was interrupted, are not read.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.zip.CRC32;
+
+public class FeatureStore {
+
+    private static final int MAGIC = 0x52494243; // "CBIR"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int LAYOUT_OFFSET = 32;
+    private static final int LAYOUT_LENGTH = 16;
+    private static final int WRITE_CHUNK = 64 * 1024;
+    private static final boolean VERIFY_CHECKSUM = Boolean.getBoolean("cbir.verifyStore");
+
+    private FeatureStore() {
+    }
+
+    /**
+     * load method returns the matrix stored in name.bin. If there is only the
+     * old text file name.txt it is converted to name.bin first.
+     *
+     * pre: name of the feature, e.g. Intensity, and its number of columns
+     *
+     * post: returns the matrix, mapped from the file if map is true and read
+     * into the heap otherwise, or null if there is no feature file
+     */
+    public static IntMatrix load(String name, int cols, boolean map) {
+        Path binaryFile = featureFile(name + ".bin");
+        if (!Files.exists(binaryFile) && Files.exists(featureFile(name + ".txt"))) {
+            System.out.println("Converting " + name + ".txt to " + name + ".bin");
+            ReadTextFile rf = new ReadTextFile();
+            save(rf.readFile(new IntMatrix(cols), name + ".txt"), name);
+        }
+        if (!Files.exists(binaryFile)) {
+            return null;
+        }
+        try {
+            return open(binaryFile, name, cols, map);
+        } catch (IOException e) {
+            System.out.println("The feature file " + name + ".bin is damaged: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * save method writes the matrix to name.bin. The file is written to a
+     * temporary file first and then moved over name.bin.
+     *
+     * pre: matrix is populated with values
+     *
+     * post: name.bin is saved in the pwd
+     */
+    public static void save(IntMatrix matrix, String name) {
+        save(matrix, name, new CRC32());
+    }
+
+    // writes the whole file, checksum holds the checksum of its values afterwards
+    private static boolean save(IntMatrix matrix, String name, CRC32 checksum) {
+        Path binaryFile = featureFile(name + ".bin");
+        Path tempFile = featureFile(name + ".bin.tmp");
+        try {
+            write(matrix, name, tempFile, checksum);
+            Files.move(tempFile, binaryFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Unable to write into " + name + ".bin file");
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    private static void write(IntMatrix matrix, String layout, Path file, CRC32 checksum) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer chunk = ByteBuffer.allocate(WRITE_CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+            writeRows(matrix, 0, matrix.rows(), chunk, channel, checksum);
+            writeHeader(channel, layout, matrix.rows(), matrix.cols(), checksum.getValue());
+        }
+    }
+
+    /**
+     * writeRows method writes the rows from to to of matrix at their offset in
+     * the file and adds them to the checksum
+     *
+     * pre: channel is null to only add the rows to checksum, checksum is null to
+     * only write them
+     *
+     * post: the rows are written and added
+     */
+    private static void writeRows(IntMatrix matrix, int from, int to, ByteBuffer chunk, FileChannel channel,
+            CRC32 checksum) throws IOException {
+        IntBuffer values = matrix.buffer();
+        values.limit(to * matrix.cols());
+        values.position(from * matrix.cols());
+        long position = HEADER_SIZE + (long) from * matrix.cols() * Integer.BYTES;
+        while (values.hasRemaining()) {
+            chunk.clear();
+            while (values.hasRemaining() && chunk.remaining() >= Integer.BYTES) {
+                chunk.putInt(values.get());
+            }
+            chunk.flip();
+            if (checksum != null) {
+                checksum.update(chunk.duplicate());
+            }
+            while (channel != null && chunk.hasRemaining()) {
+                position += channel.write(chunk, position);
+            }
+        }
+    }
+
+    private static void writeHeader(FileChannel channel, String layout, int rows, int cols, long checksum)
+            throws IOException {
+        // the values are on disk before the header counts them
+        channel.force(false);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(HEADER_SIZE).putInt(rows).putInt(cols)
+                .putInt(Integer.BYTES).putLong(checksum);
+        byte[] layoutName = layout.getBytes(StandardCharsets.US_ASCII);
+        header.position(LAYOUT_OFFSET);
+        header.put(layoutName, 0, Math.min(layoutName.length, LAYOUT_LENGTH));
+        header.clear();
+        while (header.hasRemaining()) {
+            channel.write(header, header.position());
+        }
+        channel.force(false);
+    }
+
+    /**
+     * The Updater writes the rows of a matrix that changed since its last save
+     * into the feature file of the matrix. The checksum of the rows that did
+     * not change since then is kept, so when rows are only added the checksum
+     * is updated with the added rows, and it is calculated again from the
+     * matrix when a row before them changed.
+     */
+    static final class Updater {
+
+        private final String name;
+        private final BitSet changedRows = new BitSet();
+        private final CRC32 checksum = new CRC32();
+        private final ByteBuffer chunk = ByteBuffer.allocate(WRITE_CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+        // rows in the file, -1 if the whole file has to be written
+        private int fileRows;
+        // rows the checksum was calculated for
+        private int checksumRows = 0;
+
+        /**
+         * constructor
+         *
+         * pre: name of the feature, fileRows is the number of rows of name.bin
+         * that hold the values of the matrix, or -1 if it does not hold them
+         *
+         * post: instantiates Updater without changed rows
+         */
+        Updater(String name, int fileRows) {
+            this.name = name;
+            this.fileRows = fileRows;
+        }
+
+        /**
+         * changed method marks a row whose values are to be written
+         *
+         * pre: row >= 0
+         *
+         * post: the row is written by the next save
+         */
+        void changed(int row) {
+            changedRows.set(row);
+        }
+
+        /**
+         * save method writes the changed rows and the rows added since the last
+         * save, then the header with the row count and checksum of matrix
+         *
+         * pre: the rows of the file that are not marked as changed hold the
+         * values of matrix
+         *
+         * post: name.bin holds the values of matrix, the whole file is written
+         * if it was not written before or an update failed
+         */
+        void save(IntMatrix matrix) {
+            int rows = matrix.rows();
+            Path binaryFile = featureFile(name + ".bin");
+            if (fileRows < 0 || !Files.exists(binaryFile)) {
+                checksum.reset();
+                fileRows = FeatureStore.save(matrix, name, checksum) ? rows : -1;
+                checksumRows = rows;
+                changedRows.clear();
+                return;
+            }
+            if (rows > fileRows) {
+                changedRows.set(fileRows, rows);
+            }
+            int firstChanged = changedRows.nextSetBit(0);
+            if (rows < checksumRows || (firstChanged >= 0 && firstChanged < checksumRows)) {
+                checksum.reset();
+                checksumRows = 0;
+            }
+            try (FileChannel channel = FileChannel.open(binaryFile, StandardOpenOption.WRITE)) {
+                for (int from = firstChanged; from >= 0 && from < rows; from = changedRows.nextSetBit(from)) {
+                    int to = Math.min(rows, changedRows.nextClearBit(from));
+                    // the rows after checksumRows are added to the checksum below
+                    writeRows(matrix, from, to, chunk, channel, null);
+                    from = to;
+                }
+                writeRows(matrix, checksumRows, rows, chunk, null, checksum);
+                checksumRows = rows;
+                writeHeader(channel, name, rows, matrix.cols(), checksum.getValue());
+                channel.truncate(HEADER_SIZE + (long) rows * matrix.cols() * Integer.BYTES);
+                fileRows = rows;
+            } catch (IOException e) {
+                System.out.println("Unable to write into " + name + ".bin file");
+                e.printStackTrace();
+                fileRows = -1;
+            }
+            changedRows.clear();
+        }
+    }
+
+    /**
+     * fingerprint method returns a checksum of the checksums in the headers of
+     * feature files, which changes whenever one of them is saved with other
+     * values
+     *
+     * pre: names of the features, e.g. Intensity
+     *
+     * post: returns the fingerprint, or -1 if a feature file cannot be read
+     */
+    public static long fingerprint(String... names) {
+        CRC32 fingerprint = new CRC32();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        for (String name : names) {
+            header.clear();
+            try (FileChannel channel = FileChannel.open(featureFile(name + ".bin"), StandardOpenOption.READ)) {
+                readFully(channel, header, 0);
+            } catch (IOException e) {
+                return -1;
+            }
+            if (header.getInt(0) != MAGIC) {
+                return -1;
+            }
+            // rows and checksum
+            fingerprint.update(header.array(), 12, 4);
+            fingerprint.update(header.array(), 24, 8);
+        }
+        return fingerprint.getValue();
+    }
+
+    private static IntMatrix open(Path file, String layout, int cols, boolean map) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE) {
+                throw new IOException("file is shorter than the header");
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != HEADER_SIZE) {
+                throw new IOException("unknown file format");
+            }
+            int rows = header.getInt(12);
+            int fileCols = header.getInt(16);
+            if (fileCols != cols || header.getInt(20) != Integer.BYTES || !layout.equals(layoutName(header))) {
+                throw new IOException("expected " + cols + " columns of " + layout + " values");
+            }
+            long dataSize = (long) rows * cols * Integer.BYTES;
+            if (rows < 0 || HEADER_SIZE + dataSize > fileSize) {
+                throw new IOException("file size does not match " + rows + " rows");
+            }
+            if (dataSize > Integer.MAX_VALUE) {
+                throw new IOException("file is larger than 2 GB");
+            }
+
+            ByteBuffer data;
+            if (map) {
+                data = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, dataSize);
+            } else {
+                data = ByteBuffer.allocate((int) dataSize);
+                readFully(channel, data, HEADER_SIZE);
+            }
+            if (VERIFY_CHECKSUM) {
+                CRC32 checksum = new CRC32();
+                checksum.update(data.duplicate());
+                if (checksum.getValue() != header.getLong(24)) {
+                    throw new IOException("checksum does not match");
+                }
+            }
+            IntBuffer values = data.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            return new IntMatrix(rows, cols, map ? values.asReadOnlyBuffer() : values);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static String layoutName(ByteBuffer header) {
+        byte[] name = new byte[LAYOUT_LENGTH];
+        header.position(LAYOUT_OFFSET);
+        header.get(name);
+        int length = 0;
+        while (length < name.length && name[length] != 0) {
+            length++;
+        }
+        return new String(name, 0, length, StandardCharsets.US_ASCII);
+    }
+
+    private static Path featureFile(String fileName) {
+        return Paths.get("").toAbsolutePath().resolve(fileName);
+    }
+}
@@ -0,0 +1,184 @@
+
+/**
+ * The FeedbackSession ranks the feedback rounds of one query image without
+ * scanning every image in every round.
+ *
+ * The first round scans every image and keeps the -Dcbir.feedbackPool (5000)
+ * closest ones as a pool, at least as many as are shown. The next rounds rank
+ * only the pool with their new weights, because a new round rarely moves an
+ * image from far down the ranking into the top, and every round re-seeds the
+ * pool with its own ranking of the pool. A round over the pool cannot find
+ * images outside it, so only a full scan brings new images into the pool:
+ * every -Dcbir.fullScanEvery
+ * (5) rounds, or when the weights moved more than -Dcbir.weightShift (0.5),
+ * the sum of the absolute weight changes since the pool was made, every image
+ * is scanned again and the pool is renewed.
+ *
+ * With -Dcbir.feedbackAudit=true every pool round is also ranked by a full
+ * scan and report gives the share of the shown images both rankings have in
+ * common.
+ */
+
+public class FeedbackSession {
+
+    private static final int POOL_SIZE = Math.max(1, Integer.getInteger("cbir.feedbackPool", 5000));
+    private static final int FULL_SCAN_EVERY = Math.max(1, Integer.getInteger("cbir.fullScanEvery", 5));
+    private static final double WEIGHT_SHIFT = Double.parseDouble(System.getProperty("cbir.weightShift", "0.5"));
+    private static final boolean AUDIT = Boolean.getBoolean("cbir.feedbackAudit");
+
+    private final CalculateUtil calculate;
+    private final DoubleMatrix normalizedFeatureMartix;
+    private int picNo = 0;
+    private int[] pool = new int[0];
+    private int poolCount = 0;
+    // weights of the full scan that made the pool
+    private double[] poolWeight;
+    private int roundsSinceFullScan = 0;
+    // whether the last round ranked only the pool
+    private boolean pooled = false;
+
+    private long fullScans = 0;
+    private long poolRounds = 0;
+    private long auditedImages = 0;
+    private long auditedOverlap = 0;
+
+    /**
+     * constructor
+     *
+     * pre: normalizedFeatureMartix is populated by calculateGaussianNormalization
+     *
+     * post: instantiates FeedbackSession without a pool
+     */
+    FeedbackSession(CalculateUtil calculate, DoubleMatrix normalizedFeatureMartix) {
+        this.calculate = calculate;
+        this.normalizedFeatureMartix = normalizedFeatureMartix;
+    }
+
+    /**
+     * reset method drops the pool, e.g. when another query image is selected
+     *
+     * pre: none
+     *
+     * post: the next round scans every image
+     */
+    public void reset() {
+        picNo = 0;
+        poolCount = 0;
+        pooled = false;
+    }
+
+    /**
+     * rank method ranks a feedback round
+     *
+     * pre: weight is populated by calculateWeight, k is the number of images to
+     * rank
+     *
+     * post: buttonOrder holds the k closest images of the pool or of all images
+     * from element 1 in ascending order of distance, returns their number, the
+     * pool holds the images of the pool in the order of this round
+     */
+    public int rank(double[] weight, int picNo, int[] buttonOrder, int k) {
+        if (needsFullScan(weight, picNo, k)) {
+            pooled = false;
+            return fullScan(weight, picNo, buttonOrder, k);
+        }
+        pooled = true;
+        roundsSinceFullScan++;
+        poolRounds++;
+        // the whole pool is ranked, the candidates are read before the pool is
+        // written from element 1
+        int ranked = calculate.calculateDistanceMetrix(normalizedFeatureMartix, weight, picNo, pool, poolCount,
+                pool, poolCount);
+        System.arraycopy(pool, 1, pool, 0, ranked);
+        poolCount = ranked;
+        int count = Math.min(k, ranked);
+        System.arraycopy(pool, 0, buttonOrder, 1, count);
+        if (AUDIT) {
+            audit(weight, buttonOrder, count, k);
+        }
+        return count;
+    }
+
+    /**
+     * isPooled method tells whether the last round ranked only the pool
+     *
+     * pre: none
+     *
+     * post: returns true if the ranking of the last round depends on the pool,
+     * so it is not the ranking of a full scan with its weights
+     */
+    public boolean isPooled() {
+        return pooled;
+    }
+
+    private boolean needsFullScan(double[] weight, int picNo, int k) {
+        if (picNo != this.picNo || poolCount < Math.min(k, normalizedFeatureMartix.rows() - 1)
+                || roundsSinceFullScan + 1 >= FULL_SCAN_EVERY) {
+            return true;
+        }
+        double shift = 0.0;
+        for (int j = 1; j < weight.length; j++) {
+            shift += Math.abs(weight[j] - poolWeight[j]);
+        }
+        return shift > WEIGHT_SHIFT;
+    }
+
+    /**
+     * fullScan method ranks every image and keeps the closest ones as the pool
+     *
+     * pre: none
+     *
+     * post: buttonOrder holds the k closest images from element 1, the pool the
+     * max(k, POOL_SIZE) closest images
+     */
+    private int fullScan(double[] weight, int picNo, int[] buttonOrder, int k) {
+        int poolSize = Math.min(Math.max(k, POOL_SIZE), normalizedFeatureMartix.rows() - 1);
+        if (pool.length < poolSize + 1) {
+            pool = new int[poolSize + 1];
+        }
+        int count = calculate.calculateDistanceMetrix(normalizedFeatureMartix, weight, picNo, pool, poolSize);
+        // the pool is kept from element 0
+        System.arraycopy(pool, 1, pool, 0, count);
+        poolCount = count;
+        poolWeight = weight.clone();
+        this.picNo = picNo;
+        roundsSinceFullScan = 0;
+        fullScans++;
+
+        int shown = Math.min(k, count);
+        System.arraycopy(pool, 0, buttonOrder, 1, shown);
+        return shown;
+    }
+
+    // ranks the round by a full scan and counts the images both rankings show
+    private void audit(double[] weight, int[] buttonOrder, int count, int k) {
+        int[] fullOrder = new int[normalizedFeatureMartix.rows()];
+        int fullCount = calculate.calculateDistanceMetrix(normalizedFeatureMartix, weight, picNo, fullOrder, k);
+        boolean[] shown = new boolean[normalizedFeatureMartix.rows()];
+        for (int rank = 1; rank <= fullCount; rank++) {
+            shown[fullOrder[rank]] = true;
+        }
+        for (int rank = 1; rank <= count; rank++) {
+            if (shown[buttonOrder[rank]]) {
+                auditedOverlap++;
+            }
+        }
+        auditedImages += fullCount;
+    }
+
+    /**
+     * report method returns the counters of the session
+     *
+     * pre: none
+     *
+     * post: returns the full scans, pool rounds and the audited overlap
+     */
+    public String report() {
+        String report = String.format("Feedback session: %d full scans, %d pool rounds (pool of %d)", fullScans,
+                poolRounds, POOL_SIZE);
+        if (auditedImages > 0) {
+            report += String.format(", %.2f%% overlap with full rankings", 100.0 * auditedOverlap / auditedImages);
+        }
+        return report;
+    }
+}
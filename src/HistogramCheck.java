@@ -0,0 +1,163 @@
+
+/**
+ * The HistogramCheck checks that the HistogramKernel calculates the same
+ * histograms as the original per pixel extraction.
+ *
+ * Every image of the image directory is decoded and its histograms are
+ * calculated twice, once with getRaster().getPixel and the binary strings of
+ * the original extraction and once with the HistogramKernel, and every bin is
+ * compared. Random images of the raster layouts the kernel reads directly are
+ * compared too, as are sub images, whose rasters do not start at the first
+ * element of their buffer. The original extraction reads 3 samples per pixel
+ * and fails on rasters with an alpha band, so for those the first 3 of the
+ * samples are compared.
+ *
+ * It is run with
+ * java -Dcbir.imageDir=src/images HistogramCheck
+ * and exits with status 1 if any bin differs.
+ */
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+public class HistogramCheck {
+
+    private static final int[] IMAGE_TYPES = { BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB,
+            BufferedImage.TYPE_INT_BGR, BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR,
+            BufferedImage.TYPE_BYTE_GRAY };
+
+    private final HistogramKernel kernel = new HistogramKernel();
+    private final int[] intensityBins = new int[26];
+    private final int[] colorCodeBins = new int[65];
+    private final int[] legacyIntensityBins = new int[26];
+    private final int[] legacyColorCodeBins = new int[65];
+
+    /**
+     * main method runs the check
+     *
+     * pre: -Dcbir.imageDir is the image directory, see ImageCorpus
+     *
+     * post: prints the images compared and the ones that differ, exits with
+     * status 1 if a bin differs
+     */
+    public static void main(String[] args) {
+        HistogramCheck check = new HistogramCheck();
+        Path directory = ImageCorpus.imageDirectory();
+        List<Path> images;
+        try {
+            images = ImageCorpus.scan(directory);
+        } catch (IOException e) {
+            System.out.println("Unable to read the image directory " + directory);
+            System.exit(1);
+            return;
+        }
+
+        int compared = 0;
+        int differing = 0;
+        for (Path path : images) {
+            BufferedImage image;
+            try {
+                image = ImageIO.read(path.toFile());
+            } catch (IOException e) {
+                image = null;
+            }
+            if (image == null) {
+                System.out.println("Unable to read the image " + path.getFileName());
+                differing++;
+                continue;
+            }
+            compared++;
+            if (!check.matches(image)) {
+                System.out.println("The histograms of " + path.getFileName() + " differ");
+                differing++;
+            }
+        }
+
+        Random random = new Random(3);
+        int synthetic = 0;
+        for (int type : IMAGE_TYPES) {
+            BufferedImage image = new BufferedImage(97, 61, type);
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    image.setRGB(x, y, random.nextInt());
+                }
+            }
+            for (BufferedImage tested : new BufferedImage[] { image, image.getSubimage(13, 7, 50, 40) }) {
+                synthetic++;
+                if (!check.matches(tested)) {
+                    System.out.println("The histograms of a " + tested.getWidth() + "x" + tested.getHeight()
+                            + " image of type " + type + " differ");
+                    differing++;
+                }
+            }
+        }
+
+        System.out.println(String.format("Compared %d images of %s and %d synthetic images, %d differ", compared,
+                directory, synthetic, differing));
+        if (differing > 0 || compared == 0) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * matches method compares the bins of the kernel with the bins of the
+     * original extraction
+     *
+     * pre: image is decoded
+     *
+     * post: returns true if every bin is the same
+     */
+    private boolean matches(BufferedImage image) {
+        if (!kernel.calculate(image, intensityBins, colorCodeBins)) {
+            return false;
+        }
+        getPixelValues(image, image.getHeight(), image.getWidth());
+        return Arrays.equals(intensityBins, legacyIntensityBins) && Arrays.equals(colorCodeBins,
+                legacyColorCodeBins);
+    }
+
+    // the original extraction of ReadImage, see getPixelValues there
+    private void getPixelValues(BufferedImage image, int height, int width) {
+        int[] pixel;
+        int samples = Math.max(3, image.getRaster().getNumBands());
+        Arrays.fill(legacyIntensityBins, 0);
+        Arrays.fill(legacyColorCodeBins, 0);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixel = image.getRaster().getPixel(x, y, new int[samples]);
+                getIntensity(pixel);
+                getColorCode(pixel);
+            }
+        }
+    }
+
+    private void getIntensity(int[] pixel) {
+        Double intensityDouble = (0.299 * pixel[0]) + (0.587 * pixel[1]) + (0.114 * pixel[2]);
+        int intensity = (int) Math.floor(intensityDouble);
+        intensity = (int) Math.floor(intensity / 10);
+        if (intensity >= 24) {
+            legacyIntensityBins[25] += 1;
+        } else {
+            legacyIntensityBins[intensity + 1] += 1;
+        }
+    }
+
+    private void getColorCode(int[] pixel) {
+        String sixBitColor = "";
+        for (int i = 0; i < 3; i++) {
+            String color = Integer.toBinaryString(pixel[i]);
+            color = String.format("%08d%n", Integer.valueOf(color));
+            sixBitColor += color.charAt(0);
+            sixBitColor += color.charAt(1);
+        }
+        int colorCode = Integer.parseInt(sixBitColor, 2);
+        legacyColorCodeBins[colorCode + 1] += 1;
+    }
+}
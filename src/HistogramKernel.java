@@ -0,0 +1,215 @@
+
+/**
+ * The HistogramKernel calculates the 25 Intensity and 64 Color Code histogram
+ * values of an image straight from the backing data of its raster.
+ *
+ * It reads the byte or int DataBuffer in bulk, uses lookup tables and shifts
+ * for the bins and does not allocate anything per pixel. The bins are the same
+ * as the ones calculated by ReadImage.getIntensity and ReadImage.getColorCode.
+ *
+ * A HistogramKernel is not thread safe, every histogram worker owns one.
+ */
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+public class HistogramKernel {
+
+    // The products are the same doubles as 0.299R, 0.587G and 0.114B in
+    // getIntensity, so adding them in the same order gives the same intensity
+    private static final double[] RED_PRODUCT = new double[256];
+    private static final double[] GREEN_PRODUCT = new double[256];
+    private static final double[] BLUE_PRODUCT = new double[256];
+
+    // INTENSITY_BIN[i] is the bin of a pixel with the floored intensity i
+    private static final int[] INTENSITY_BIN = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            RED_PRODUCT[i] = 0.299 * i;
+            GREEN_PRODUCT[i] = 0.587 * i;
+            BLUE_PRODUCT[i] = 0.114 * i;
+            INTENSITY_BIN[i] = Math.min(i / 10, 24) + 1;
+        }
+    }
+
+    // row of samples for rasters without a supported DataBuffer layout
+    private int[] rowBuffer = new int[0];
+
+    HistogramKernel() {
+    }
+
+    /**
+     * calculate method fills the bins with the histogram values of the image
+     *
+     * pre: image is decoded, intensityBins has 26 and colorCodeBins 65 elements
+     *
+     * post: returns true and the bins are populated with the histogram values,
+     * or returns false if the raster does not hold 8 bit samples, the bins are
+     * then left cleared
+     */
+    public boolean calculate(BufferedImage image, int[] intensityBins, int[] colorCodeBins) {
+        for (int i = 0; i < intensityBins.length; i++) {
+            intensityBins[i] = 0;
+        }
+        for (int i = 0; i < colorCodeBins.length; i++) {
+            colorCodeBins[i] = 0;
+        }
+
+        Raster raster = image.getRaster();
+        SampleModel sampleModel = raster.getSampleModel();
+        int numBands = raster.getNumBands();
+        if (numBands != 1 && numBands < 3) {
+            return false;
+        }
+        for (int band = 0; band < Math.min(numBands, 3); band++) {
+            if (sampleModel.getSampleSize(band) != 8) {
+                return false;
+            }
+        }
+
+        DataBuffer dataBuffer = raster.getDataBuffer();
+        if (dataBuffer instanceof DataBufferByte && dataBuffer.getNumBanks() == 1
+                && sampleModel instanceof ComponentSampleModel
+                && ((ComponentSampleModel) sampleModel).getNumBands() == numBands) {
+            calculateBytes(raster, (ComponentSampleModel) sampleModel, (DataBufferByte) dataBuffer,
+                    intensityBins, colorCodeBins);
+        } else if (dataBuffer instanceof DataBufferInt && dataBuffer.getNumBanks() == 1
+                && sampleModel instanceof SinglePixelPackedSampleModel) {
+            calculatePackedInts(raster, (SinglePixelPackedSampleModel) sampleModel, (DataBufferInt) dataBuffer,
+                    intensityBins, colorCodeBins);
+        } else {
+            calculateRows(raster, intensityBins, colorCodeBins);
+        }
+        return true;
+    }
+
+    /**
+     * calculateBytes method reads interleaved byte samples, e.g. the
+     * TYPE_3BYTE_BGR images returned by the JPEG reader
+     *
+     * pre: raster has one bank of 8 bit samples
+     *
+     * post: bins are populated
+     */
+    private void calculateBytes(Raster raster, ComponentSampleModel sampleModel, DataBufferByte dataBuffer,
+            int[] intensityBins, int[] colorCodeBins) {
+        byte[] data = dataBuffer.getData();
+        int[] bandOffsets = sampleModel.getBandOffsets();
+        int pixelStride = sampleModel.getPixelStride();
+        int scanlineStride = sampleModel.getScanlineStride();
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int rowStart = dataBuffer.getOffset()
+                + (raster.getMinY() - raster.getSampleModelTranslateY()) * scanlineStride
+                + (raster.getMinX() - raster.getSampleModelTranslateX()) * pixelStride;
+
+        if (bandOffsets.length == 1) {
+            // single band images only have the red component, green and blue are 0
+            int redOffset = bandOffsets[0];
+            for (int y = 0; y < height; y++) {
+                int index = rowStart + redOffset;
+                for (int x = 0; x < width; x++) {
+                    int red = data[index] & 0xff;
+                    intensityBins[INTENSITY_BIN[(int) RED_PRODUCT[red]]]++;
+                    colorCodeBins[((red >>> 6) << 4) + 1]++;
+                    index += pixelStride;
+                }
+                rowStart += scanlineStride;
+            }
+            return;
+        }
+
+        int redOffset = bandOffsets[0];
+        int greenOffset = bandOffsets[1];
+        int blueOffset = bandOffsets[2];
+        for (int y = 0; y < height; y++) {
+            int index = rowStart;
+            for (int x = 0; x < width; x++) {
+                addPixel(data[index + redOffset] & 0xff, data[index + greenOffset] & 0xff,
+                        data[index + blueOffset] & 0xff, intensityBins, colorCodeBins);
+                index += pixelStride;
+            }
+            rowStart += scanlineStride;
+        }
+    }
+
+    /**
+     * calculatePackedInts method reads pixels packed in one int, e.g.
+     * TYPE_INT_RGB and TYPE_INT_ARGB images
+     *
+     * pre: raster has one bank of packed 8 bit samples
+     *
+     * post: bins are populated
+     */
+    private void calculatePackedInts(Raster raster, SinglePixelPackedSampleModel sampleModel,
+            DataBufferInt dataBuffer, int[] intensityBins, int[] colorCodeBins) {
+        int[] data = dataBuffer.getData();
+        int[] bitOffsets = sampleModel.getBitOffsets();
+        int scanlineStride = sampleModel.getScanlineStride();
+        int width = raster.getWidth();
+        int height = raster.getHeight();
+        int rowStart = dataBuffer.getOffset()
+                + (raster.getMinY() - raster.getSampleModelTranslateY()) * scanlineStride
+                + (raster.getMinX() - raster.getSampleModelTranslateX());
+
+        int redShift = bitOffsets[0];
+        int greenShift = bitOffsets.length >= 3 ? bitOffsets[1] : -1;
+        int blueShift = bitOffsets.length >= 3 ? bitOffsets[2] : -1;
+        for (int y = 0; y < height; y++) {
+            int index = rowStart;
+            for (int x = 0; x < width; x++) {
+                int pixel = data[index++];
+                int red = (pixel >>> redShift) & 0xff;
+                int green = greenShift < 0 ? 0 : (pixel >>> greenShift) & 0xff;
+                int blue = blueShift < 0 ? 0 : (pixel >>> blueShift) & 0xff;
+                addPixel(red, green, blue, intensityBins, colorCodeBins);
+            }
+            rowStart += scanlineStride;
+        }
+    }
+
+    /**
+     * calculateRows method reads any other raster one row at a time into a
+     * reused buffer
+     *
+     * pre: raster holds 8 bit samples
+     *
+     * post: bins are populated
+     */
+    private void calculateRows(Raster raster, int[] intensityBins, int[] colorCodeBins) {
+        int numBands = raster.getNumBands();
+        int width = raster.getWidth();
+        if (rowBuffer.length < width * numBands) {
+            rowBuffer = new int[width * numBands];
+        }
+        for (int y = raster.getMinY(); y < raster.getMinY() + raster.getHeight(); y++) {
+            raster.getPixels(raster.getMinX(), y, width, 1, rowBuffer);
+            for (int x = 0, index = 0; x < width; x++, index += numBands) {
+                int red = rowBuffer[index];
+                int green = numBands == 1 ? 0 : rowBuffer[index + 1];
+                int blue = numBands == 1 ? 0 : rowBuffer[index + 2];
+                addPixel(red, green, blue, intensityBins, colorCodeBins);
+            }
+        }
+    }
+
+    /**
+     * addPixel method increases the intensity and color code bins of one pixel
+     *
+     * pre: R G B values between 0 and 255
+     *
+     * post: count of the respective bins is increased by 1
+     */
+    private static void addPixel(int red, int green, int blue, int[] intensityBins, int[] colorCodeBins) {
+        double intensity = RED_PRODUCT[red] + GREEN_PRODUCT[green] + BLUE_PRODUCT[blue];
+        intensityBins[INTENSITY_BIN[(int) intensity]]++;
+        colorCodeBins[(((red >>> 6) << 4) | ((green >>> 6) << 2) | (blue >>> 6)) + 1]++;
+    }
+}
@@ -0,0 +1,586 @@
+
+/**
+ * The HnswIndex finds the images closest to a query image without comparing
+ * the query with every image. It is a hierarchical navigable small world graph
+ * over the rows of the normalized feature matrix.
+ *
+ * Every image is linked to up to M close images on each of its layers, 2M on
+ * layer 0, and only a few images reach the upper layers. A search walks down
+ * the layers greedily and then explores the neighbourhood on layer 0 keeping
+ * the efSearch closest images, so a larger efSearch gives a better recall at
+ * the cost of more distance calculations. The graph is built for the Manhattan
+ * distance, searches may use the weighted Manhattan distance of the relevance
+ * feedback.
+ *
+ * The parameters are set with
+ * -Dcbir.hnswM (16), -Dcbir.hnswEfConstruction (100) and -Dcbir.efSearch (64).
+ *
+ * The index is saved as name.bin next to the feature files. Its header holds a
+ * CRC32 fingerprint of the feature matrix, an index of other features is not
+ * loaded and is built again.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+public class HnswIndex {
+
+    static final int DEFAULT_M = Math.max(2, Integer.getInteger("cbir.hnswM", 16));
+    static final int DEFAULT_EF_CONSTRUCTION = Math.max(1, Integer.getInteger("cbir.hnswEfConstruction", 100));
+    static final int DEFAULT_EF_SEARCH = Math.max(1, Integer.getInteger("cbir.efSearch", 64));
+
+    private static final int MAGIC = 0x57534e48; // "HNSW"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int IO_CHUNK = 64 * 1024;
+    private static final DistanceKernel KERNEL = DistanceKernel.load();
+
+    private final DoubleMatrix matrix;
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private final long fingerprint;
+
+    // levels[i] is the top layer of image i, -1 while it is not inserted
+    private final int[] levels;
+    // count and links of every image on layer 0, maxM0 + 1 ints per image
+    private final int[] layer0;
+    // count and links of every image on layers 1 to levels[i], m + 1 ints per layer
+    private final int[][] upperLayers;
+    private int entryPoint = 0;
+    private int maxLevel = -1;
+
+    private final ThreadLocal<Searcher> searchers = ThreadLocal.withInitial(() -> new Searcher());
+
+    /**
+     * The Searcher holds the scratch arrays of a search, every thread owns one.
+     * An image is visited in the current search if its stamp is the current
+     * stamp, so the visited marks do not have to be cleared.
+     */
+    private final class Searcher {
+        final int[] visited = new int[levels.length];
+        int stamp = 0;
+        final CandidateQueue candidates = new CandidateQueue();
+        TopK results = new TopK(0);
+        int[] order = new int[0];
+        double[] distances = new double[0];
+
+        void newSearch() {
+            if (++stamp == 0) {
+                Arrays.fill(visited, 0);
+                stamp = 1;
+            }
+            candidates.clear();
+        }
+
+        boolean visit(int image) {
+            if (visited[image] == stamp) {
+                return false;
+            }
+            visited[image] = stamp;
+            return true;
+        }
+
+        TopK results(int ef) {
+            if (results.capacity() != ef) {
+                results = new TopK(ef);
+            }
+            results.clear();
+            return results;
+        }
+
+        // drains the results into order and distances from the closest image
+        int drain(TopK closest) {
+            if (order.length < closest.size()) {
+                order = new int[closest.capacity()];
+                distances = new double[closest.capacity()];
+            }
+            int count = closest.drainTo(order, 0);
+            for (int rank = 0; rank < count; rank++) {
+                distances[rank] = closest.distanceAt(rank);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * The CandidateQueue is a growable min heap of images by distance, the
+     * closest candidate is explored next
+     */
+    private static final class CandidateQueue {
+        private int[] images = new int[64];
+        private double[] distances = new double[64];
+        private int size = 0;
+
+        void clear() {
+            size = 0;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        double peekDistance() {
+            return distances[0];
+        }
+
+        void push(int image, double distance) {
+            if (size == images.length) {
+                images = Arrays.copyOf(images, 2 * size);
+                distances = Arrays.copyOf(distances, 2 * size);
+            }
+            int index = size++;
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (distances[parent] <= distance) {
+                    break;
+                }
+                images[index] = images[parent];
+                distances[index] = distances[parent];
+                index = parent;
+            }
+            images[index] = image;
+            distances[index] = distance;
+        }
+
+        int pop() {
+            int closest = images[0];
+            int image = images[--size];
+            double distance = distances[size];
+            int index = 0;
+            int half = size >>> 1;
+            while (index < half) {
+                int child = 2 * index + 1;
+                if (child + 1 < size && distances[child + 1] < distances[child]) {
+                    child++;
+                }
+                if (distances[child] >= distance) {
+                    break;
+                }
+                images[index] = images[child];
+                distances[index] = distances[child];
+                index = child;
+            }
+            images[index] = image;
+            distances[index] = distance;
+            return closest;
+        }
+    }
+
+    private HnswIndex(DoubleMatrix matrix, int m, int efConstruction, long fingerprint) {
+        this.matrix = matrix;
+        this.m = m;
+        this.maxM0 = 2 * m;
+        this.efConstruction = efConstruction;
+        this.fingerprint = fingerprint;
+        this.levels = new int[matrix.rows()];
+        this.layer0 = new int[Math.multiplyExact(matrix.rows(), maxM0 + 1)];
+        this.upperLayers = new int[matrix.rows()][];
+        Arrays.fill(levels, -1);
+    }
+
+    /**
+     * open method loads the index saved as name.bin, or builds and saves it if
+     * there is no index of the matrix
+     *
+     * pre: matrix holds a feature vector per image from row 1
+     *
+     * post: returns the index of the matrix
+     */
+    public static HnswIndex open(DoubleMatrix matrix, String name) {
+        HnswIndex index = load(matrix, name);
+        if (index == null) {
+            long start = System.nanoTime();
+            index = build(matrix, DEFAULT_M, DEFAULT_EF_CONSTRUCTION);
+            System.out.println(String.format("Built the index of %d images in %.2f s", matrix.rows() - 1,
+                    (System.nanoTime() - start) / 1e9));
+            index.save(name);
+        }
+        return index;
+    }
+
+    /**
+     * build method inserts every image of the matrix into a new index
+     *
+     * pre: matrix holds a feature vector per image from row 1
+     *
+     * post: returns the index
+     */
+    public static HnswIndex build(DoubleMatrix matrix, int m, int efConstruction) {
+        HnswIndex index = new HnswIndex(matrix, m, efConstruction, fingerprint(matrix));
+        // the levels are drawn from a fixed seed, so a rebuild gives the same graph
+        Random random = new Random(42);
+        double levelFactor = 1 / Math.log(m);
+        for (int image = 1; image < matrix.rows(); image++) {
+            int level = (int) (-Math.log(1 - random.nextDouble()) * levelFactor);
+            index.insert(image, level);
+        }
+        return index;
+    }
+
+    public int size() {
+        return levels.length - 1;
+    }
+
+    /**
+     * search method finds the images closest to an image of the matrix
+     *
+     * pre: picNo is an image of the matrix, weight is null for the Manhattan
+     * distance, ef is the number of images kept while searching
+     *
+     * post: order[from], order[from + 1], ... hold the k closest images found in
+     * ascending order of distance, returns the number of images written
+     */
+    public int search(int picNo, double[] weight, int k, int ef, int[] order, int from) {
+        if (maxLevel < 0 || k <= 0) {
+            return 0;
+        }
+        Searcher searcher = searchers.get();
+        int query = picNo * matrix.cols();
+        int current = entryPoint;
+        double currentDistance = distance(query, current, weight);
+        for (int level = maxLevel; level > 0; level--) {
+            current = greedy(query, current, currentDistance, level, weight);
+            currentDistance = distance(query, current, weight);
+        }
+        TopK closest = searchLayer(query, current, currentDistance, Math.max(ef, k), 0, weight, searcher);
+        int count = searcher.drain(closest);
+        count = Math.min(count, k);
+        System.arraycopy(searcher.order, 0, order, from, count);
+        return count;
+    }
+
+    /**
+     * insert method links an image into the graph
+     *
+     * pre: image is not inserted, level is its top layer
+     *
+     * post: the image is linked to its closest images on layers 0 to level
+     */
+    private void insert(int image, int level) {
+        levels[image] = level;
+        if (level > 0) {
+            upperLayers[image] = new int[level * (m + 1)];
+        }
+        if (maxLevel < 0) {
+            entryPoint = image;
+            maxLevel = level;
+            return;
+        }
+
+        Searcher searcher = searchers.get();
+        int query = image * matrix.cols();
+        int current = entryPoint;
+        double currentDistance = distance(query, current, null);
+        for (int l = maxLevel; l > level; l--) {
+            current = greedy(query, current, currentDistance, l, null);
+            currentDistance = distance(query, current, null);
+        }
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            TopK closest = searchLayer(query, current, currentDistance, efConstruction, l, null, searcher);
+            int count = searcher.drain(closest);
+            int maxLinks = (l == 0) ? maxM0 : m;
+            int[] links = links(image, l);
+            int offset = linkOffset(image, l);
+            links[offset] = selectNeighbours(searcher.order, searcher.distances, count, m, links, offset + 1);
+            for (int n = 1; n <= links[offset]; n++) {
+                addLink(links[offset + n], image, l, maxLinks);
+            }
+            current = searcher.order[0];
+            currentDistance = searcher.distances[0];
+        }
+        if (level > maxLevel) {
+            entryPoint = image;
+            maxLevel = level;
+        }
+    }
+
+    /**
+     * selectNeighbours method picks up to max of the candidates, sorted by
+     * distance, skipping candidates that are closer to an image already picked
+     * than to the base image. This keeps links in every direction instead of
+     * only to one cluster.
+     *
+     * pre: candidates and distances are sorted from the closest
+     *
+     * post: the picked images are written to out from outOffset, returns their
+     * number
+     */
+    private int selectNeighbours(int[] candidates, double[] distances, int count, int max, int[] out,
+            int outOffset) {
+        int cols = matrix.cols();
+        int selected = 0;
+        for (int c = 0; c < count && selected < max; c++) {
+            int candidate = candidates[c];
+            boolean keep = true;
+            for (int s = 0; s < selected; s++) {
+                if (distance(candidate * cols, out[outOffset + s], null) < distances[c]) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                out[outOffset + selected++] = candidate;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * addLink method links image to the target, if the target has too many
+     * links they are selected again
+     *
+     * pre: image is linked to target on the layer
+     *
+     * post: target is linked back to image unless a better link set excludes it
+     */
+    private void addLink(int target, int image, int level, int maxLinks) {
+        int[] links = links(target, level);
+        int offset = linkOffset(target, level);
+        int count = links[offset];
+        if (count < maxLinks) {
+            links[offset + 1 + count] = image;
+            links[offset] = count + 1;
+            return;
+        }
+
+        int targetRow = target * matrix.cols();
+        TopK candidates = new TopK(count + 1);
+        for (int n = 1; n <= count; n++) {
+            candidates.offer(links[offset + n], distance(targetRow, links[offset + n], null));
+        }
+        candidates.offer(image, distance(targetRow, image, null));
+        int[] order = new int[count + 1];
+        double[] distances = new double[count + 1];
+        int total = candidates.drainTo(order, 0);
+        for (int rank = 0; rank < total; rank++) {
+            distances[rank] = candidates.distanceAt(rank);
+        }
+        links[offset] = selectNeighbours(order, distances, total, maxLinks, links, offset + 1);
+    }
+
+    /**
+     * greedy method moves to the closest linked image until no link is closer
+     *
+     * pre: current is an image on the layer
+     *
+     * post: returns the closest image found
+     */
+    private int greedy(int query, int current, double currentDistance, int level, double[] weight) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int[] links = links(current, level);
+            int offset = linkOffset(current, level);
+            for (int n = 1; n <= links[offset]; n++) {
+                int neighbour = links[offset + n];
+                double d = distance(query, neighbour, weight);
+                if (d < currentDistance || (d == currentDistance && neighbour < current)) {
+                    current = neighbour;
+                    currentDistance = d;
+                    changed = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * searchLayer method explores the layer from the entry image, always
+     * expanding the closest candidate, until no candidate is closer than the
+     * ef closest images found
+     *
+     * pre: entry is an image on the layer
+     *
+     * post: returns the ef closest images found
+     */
+    private TopK searchLayer(int query, int entry, double entryDistance, int ef, int level, double[] weight,
+            Searcher searcher) {
+        searcher.newSearch();
+        TopK closest = searcher.results(ef);
+        CandidateQueue candidates = searcher.candidates;
+        searcher.visit(entry);
+        closest.offer(entry, entryDistance);
+        candidates.push(entry, entryDistance);
+
+        while (!candidates.isEmpty()) {
+            if (candidates.peekDistance() > closest.threshold()) {
+                break;
+            }
+            int current = candidates.pop();
+            int[] links = links(current, level);
+            int offset = linkOffset(current, level);
+            for (int n = 1; n <= links[offset]; n++) {
+                int neighbour = links[offset + n];
+                if (!searcher.visit(neighbour)) {
+                    continue;
+                }
+                double d = distance(query, neighbour, weight);
+                if (d <= closest.threshold() && closest.offer(neighbour, d)) {
+                    candidates.push(neighbour, d);
+                }
+            }
+        }
+        return closest;
+    }
+
+    private int[] links(int image, int level) {
+        return (level == 0) ? layer0 : upperLayers[image];
+    }
+
+    private int linkOffset(int image, int level) {
+        return (level == 0) ? image * (maxM0 + 1) : (level - 1) * (m + 1);
+    }
+
+    private double distance(int query, int image, double[] weight) {
+        int cols = matrix.cols();
+        return (weight == null) ? KERNEL.distance(matrix.data(), query, image * cols, cols)
+                : KERNEL.weightedDistance(matrix.data(), weight, query, image * cols, cols);
+    }
+
+    /**
+     * fingerprint method calculates the CRC32 of the matrix values
+     *
+     * pre: none
+     *
+     * post: returns the checksum of the rows, cols and values of the matrix
+     */
+    static long fingerprint(DoubleMatrix matrix) {
+        CRC32 checksum = new CRC32();
+        ByteBuffer chunk = ByteBuffer.allocate(IO_CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+        chunk.putInt(matrix.rows()).putInt(matrix.cols());
+        double[] values = matrix.data();
+        int length = matrix.rows() * matrix.cols();
+        for (int i = 0; i < length; i++) {
+            if (chunk.remaining() < Double.BYTES) {
+                chunk.flip();
+                checksum.update(chunk);
+                chunk.clear();
+            }
+            chunk.putDouble(values[i]);
+        }
+        chunk.flip();
+        checksum.update(chunk);
+        return checksum.getValue();
+    }
+
+    /**
+     * save method writes the index to name.bin in the pwd, through a temporary
+     * file that is moved over name.bin
+     *
+     * pre: index is built
+     *
+     * post: name.bin holds the header, the levels and the links of every layer
+     */
+    public void save(String name) {
+        Path indexFile = Paths.get("").toAbsolutePath().resolve(name + ".bin");
+        Path tempFile = indexFile.resolveSibling(name + ".bin.tmp");
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(HEADER_SIZE).putInt(matrix.rows()).putInt(matrix.cols())
+                    .putInt(m).putInt(efConstruction).putInt(entryPoint).putInt(maxLevel).putInt(0)
+                    .putLong(fingerprint);
+            header.clear();
+            writeFully(channel, header);
+
+            ByteBuffer chunk = ByteBuffer.allocate(IO_CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+            writeInts(channel, chunk, levels);
+            writeInts(channel, chunk, layer0);
+            for (int[] upper : upperLayers) {
+                if (upper != null) {
+                    writeInts(channel, chunk, upper);
+                }
+            }
+            chunk.flip();
+            writeFully(channel, chunk);
+            channel.force(false);
+        } catch (IOException e) {
+            System.out.println("Unable to write into " + name + ".bin file");
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Unable to write into " + name + ".bin file");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * load method reads the index saved as name.bin
+     *
+     * pre: matrix holds a feature vector per image from row 1
+     *
+     * post: returns the index, or null if there is no index or it was built for
+     * other features
+     */
+    public static HnswIndex load(DoubleMatrix matrix, String name) {
+        Path indexFile = Paths.get("").toAbsolutePath().resolve(name + ".bin");
+        if (!Files.exists(indexFile)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("file is shorter than the header");
+            }
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION || data.getInt(8) != HEADER_SIZE) {
+                throw new IOException("unknown file format");
+            }
+            if (data.getInt(12) != matrix.rows() || data.getInt(16) != matrix.cols()
+                    || data.getLong(40) != fingerprint(matrix)) {
+                System.out.println("The index " + name + ".bin does not match the features, building it again");
+                return null;
+            }
+            HnswIndex index = new HnswIndex(matrix, data.getInt(20), data.getInt(24), data.getLong(40));
+            index.entryPoint = data.getInt(28);
+            index.maxLevel = data.getInt(32);
+
+            data.position(HEADER_SIZE);
+            IntBuffer values = data.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            values.get(index.levels);
+            values.get(index.layer0);
+            for (int image = 1; image < index.levels.length; image++) {
+                if (index.levels[image] > 0) {
+                    index.upperLayers[image] = new int[index.levels[image] * (index.m + 1)];
+                    values.get(index.upperLayers[image]);
+                }
+            }
+            return index;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("The index " + name + ".bin is damaged, building it again");
+            return null;
+        }
+    }
+
+    private static void writeInts(FileChannel channel, ByteBuffer chunk, int[] values) throws IOException {
+        for (int value : values) {
+            if (!chunk.hasRemaining()) {
+                chunk.flip();
+                writeFully(channel, chunk);
+                chunk.clear();
+            }
+            chunk.putInt(value);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
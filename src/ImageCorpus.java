@@ -0,0 +1,131 @@
+
+/**
+ * The ImageCorpus class finds the image files of the database.
+ *
+ * The images are read from the directory given by -Dcbir.imageDir, or from
+ * the images directory next to the classes if it is not set. Sub directories
+ * are scanned as well.
+ */
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Stream;
+
+public class ImageCorpus {
+
+    private static final String[] IMAGE_EXTENSIONS = { ".jpg", ".jpeg", ".png", ".gif", ".bmp" };
+
+    private ImageCorpus() {
+    }
+
+    /**
+     * imageDirectory method returns the directory that holds the images
+     *
+     * pre: none
+     *
+     * post: returns the value of -Dcbir.imageDir, else the images directory on
+     * the class path, else images in the pwd
+     */
+    public static Path imageDirectory() {
+        String configured = System.getProperty("cbir.imageDir");
+        if (configured != null) {
+            return Paths.get(configured).toAbsolutePath();
+        }
+        java.net.URL imagesUrl = ImageCorpus.class.getResource("images");
+        if (imagesUrl != null) {
+            try {
+                return Paths.get(imagesUrl.toURI());
+            } catch (URISyntaxException | FileSystemNotFoundException e) {
+                // not a directory on the file system, e.g. inside a jar
+            }
+        }
+        return Paths.get("images").toAbsolutePath();
+    }
+
+    /**
+     * scan method lists the image files below the directory
+     *
+     * pre: directory exists
+     *
+     * post: returns the image files in natural order, so 2.jpg comes before
+     * 10.jpg
+     */
+    public static List<Path> scan(Path directory) throws IOException {
+        List<Path> images = new ArrayList<Path>();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.filter(path -> Files.isRegularFile(path) && isImage(path)).forEach(images::add);
+        }
+        images.sort(Comparator.comparing((Path path) -> path.getParent().toString())
+                .thenComparing(path -> path.getFileName().toString(), ImageCorpus::compareNames));
+        return images;
+    }
+
+    /**
+     * relativeName method returns the name of the image that is stored in the
+     * manifest
+     *
+     * pre: image is below the directory
+     *
+     * post: returns the relative path with / as separator
+     */
+    public static String relativeName(Path directory, Path image) {
+        return directory.relativize(image).toString().replace('\\', '/');
+    }
+
+    private static boolean isImage(Path path) {
+        String name = path.getFileName().toString().toLowerCase(Locale.ROOT);
+        for (String extension : IMAGE_EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * compareNames method compares file names whose base names are numbers by
+     * their value, and any other names alphabetically
+     */
+    private static int compareNames(String first, String second) {
+        String firstBase = baseName(first);
+        String secondBase = baseName(second);
+        boolean firstNumber = isNumber(firstBase);
+        boolean secondNumber = isNumber(secondBase);
+        if (firstNumber && secondNumber) {
+            int result = Integer.compare(firstBase.length(), secondBase.length());
+            if (result == 0) {
+                result = firstBase.compareTo(secondBase);
+            }
+            return (result == 0) ? first.compareTo(second) : result;
+        }
+        if (firstNumber != secondNumber) {
+            return firstNumber ? -1 : 1;
+        }
+        return first.compareTo(second);
+    }
+
+    private static String baseName(String name) {
+        int dot = name.lastIndexOf('.');
+        return (dot < 0) ? name : name.substring(0, dot);
+    }
+
+    private static boolean isNumber(String name) {
+        if (name.isEmpty() || name.length() > 1 && name.charAt(0) == '0') {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) < '0' || name.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,141 @@
+
+/**
+ * The ImageDecoder class decodes an image file, optionally reading only every
+ * n-th pixel of every n-th row through ImageReadParam.setSourceSubsampling.
+ *
+ * The subsampling is chosen with one of
+ * (a) -Dcbir.sampleStride=n reads every n-th pixel in both directions
+ * (b) -Dcbir.sampleBudget=p picks the smallest stride that reads at most p pixels
+ * Both default to reading every pixel. The histogram values of a subsampled
+ * image are scaled up to the full image size with scaleBins, so they are
+ * comparable with the values of fully read images.
+ *
+ * A ImageDecoder is not thread safe, every decode thread owns one.
+ */
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+public class ImageDecoder {
+
+    static final int SAMPLE_STRIDE = Math.max(1, Integer.getInteger("cbir.sampleStride", 1));
+    static final long SAMPLE_BUDGET = Math.max(0, Long.getLong("cbir.sampleBudget", 0));
+
+    // full size of the last decoded image
+    private int width;
+    private int height;
+
+    ImageDecoder() {
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * isSubsampling method tells if the images are not read completely
+     *
+     * pre: none
+     *
+     * post: returns true if a sample stride or budget is configured
+     */
+    static boolean isSubsampling() {
+        return SAMPLE_STRIDE > 1 || SAMPLE_BUDGET > 0;
+    }
+
+    /**
+     * stride method returns the configured stride for an image
+     *
+     * pre: full width and height of the image
+     *
+     * post: returns the sample stride, 1 reads every pixel
+     */
+    static int stride(int width, int height) {
+        if (SAMPLE_BUDGET > 0) {
+            long pixels = (long) width * height;
+            int stride = (int) Math.ceil(Math.sqrt(pixels / (double) SAMPLE_BUDGET));
+            while (pixelCount(width, height, stride) > SAMPLE_BUDGET && stride < Math.max(width, height)) {
+                stride++;
+            }
+            return Math.max(1, stride);
+        }
+        return SAMPLE_STRIDE;
+    }
+
+    /**
+     * decode method decodes the image file with the configured stride
+     *
+     * pre: content of the image file
+     *
+     * post: returns the decoded image or null if the format is not supported,
+     * getWidth and getHeight return the full size of the image
+     */
+    public BufferedImage decode(byte[] content) throws IOException {
+        return decode(content, 0);
+    }
+
+    /**
+     * decode method decodes the image file reading every stride-th pixel, a
+     * stride of 0 uses the configured stride
+     *
+     * pre: content of the image file
+     *
+     * post: returns the decoded image or null if the format is not supported,
+     * getWidth and getHeight return the full size of the image
+     */
+    public BufferedImage decode(byte[] content, int stride) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(content))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                width = reader.getWidth(0);
+                height = reader.getHeight(0);
+                ImageReadParam param = reader.getDefaultReadParam();
+                int sampleStride = (stride > 0) ? stride : stride(width, height);
+                if (sampleStride > 1) {
+                    param.setSourceSubsampling(sampleStride, sampleStride, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * scaleBins method scales the histogram values of a subsampled image to the
+     * full image size
+     *
+     * pre: bins counted over the pixels of the subsampled image
+     *
+     * post: each bin is multiplied by full area / sampled area and rounded
+     */
+    static void scaleBins(int[] bins, long fullArea, long sampledArea) {
+        if (fullArea == sampledArea || sampledArea == 0) {
+            return;
+        }
+        double scale = fullArea / (double) sampledArea;
+        for (int i = 0; i < bins.length; i++) {
+            bins[i] = (int) Math.round(bins[i] * scale);
+        }
+    }
+
+    private static long pixelCount(int width, int height, int stride) {
+        return (long) ((width + stride - 1) / stride) * ((height + stride - 1) / stride);
+    }
+}
@@ -0,0 +1,170 @@
+
+/**
+ * The ImageManifest records the images whose histogram values are stored in
+ * the feature files.
+ *
+ * Each line of Manifest.txt holds the following values of one image
+ * index,size,mtime,hash,fileName
+ * where index is the image number, size and mtime are the file size and last
+ * modified time in milliseconds, hash is the SHA-256 of the file content and
+ * fileName is the path of the image relative to the image directory.
+ *
+ * The manifest is only written after the feature files it describes, so an
+ * image that was extracted after the last save is extracted again.
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ImageManifest {
+
+    /**
+     * The Entry class holds the manifest values of one image
+     */
+    static final class Entry {
+        final int index;
+        final long size;
+        final long modifiedTime;
+        final String hash;
+        final String fileName;
+
+        Entry(int index, long size, long modifiedTime, String hash, String fileName) {
+            this.index = index;
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.hash = hash;
+            this.fileName = fileName;
+        }
+
+        /**
+         * sameFile method compares the file attributes without reading the file
+         *
+         * pre: none
+         *
+         * post: returns true if size and last modified time are unchanged
+         */
+        boolean sameFile(long size, long modifiedTime) {
+            return this.size == size && this.modifiedTime == modifiedTime;
+        }
+
+        Entry withIndex(int newIndex) {
+            return new Entry(newIndex, size, modifiedTime, hash, fileName);
+        }
+    }
+
+    private final Path manifestFile;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    ImageManifest(String fileName) {
+        manifestFile = Paths.get("").toAbsolutePath().resolve(fileName);
+    }
+
+    /**
+     * load method reads the manifest file from the pwd
+     *
+     * pre: none
+     *
+     * post: returns false if there is no manifest file, otherwise the entries
+     * are populated with its lines
+     */
+    public boolean load() {
+        entries.clear();
+        try (BufferedReader reader = Files.newBufferedReader(manifestFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] cols = line.split(",", 5);
+                if (cols.length < 5) {
+                    continue;
+                }
+                Entry entry = new Entry(Integer.parseInt(cols[0]), Long.parseLong(cols[1]), Long.parseLong(cols[2]),
+                        cols[3], cols[4]);
+                entries.put(entry.fileName, entry);
+            }
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("The manifest " + manifestFile.getFileName() + " is damaged, extracting all images");
+            entries.clear();
+            return false;
+        }
+    }
+
+    /**
+     * save method writes the manifest to a temporary file and then moves it
+     * over the manifest file, so the manifest is never half written
+     *
+     * pre: feature files that the entries describe are saved
+     *
+     * post: Manifest.txt is saved in the pwd
+     */
+    public void save() throws IOException {
+        Path tempFile = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            List<Entry> sorted = new ArrayList<Entry>(entries.values());
+            sorted.sort(Comparator.comparingInt(entry -> entry.index));
+            for (Entry entry : sorted) {
+                writer.write(entry.index + "," + entry.size + "," + entry.modifiedTime + "," + entry.hash + ","
+                        + entry.fileName);
+                writer.newLine();
+            }
+        }
+        Files.move(tempFile, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public Entry get(String fileName) {
+        return entries.get(fileName);
+    }
+
+    public void put(Entry entry) {
+        entries.put(entry.fileName, entry);
+    }
+
+    public Entry remove(String fileName) {
+        return entries.remove(fileName);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    public Collection<Entry> entries() {
+        return entries.values();
+    }
+
+    /**
+     * hash method calculates the SHA-256 of the file content
+     *
+     * pre: content of the image file
+     *
+     * post: returns the hash as a hexadecimal string
+     */
+    static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >>> 4) & 0xf, 16));
+                builder.append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+
+/**
+ * The IndexBenchmark measures how many of the true closest images the
+ * HnswIndex and the IvfPqIndex find and how fast, compared with ranking every
+ * image.
+ *
+ * It ranks up to 200 query images with CalculateUtil and with the indexes for
+ * several efSearch and nprobe values and prints the recall@k, the share of the
+ * true k closest images an index returns, and the mean time per query.
+ *
+ * It is run from the pwd that holds the feature files with
+ * java IndexBenchmark [k [imageCount]]
+ * k is 10 by default. If imageCount is given a synthetic corpus of imageCount
+ * clustered feature vectors is ranked instead of the feature files.
+ */
+
+import java.util.HashSet;
+import java.util.Random;
+
+public class IndexBenchmark {
+
+    private static final int QUERIES = 200;
+    private static final int[] EF_SEARCH = { 16, 32, 64, 128, 256, 512 };
+    private static final int[] NPROBE = { 1, 2, 4, 8, 16, 32, 64 };
+
+    /**
+     * main method runs the benchmark
+     *
+     * pre: args are optionally k and the number of synthetic images
+     *
+     * post: prints the build time, recall@k and query times
+     */
+    public static void main(String[] args) {
+        int k = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+        CalculateUtil calculate = new CalculateUtil();
+        DoubleMatrix matrix = (args.length > 1) ? synthetic(Integer.parseInt(args[1]))
+                : features(calculate);
+        if (matrix == null) {
+            return;
+        }
+        int imageCount = matrix.rows() - 1;
+        k = Math.min(k, imageCount);
+        double[] weight = new double[matrix.cols()];
+        calculate.calculateWeight(weight, new HashSet<Integer>(), matrix, 1);
+
+        Random random = new Random(7);
+        int[] queries = new int[Math.min(QUERIES, imageCount)];
+        for (int q = 0; q < queries.length; q++) {
+            queries[q] = 1 + random.nextInt(imageCount);
+        }
+
+        int[] order = new int[imageCount + 1];
+        boolean[][] truth = new boolean[queries.length][];
+        long start = System.nanoTime();
+        for (int q = 0; q < queries.length; q++) {
+            int count = calculate.calculateDistanceMetrix(matrix, weight, queries[q], order, k);
+            truth[q] = new boolean[imageCount + 1];
+            for (int rank = 1; rank <= count; rank++) {
+                truth[q][order[rank]] = true;
+            }
+        }
+        double exactTime = (System.nanoTime() - start) / 1e6 / queries.length;
+        System.out.println(String.format("Brute force: %.3f ms/query", exactTime));
+
+        start = System.nanoTime();
+        HnswIndex hnsw = HnswIndex.build(matrix, HnswIndex.DEFAULT_M, HnswIndex.DEFAULT_EF_CONSTRUCTION);
+        System.out.println(String.format("Built the HNSW index of %d images in %.2f s (M %d, efConstruction %d)",
+                imageCount, (System.nanoTime() - start) / 1e9, HnswIndex.DEFAULT_M,
+                HnswIndex.DEFAULT_EF_CONSTRUCTION));
+        for (int ef : EF_SEARCH) {
+            if (ef < k) {
+                continue;
+            }
+            long found = 0;
+            start = System.nanoTime();
+            for (int q = 0; q < queries.length; q++) {
+                found += found(truth[q], order, hnsw.search(queries[q], weight, k, ef, order, 1));
+            }
+            report("efSearch", ef, k, found, queries.length, System.nanoTime() - start, exactTime);
+        }
+
+        start = System.nanoTime();
+        IvfPqIndex ivf = IvfPqIndex.build(matrix, IvfPqIndex.DEFAULT_LISTS, IvfPqIndex.DEFAULT_SUBSPACES);
+        System.out.println(String.format("Built the IVF-PQ index of %d images in %.2f s (%d lists, %d subspaces)",
+                imageCount, (System.nanoTime() - start) / 1e9, ivf.lists(), IvfPqIndex.DEFAULT_SUBSPACES));
+        for (int nprobe : NPROBE) {
+            if (nprobe > ivf.lists()) {
+                break;
+            }
+            long found = 0;
+            start = System.nanoTime();
+            for (int q = 0; q < queries.length; q++) {
+                found += found(truth[q], order, ivf.search(queries[q], weight, k, nprobe, order, 1));
+            }
+            report("nprobe", nprobe, k, found, queries.length, System.nanoTime() - start, exactTime);
+        }
+    }
+
+    // number of the count images from order[1] that are among the true closest
+    private static int found(boolean[] truth, int[] order, int count) {
+        int found = 0;
+        for (int rank = 1; rank <= count; rank++) {
+            if (truth[order[rank]]) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private static void report(String parameter, int value, int k, long found, int queries, long nanos,
+            double exactTime) {
+        double indexTime = nanos / 1e6 / queries;
+        System.out.println(String.format("%-8s %4d: recall@%d %.4f, %.3f ms/query (%.1fx)", parameter, value, k,
+                found / (double) ((long) k * queries), indexTime, exactTime / indexTime));
+    }
+
+    /**
+     * features method normalizes the feature files in the pwd like the
+     * MainFrame does for the color code + intensity ranking
+     *
+     * pre: none
+     *
+     * post: returns the normalized feature matrix, or null if the files are missing
+     */
+    private static DoubleMatrix features(CalculateUtil calculate) {
+        IntMatrix intensityMatrix = FeatureStore.load("Intensity", 26, false);
+        IntMatrix colorCodeMatrix = FeatureStore.load("ColorCode", 65, false);
+        IntMatrix imageSizeMatrix = FeatureStore.load("ImageSize", 3, false);
+        if (intensityMatrix == null || colorCodeMatrix == null || imageSizeMatrix == null) {
+            System.out.println("The feature files are missing, start the application to extract them");
+            return null;
+        }
+        int imageCount = Math.min(intensityMatrix.rows(), Math.min(colorCodeMatrix.rows(), imageSizeMatrix.rows())) - 1;
+        intensityMatrix.setRows(imageCount + 1);
+        colorCodeMatrix.setRows(imageCount + 1);
+        int[] imageSize = new int[imageCount + 1];
+        for (int i = 1; i <= imageCount; i++) {
+            imageSize[i] = imageSizeMatrix.get(i, 1) * imageSizeMatrix.get(i, 2);
+        }
+        DoubleMatrix matrix = new DoubleMatrix(imageCount + 1, intensityMatrix.cols() + colorCodeMatrix.cols() - 1);
+        calculate.calculateGaussianNormalization(matrix, intensityMatrix, colorCodeMatrix, imageSize);
+        return matrix;
+    }
+
+    /**
+     * synthetic method creates feature vectors around random cluster centers,
+     * like the histograms of similar images
+     *
+     * pre: imageCount > 0
+     *
+     * post: returns a matrix of imageCount feature vectors of 89 columns from row 1
+     */
+    private static DoubleMatrix synthetic(int imageCount) {
+        int cols = 90;
+        int clusters = Math.max(1, imageCount / 100);
+        Random random = new Random(11);
+        double[][] centers = new double[clusters][cols];
+        for (double[] center : centers) {
+            for (int j = 1; j < cols; j++) {
+                center[j] = random.nextGaussian();
+            }
+        }
+        DoubleMatrix matrix = new DoubleMatrix(imageCount + 1, cols);
+        for (int i = 1; i <= imageCount; i++) {
+            double[] center = centers[random.nextInt(clusters)];
+            for (int j = 1; j < cols; j++) {
+                matrix.set(i, j, center[j] + 0.3 * random.nextGaussian());
+            }
+        }
+        return matrix;
+    }
+}
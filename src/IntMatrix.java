@@ -0,0 +1,149 @@
+
+/**
+ * The IntMatrix class stores a matrix of int values in a single row-major
+ * buffer instead of an array of rows.
+ *
+ * The number of columns is fixed, rows can be added and removed. The buffer
+ * grows like an ArrayList, so appending rows is cheap. A matrix can also wrap
+ * a read-only buffer, e.g. a memory-mapped feature file, which is copied to
+ * the heap the first time the matrix is changed.
+ */
+
+import java.nio.IntBuffer;
+
+public class IntMatrix {
+
+    private final int cols;
+    private int rows;
+    private IntBuffer data;
+
+    IntMatrix(int cols) {
+        this(0, cols);
+    }
+
+    IntMatrix(int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+        this.data = IntBuffer.allocate(Math.multiplyExact(rows, cols));
+    }
+
+    IntMatrix(int rows, int cols, IntBuffer data) {
+        if (data.capacity() < Math.multiplyExact(rows, cols)) {
+            throw new IllegalArgumentException("buffer holds less than " + rows + " rows");
+        }
+        this.rows = rows;
+        this.cols = cols;
+        this.data = data;
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    public int cols() {
+        return cols;
+    }
+
+    public int get(int row, int col) {
+        return data.get(row * cols + col);
+    }
+
+    public void set(int row, int col, int value) {
+        writable().put(row * cols + col, value);
+    }
+
+    /**
+     * buffer method returns the values of all rows
+     *
+     * pre: none
+     *
+     * post: returns a read-only view of rows * cols values
+     */
+    public IntBuffer buffer() {
+        IntBuffer view = data.asReadOnlyBuffer();
+        view.clear();
+        view.limit(rows * cols);
+        return view;
+    }
+
+    /**
+     * setRows method changes the number of rows
+     *
+     * pre: none
+     *
+     * post: the matrix has the given number of rows, added rows are 0
+     */
+    public void setRows(int newRows) {
+        int size = Math.multiplyExact(newRows, cols);
+        ensureCapacity(size);
+        if (size > rows * cols) {
+            IntBuffer target = writable();
+            for (int i = rows * cols; i < size; i++) {
+                target.put(i, 0);
+            }
+        }
+        rows = newRows;
+    }
+
+    /**
+     * addRow method appends a row of 0s
+     *
+     * pre: none
+     *
+     * post: returns the index of the new row
+     */
+    public int addRow() {
+        setRows(rows + 1);
+        return rows - 1;
+    }
+
+    /**
+     * appendRow method appends a row with the given values
+     *
+     * pre: values has cols elements
+     *
+     * post: returns the index of the new row
+     */
+    public int appendRow(int[] values) {
+        int row = rows;
+        int size = Math.multiplyExact(rows + 1, cols);
+        ensureCapacity(size);
+        writable().put(row * cols, values, 0, cols);
+        rows++;
+        return row;
+    }
+
+    public void copyRow(int from, int to) {
+        IntBuffer target = writable();
+        for (int j = 0; j < cols; j++) {
+            target.put(to * cols + j, target.get(from * cols + j));
+        }
+    }
+
+    public void clearRow(int row) {
+        IntBuffer target = writable();
+        for (int j = 0; j < cols; j++) {
+            target.put(row * cols + j, 0);
+        }
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > data.capacity()) {
+            copyToHeap((int) Math.min(Integer.MAX_VALUE - 8,
+                    Math.max(size, data.capacity() + (long) (data.capacity() >> 1))));
+        }
+    }
+
+    private IntBuffer writable() {
+        if (data.isReadOnly()) {
+            copyToHeap(data.capacity());
+        }
+        return data;
+    }
+
+    private void copyToHeap(int capacity) {
+        IntBuffer copy = IntBuffer.allocate(capacity);
+        copy.put(buffer());
+        data = copy;
+    }
+}
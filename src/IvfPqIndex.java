@@ -0,0 +1,691 @@
+
+/**
+ * The IvfPqIndex finds the images closest to a query image by comparing the
+ * query with a few lists of images and with compact codes of their features.
+ *
+ * The feature vectors are clustered by k-means, every image is put in the
+ * list of its closest cluster center. A search ranks the centers by their
+ * weighted distance to the query and only scans the nprobe closest lists, so
+ * a larger nprobe gives a better recall at the cost of scanning more images.
+ *
+ * Within a list an image is stored as the product quantization code of its
+ * residual, its features minus the center. The features are split into
+ * subspaces and every subspace has a codebook of 256 residuals learned by
+ * k-means, so an image takes one byte per subspace. For a list the search
+ * first calculates a table of the weighted distance of the query residual to
+ * every codebook entry, the distance of an image is then the sum of one table
+ * value per subspace. The weights can therefore change with every query.
+ * The closest -Dcbir.rescore (400) images found are ranked again with the
+ * exact distance.
+ *
+ * The centers and codebooks are trained once on a sample of the images, the
+ * images of the sample are assigned to their closest centers and images are
+ * encoded by the threads of a ForkJoinPool, and images can be added to a
+ * trained index at any time.
+ *
+ * The index is saved as name.bin next to the feature files, like the
+ * HnswIndex. Its header holds the CRC32 fingerprint of the feature matrix, an
+ * index of other features or with other parameters is not loaded and is
+ * built again.
+ *
+ * The parameters are set with -Dcbir.ivfLists (the square root of the number
+ * of images), -Dcbir.pqSubspaces (8) and -Dcbir.nprobe (8).
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+public class IvfPqIndex {
+
+    static final int DEFAULT_LISTS = Integer.getInteger("cbir.ivfLists", 0);
+    static final int DEFAULT_SUBSPACES = Math.max(1, Integer.getInteger("cbir.pqSubspaces", 8));
+    static final int DEFAULT_NPROBE = Math.max(1, Integer.getInteger("cbir.nprobe", 8));
+
+    private static final int MAGIC = 0x50465649; // "IVFP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int IO_CHUNK = 64 * 1024;
+    private static final int RESCORE = Math.max(1, Integer.getInteger("cbir.rescore", 400));
+    private static final int THREADS = Math.max(1,
+            Integer.getInteger("cbir.queryThreads", Runtime.getRuntime().availableProcessors()));
+    private static final int CODEBOOK_SIZE = 256;
+    // k-means is trained on at most this many images per center
+    private static final int SAMPLES_PER_CENTER = 32;
+    private static final int TRAIN_ITERATIONS = 10;
+    // images encoded by one task
+    private static final int ENCODE_CHUNK = 4096;
+    // vectors assigned to their closest center by one task
+    private static final int ASSIGN_CHUNK = 1024;
+    private static final DistanceKernel KERNEL = DistanceKernel.load();
+
+    private final DoubleMatrix matrix;
+    private final int dims;
+    private final int lists;
+    private final int subspaces;
+    // lists * dims cluster centers
+    private final double[] centers;
+    // first feature of every subspace, subspaceStart[subspaces] is dims
+    private final int[] subspaceStart;
+    // CODEBOOK_SIZE residuals of every subspace, the ones of subspace s start
+    // at CODEBOOK_SIZE * subspaceStart[s]
+    private final double[] codebooks;
+
+    private final int[][] listImages;
+    private final byte[][] listCodes;
+    private final int[] listSizes;
+    private final long fingerprint;
+    private int size = 0;
+
+    private IvfPqIndex(DoubleMatrix matrix, int lists, int subspaces, long fingerprint) {
+        this.matrix = matrix;
+        this.fingerprint = fingerprint;
+        this.dims = matrix.cols() - 1;
+        this.lists = lists;
+        this.subspaces = subspaces;
+        this.centers = new double[lists * dims];
+        this.subspaceStart = new int[subspaces + 1];
+        for (int s = 0; s <= subspaces; s++) {
+            subspaceStart[s] = s * dims / subspaces;
+        }
+        this.codebooks = new double[CODEBOOK_SIZE * dims];
+        this.listImages = new int[lists][];
+        this.listCodes = new byte[lists][];
+        this.listSizes = new int[lists];
+        for (int list = 0; list < lists; list++) {
+            listImages[list] = new int[16];
+            listCodes[list] = new byte[16 * subspaces];
+        }
+    }
+
+    /**
+     * open method loads the index saved as name.bin, or builds and saves it if
+     * there is no index of the matrix with these parameters
+     *
+     * pre: matrix holds a feature vector per image from row 1, lists is 0 for
+     * the default number of lists
+     *
+     * post: returns the index of the matrix
+     */
+    public static IvfPqIndex open(DoubleMatrix matrix, String name, int lists, int subspaces) {
+        IvfPqIndex index = load(matrix, name, lists, subspaces);
+        if (index == null) {
+            long start = System.nanoTime();
+            index = build(matrix, lists, subspaces);
+            System.out.println(String.format("Built the IVF-PQ index of %d images in %.2f s", index.size(),
+                    (System.nanoTime() - start) / 1e9));
+            index.save(name);
+        }
+        return index;
+    }
+
+    /**
+     * build method trains an index on the images of the matrix and adds all of
+     * them
+     *
+     * pre: matrix holds a feature vector per image from row 1, lists is 0 for
+     * the default number of lists
+     *
+     * post: returns the index
+     */
+    public static IvfPqIndex build(DoubleMatrix matrix, int lists, int subspaces) {
+        IvfPqIndex index = train(matrix, lists, subspaces);
+        index.add(1, matrix.rows());
+        return index;
+    }
+
+    /**
+     * train method learns the cluster centers and the codebooks from a sample of
+     * the images of the matrix
+     *
+     * pre: matrix holds a feature vector per image from row 1, lists is 0 for
+     * the default number of lists
+     *
+     * post: returns an empty index, which is not trained if the matrix has no
+     * images
+     */
+    public static IvfPqIndex train(DoubleMatrix matrix, int lists, int subspaces) {
+        int images = matrix.rows() - 1;
+        int dims = matrix.cols() - 1;
+        IvfPqIndex index = new IvfPqIndex(matrix, lists(images, lists), subspaces(dims, subspaces),
+                HnswIndex.fingerprint(matrix));
+        if (images == 0) {
+            return index;
+        }
+        lists = index.lists;
+        Random random = new Random(42);
+
+        int sampleCount = (int) Math.min(images, (long) SAMPLES_PER_CENTER * Math.max(lists, CODEBOOK_SIZE));
+        int[] sample = sample(images, sampleCount, random);
+        double[] vectors = new double[sampleCount * dims];
+        for (int s = 0; s < sampleCount; s++) {
+            System.arraycopy(matrix.data(), (sample[s] + 1) * matrix.cols() + 1, vectors, s * dims, dims);
+        }
+        double[] centers = kMeans(vectors, sampleCount, dims, lists, random);
+        System.arraycopy(centers, 0, index.centers, 0, centers.length);
+
+        // the residuals of the sample train the codebook of every subspace
+        for (int s = 0; s < sampleCount; s++) {
+            int center = index.closestCenter(vectors, s * dims);
+            for (int j = 0; j < dims; j++) {
+                vectors[s * dims + j] -= index.centers[center * dims + j];
+            }
+        }
+        for (int sub = 0; sub < index.subspaces; sub++) {
+            int start = index.subspaceStart[sub];
+            int width = index.subspaceStart[sub + 1] - start;
+            double[] residuals = new double[sampleCount * width];
+            for (int s = 0; s < sampleCount; s++) {
+                System.arraycopy(vectors, s * dims + start, residuals, s * width, width);
+            }
+            double[] codebook = kMeans(residuals, sampleCount, width, CODEBOOK_SIZE, random);
+            System.arraycopy(codebook, 0, index.codebooks, CODEBOOK_SIZE * start, codebook.length);
+        }
+        return index;
+    }
+
+    /**
+     * The EncodeTask calculates the list and the codes of the images from to to
+     */
+    private final class EncodeTask extends RecursiveAction {
+        private final int from;
+        private final int to;
+        private final int[] assigned;
+        private final byte[] codes;
+        private final int first;
+
+        EncodeTask(int from, int to, int first, int[] assigned, byte[] codes) {
+            this.from = from;
+            this.to = to;
+            this.first = first;
+            this.assigned = assigned;
+            this.codes = codes;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > ENCODE_CHUNK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new EncodeTask(from, middle, first, assigned, codes),
+                        new EncodeTask(middle, to, first, assigned, codes));
+                return;
+            }
+            double[] residual = new double[dims];
+            for (int image = from; image < to; image++) {
+                assigned[image - first] = encode(image, residual, codes, (image - first) * subspaces);
+            }
+        }
+    }
+
+    /**
+     * add method adds the images from to to of the matrix, the images are
+     * encoded in parallel and appended to their lists in image order
+     *
+     * pre: the index is trained, the images are not added yet
+     *
+     * post: the images are found by search
+     */
+    public void add(int from, int to) {
+        int count = to - from;
+        if (count <= 0) {
+            return;
+        }
+        int[] assigned = new int[count];
+        byte[] codes = new byte[count * subspaces];
+        if (THREADS > 1 && count > ENCODE_CHUNK) {
+            ForkJoinPool pool = new ForkJoinPool(THREADS);
+            try {
+                pool.invoke(new EncodeTask(from, to, from, assigned, codes));
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            double[] residual = new double[dims];
+            for (int image = from; image < to; image++) {
+                assigned[image - from] = encode(image, residual, codes, (image - from) * subspaces);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            append(assigned[i], from + i, codes, i * subspaces);
+        }
+        size += count;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // number of lists of an index of images, lists is 0 for the default
+    private static int lists(int images, int lists) {
+        if (lists <= 0) {
+            lists = (int) Math.max(1, Math.round(Math.sqrt(images)));
+        }
+        return Math.max(1, Math.min(lists, images));
+    }
+
+    private static int subspaces(int dims, int subspaces) {
+        return Math.max(1, Math.min(subspaces, dims));
+    }
+
+    public int lists() {
+        return lists;
+    }
+
+    /**
+     * encode method finds the closest center of an image and the codes of its
+     * residual
+     *
+     * pre: residual has dims elements
+     *
+     * post: codes holds the code of every subspace from offset, returns the list
+     */
+    private int encode(int image, double[] residual, byte[] codes, int offset) {
+        double[] values = matrix.data();
+        int row = image * matrix.cols() + 1;
+        int center = closestCenter(values, row);
+        for (int j = 0; j < dims; j++) {
+            residual[j] = values[row + j] - centers[center * dims + j];
+        }
+        for (int sub = 0; sub < subspaces; sub++) {
+            int start = subspaceStart[sub];
+            int width = subspaceStart[sub + 1] - start;
+            int best = 0;
+            double bestDistance = Double.POSITIVE_INFINITY;
+            for (int code = 0; code < CODEBOOK_SIZE; code++) {
+                int entry = CODEBOOK_SIZE * start + code * width;
+                double distance = 0.0;
+                for (int j = 0; j < width; j++) {
+                    distance += Math.abs(residual[start + j] - codebooks[entry + j]);
+                }
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = code;
+                }
+            }
+            codes[offset + sub] = (byte) best;
+        }
+        return center;
+    }
+
+    private void append(int list, int image, byte[] codes, int offset) {
+        int listSize = listSizes[list];
+        if (listSize == listImages[list].length) {
+            listImages[list] = Arrays.copyOf(listImages[list], 2 * listSize);
+            listCodes[list] = Arrays.copyOf(listCodes[list], 2 * listSize * subspaces);
+        }
+        listImages[list][listSize] = image;
+        System.arraycopy(codes, offset, listCodes[list], listSize * subspaces, subspaces);
+        listSizes[list] = listSize + 1;
+    }
+
+    private int closestCenter(double[] vector, int offset) {
+        int best = 0;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (int center = 0; center < lists; center++) {
+            double distance = 0.0;
+            int c = center * dims;
+            for (int j = 0; j < dims && distance < bestDistance; j++) {
+                distance += Math.abs(vector[offset + j] - centers[c + j]);
+            }
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = center;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * search method finds the images closest to an image of the matrix
+     *
+     * pre: picNo is an image of the matrix, weight is null for the Manhattan
+     * distance, nprobe is the number of lists scanned
+     *
+     * post: order[from], order[from + 1], ... hold the k closest images found in
+     * ascending order of exact distance, returns the number of images written
+     */
+    public int search(int picNo, double[] weight, int k, int nprobe, int[] order, int from) {
+        if (size == 0 || k <= 0) {
+            return 0;
+        }
+        double[] values = matrix.data();
+        int cols = matrix.cols();
+        int query = picNo * cols;
+
+        TopK probes = new TopK(Math.min(nprobe, lists));
+        for (int center = 0; center < lists; center++) {
+            double distance = 0.0;
+            int c = center * dims;
+            for (int j = 0; j < dims; j++) {
+                distance += weight(weight, j) * Math.abs(values[query + 1 + j] - centers[c + j]);
+            }
+            probes.offer(center, distance);
+        }
+        int[] probeOrder = new int[probes.size()];
+        int probeCount = probes.drainTo(probeOrder, 0);
+
+        TopK candidates = new TopK(Math.min(size, Math.max(k, RESCORE)));
+        double[] table = new double[subspaces * CODEBOOK_SIZE];
+        double[] residual = new double[dims];
+        for (int p = 0; p < probeCount; p++) {
+            int list = probeOrder[p];
+            for (int j = 0; j < dims; j++) {
+                residual[j] = values[query + 1 + j] - centers[list * dims + j];
+            }
+            // weighted distance of the query residual to every codebook entry
+            for (int sub = 0; sub < subspaces; sub++) {
+                int start = subspaceStart[sub];
+                int width = subspaceStart[sub + 1] - start;
+                for (int code = 0; code < CODEBOOK_SIZE; code++) {
+                    int entry = CODEBOOK_SIZE * start + code * width;
+                    double distance = 0.0;
+                    for (int j = 0; j < width; j++) {
+                        distance += weight(weight, start + j) * Math.abs(residual[start + j] - codebooks[entry + j]);
+                    }
+                    table[sub * CODEBOOK_SIZE + code] = distance;
+                }
+            }
+            int[] images = listImages[list];
+            byte[] codes = listCodes[list];
+            for (int i = 0, c = 0; i < listSizes[list]; i++, c += subspaces) {
+                double distance = 0.0;
+                for (int sub = 0, t = 0; sub < subspaces; sub++, t += CODEBOOK_SIZE) {
+                    distance += table[t + (codes[c + sub] & 0xff)];
+                }
+                candidates.offer(images[i], distance);
+            }
+        }
+
+        int[] candidateOrder = new int[candidates.size()];
+        int count = candidates.drainTo(candidateOrder, 0);
+        TopK closest = new TopK(Math.min(k, count));
+        for (int c = 0; c < count; c++) {
+            int row = candidateOrder[c] * cols;
+            closest.offer(candidateOrder[c], (weight == null) ? KERNEL.distance(values, query, row, cols)
+                    : KERNEL.weightedDistance(values, weight, query, row, cols));
+        }
+        return closest.drainTo(order, from);
+    }
+
+    /**
+     * save method writes the index to name.bin in the pwd, through a temporary
+     * file that is moved over name.bin
+     *
+     * pre: index is built
+     *
+     * post: name.bin holds the header, the centers, the codebooks and the
+     * images and codes of every list
+     */
+    public void save(String name) {
+        Path indexFile = Paths.get("").toAbsolutePath().resolve(name + ".bin");
+        Path tempFile = indexFile.resolveSibling(name + ".bin.tmp");
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(HEADER_SIZE).putInt(matrix.rows()).putInt(matrix.cols())
+                    .putInt(lists).putInt(subspaces).putInt(size).putLong(fingerprint);
+            header.clear();
+            writeFully(channel, header);
+
+            ByteBuffer chunk = ByteBuffer.allocate(IO_CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+            for (double value : centers) {
+                flushIfFull(channel, chunk, Double.BYTES).putDouble(value);
+            }
+            for (double value : codebooks) {
+                flushIfFull(channel, chunk, Double.BYTES).putDouble(value);
+            }
+            for (int list = 0; list < lists; list++) {
+                flushIfFull(channel, chunk, Integer.BYTES).putInt(listSizes[list]);
+            }
+            for (int list = 0; list < lists; list++) {
+                for (int i = 0; i < listSizes[list]; i++) {
+                    flushIfFull(channel, chunk, Integer.BYTES).putInt(listImages[list][i]);
+                }
+                for (int c = 0; c < listSizes[list] * subspaces; c++) {
+                    flushIfFull(channel, chunk, 1).put(listCodes[list][c]);
+                }
+            }
+            chunk.flip();
+            writeFully(channel, chunk);
+            channel.force(false);
+        } catch (IOException e) {
+            System.out.println("Unable to write into " + name + ".bin file");
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Unable to write into " + name + ".bin file");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * load method reads the index saved as name.bin
+     *
+     * pre: matrix holds a feature vector per image from row 1, lists is 0 for
+     * the default number of lists
+     *
+     * post: returns the index, or null if there is no index or it was built for
+     * other features or parameters
+     */
+    public static IvfPqIndex load(DoubleMatrix matrix, String name, int lists, int subspaces) {
+        Path indexFile = Paths.get("").toAbsolutePath().resolve(name + ".bin");
+        if (!Files.exists(indexFile)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException("file is shorter than the header");
+            }
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION || data.getInt(8) != HEADER_SIZE) {
+                throw new IOException("unknown file format");
+            }
+            int images = matrix.rows() - 1;
+            if (data.getInt(12) != matrix.rows() || data.getInt(16) != matrix.cols()
+                    || data.getInt(20) != lists(images, lists)
+                    || data.getInt(24) != subspaces(matrix.cols() - 1, subspaces)
+                    || data.getLong(32) != HnswIndex.fingerprint(matrix)) {
+                System.out.println("The index " + name + ".bin does not match the features, building it again");
+                return null;
+            }
+            IvfPqIndex index = new IvfPqIndex(matrix, data.getInt(20), data.getInt(24), data.getLong(32));
+            data.position(HEADER_SIZE);
+            for (int i = 0; i < index.centers.length; i++) {
+                index.centers[i] = data.getDouble();
+            }
+            for (int i = 0; i < index.codebooks.length; i++) {
+                index.codebooks[i] = data.getDouble();
+            }
+            for (int list = 0; list < index.lists; list++) {
+                index.listSizes[list] = data.getInt();
+            }
+            for (int list = 0; list < index.lists; list++) {
+                int listSize = index.listSizes[list];
+                index.listImages[list] = new int[Math.max(16, listSize)];
+                index.listCodes[list] = new byte[Math.max(16, listSize) * index.subspaces];
+                for (int i = 0; i < listSize; i++) {
+                    index.listImages[list][i] = data.getInt();
+                }
+                data.get(index.listCodes[list], 0, listSize * index.subspaces);
+                index.size += listSize;
+            }
+            if (index.size != data.getInt(28) || data.hasRemaining()) {
+                throw new IOException("lists do not match the header");
+            }
+            return index;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("The index " + name + ".bin is damaged, building it again");
+            return null;
+        }
+    }
+
+    // writes the chunk if it has no room for size more bytes
+    private static ByteBuffer flushIfFull(FileChannel channel, ByteBuffer chunk, int size) throws IOException {
+        if (chunk.remaining() < size) {
+            chunk.flip();
+            writeFully(channel, chunk);
+            chunk.clear();
+        }
+        return chunk;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // weight of feature j of the residuals, the weight array starts at 1
+    private static double weight(double[] weight, int j) {
+        return (weight == null) ? 1.0 : weight[j + 1];
+    }
+
+    /**
+     * kMeans method clusters vectors with the Manhattan distance
+     *
+     * pre: vectors holds count vectors of dims values, count > 0
+     *
+     * post: returns k centers of dims values, the mean of the vectors closest to
+     * each. A center without vectors is moved to a random vector.
+     */
+    private static double[] kMeans(double[] vectors, int count, int dims, int k, Random random) {
+        double[] centers = new double[k * dims];
+        int[] initial = sample(count, Math.min(k, count), random);
+        for (int c = 0; c < k; c++) {
+            int vector = (c < initial.length) ? initial[c] : random.nextInt(count);
+            System.arraycopy(vectors, vector * dims, centers, c * dims, dims);
+        }
+        int[] assigned = new int[count];
+        int[] members = new int[k];
+        ForkJoinPool pool = (THREADS > 1 && count > ASSIGN_CHUNK) ? new ForkJoinPool(THREADS) : null;
+        try {
+            for (int iteration = 0; iteration < TRAIN_ITERATIONS; iteration++) {
+                AssignTask assign = new AssignTask(vectors, dims, centers, k, assigned, 0, count);
+                boolean changed = (pool != null) ? pool.invoke(assign) : assign.compute();
+                if (!changed && iteration > 0) {
+                    break;
+                }
+                update(vectors, count, dims, centers, k, assigned, members, random);
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+        return centers;
+    }
+
+    /**
+     * The AssignTask assigns the vectors from to to to their closest centers.
+     * Every vector is compared with the centers in the same order as by a
+     * single thread, so the assignment does not depend on the threads.
+     */
+    private static final class AssignTask extends RecursiveTask<Boolean> {
+        private final double[] vectors;
+        private final int dims;
+        private final double[] centers;
+        private final int k;
+        private final int[] assigned;
+        private final int from;
+        private final int to;
+
+        AssignTask(double[] vectors, int dims, double[] centers, int k, int[] assigned, int from, int to) {
+            this.vectors = vectors;
+            this.dims = dims;
+            this.centers = centers;
+            this.k = k;
+            this.assigned = assigned;
+            this.from = from;
+            this.to = to;
+        }
+
+        // returns true if a vector is assigned to another center than before
+        @Override
+        protected Boolean compute() {
+            if (to - from > ASSIGN_CHUNK) {
+                int middle = (from + to) >>> 1;
+                AssignTask first = new AssignTask(vectors, dims, centers, k, assigned, from, middle);
+                AssignTask second = new AssignTask(vectors, dims, centers, k, assigned, middle, to);
+                invokeAll(first, second);
+                return first.join() | second.join();
+            }
+            boolean changed = false;
+            for (int v = from; v < to; v++) {
+                int best = 0;
+                double bestDistance = Double.POSITIVE_INFINITY;
+                for (int c = 0; c < k; c++) {
+                    double distance = 0.0;
+                    for (int j = 0; j < dims && distance < bestDistance; j++) {
+                        distance += Math.abs(vectors[v * dims + j] - centers[c * dims + j]);
+                    }
+                    if (distance < bestDistance) {
+                        bestDistance = distance;
+                        best = c;
+                    }
+                }
+                changed |= assigned[v] != best;
+                assigned[v] = best;
+            }
+            return changed;
+        }
+    }
+
+    /**
+     * update method moves every center to the mean of its vectors
+     *
+     * pre: assigned holds the center of every vector, members has k elements
+     *
+     * post: centers holds the means, a center without vectors is moved to a
+     * random vector
+     */
+    private static void update(double[] vectors, int count, int dims, double[] centers, int k, int[] assigned,
+            int[] members, Random random) {
+        Arrays.fill(centers, 0.0);
+        Arrays.fill(members, 0);
+        for (int v = 0; v < count; v++) {
+            members[assigned[v]]++;
+            for (int j = 0; j < dims; j++) {
+                centers[assigned[v] * dims + j] += vectors[v * dims + j];
+            }
+        }
+        for (int c = 0; c < k; c++) {
+            if (members[c] == 0) {
+                System.arraycopy(vectors, random.nextInt(count) * dims, centers, c * dims, dims);
+                continue;
+            }
+            for (int j = 0; j < dims; j++) {
+                centers[c * dims + j] /= members[c];
+            }
+        }
+    }
+
+    // count distinct numbers of 0 to n - 1 in random order
+    private static int[] sample(int n, int count, Random random) {
+        int[] numbers = new int[n];
+        for (int i = 0; i < n; i++) {
+            numbers[i] = i;
+        }
+        for (int i = 0; i < count; i++) {
+            int j = i + random.nextInt(n - i);
+            int swap = numbers[i];
+            numbers[i] = numbers[j];
+            numbers[j] = swap;
+        }
+        return Arrays.copyOf(numbers, count);
+    }
+}
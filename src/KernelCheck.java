@@ -0,0 +1,93 @@
+
+/**
+ * The KernelCheck compares the distances of the kernel DistanceKernel.load
+ * returns with the distances of the ScalarDistanceKernel.
+ *
+ * It calculates the distance, weighted distance and the distances to several
+ * query rows of random rows of every width up to 128 columns with both
+ * kernels. The VectorDistanceKernel adds the lanes up in another order and
+ * multiplies and adds the weighted distances in one rounding, so its
+ * distances may differ from the scalar ones in the last bits. A distance
+ * agrees if it is within TOLERANCE of the scalar distance, relative to its
+ * size, and the distance of a row to itself is 0.
+ *
+ * It is run with the module of the kernel to check, e.g.
+ * java --add-modules jdk.incubator.vector -cp out KernelCheck
+ * and exits with status 1 if a distance does not agree.
+ */
+
+import java.util.Random;
+
+public class KernelCheck {
+
+    private static final double TOLERANCE = 1e-12;
+    private static final int ROWS = 64;
+
+    /**
+     * main method runs the check
+     *
+     * pre: none
+     *
+     * post: prints the kernel checked and the largest relative difference,
+     * exits with status 1 if a distance does not agree
+     */
+    public static void main(String[] args) {
+        DistanceKernel kernel = DistanceKernel.load();
+        DistanceKernel scalar = new ScalarDistanceKernel();
+        if (kernel instanceof ScalarDistanceKernel) {
+            System.out.println("The vector distance kernel is not available, start with --add-modules "
+                    + "jdk.incubator.vector and the vector classes on the class path to check it");
+        }
+
+        Random random = new Random(89);
+        double worst = 0.0;
+        boolean passed = true;
+        for (int cols = 1; cols <= 128; cols++) {
+            double[] values = new double[(ROWS + 1) * cols];
+            double[] weight = new double[cols];
+            for (int i = 1; i <= ROWS; i++) {
+                for (int j = 1; j < cols; j++) {
+                    values[i * cols + j] = random.nextGaussian();
+                }
+            }
+            for (int j = 1; j < cols; j++) {
+                weight[j] = random.nextDouble() / cols;
+            }
+            int[] queries = { cols, 2 * cols, 3 * cols };
+            double[] distances = new double[queries.length];
+            for (int i = 1; i <= ROWS; i++) {
+                int row = i * cols;
+                worst = Math.max(worst, difference(kernel.distance(values, cols, row, cols),
+                        scalar.distance(values, cols, row, cols)));
+                worst = Math.max(worst, difference(kernel.weightedDistance(values, weight, cols, row, cols),
+                        scalar.weightedDistance(values, weight, cols, row, cols)));
+                for (double[] batchWeight : new double[][] { null, weight }) {
+                    kernel.distances(values, batchWeight, queries, row, cols, distances);
+                    for (int q = 0; q < queries.length; q++) {
+                        double expected = (batchWeight == null) ? scalar.distance(values, queries[q], row, cols)
+                                : scalar.weightedDistance(values, batchWeight, queries[q], row, cols);
+                        worst = Math.max(worst, difference(distances[q], expected));
+                    }
+                }
+                if (kernel.distance(values, row, row, cols) != 0.0
+                        || kernel.weightedDistance(values, weight, row, row, cols) != 0.0) {
+                    System.out.println("The distance of a row of " + cols + " columns to itself is not 0");
+                    passed = false;
+                }
+            }
+        }
+        passed &= worst <= TOLERANCE;
+        System.out.println(String.format("%s: largest relative difference to the scalar kernel %.2e "
+                + "(tolerance %.0e)", kernel.getClass().getSimpleName(), worst, TOLERANCE));
+        if (!passed) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+    }
+
+    // difference of a distance to the scalar one, relative to its size
+    private static double difference(double actual, double expected) {
+        double difference = Math.abs(actual - expected);
+        return (difference == 0.0) ? 0.0 : difference / Math.max(Math.abs(expected), Double.MIN_NORMAL);
+    }
+}
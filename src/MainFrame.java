@@ -5,37 +5,53 @@
  * 
  * It is responsible for the following two things 
  * (a) MainFrame sets up the GUI with a Frame containing two panels embedded in it.
- * (b) MainFrame Instantiates ReadImage class and then reads the ColorCode.txt and Intensity.txt 
+ * (b) MainFrame Instantiates ReadImage class and then reads the ColorCode.bin and Intensity.bin 
  * to sort the images based on ColorCode and Intensity respectively using the Manhattan distance metric.
  * 
+ * The RetrievalEngine is built and the queries of the RetrievalSession are ranked on a
+ * query thread, one at a time, so the event dispatch thread never waits for a scan. A query
+ * that is still ranking when the user clicks again is cancelled, the progress of a scan is
+ * shown in the progressBar and the ranking is shown on the event dispatch thread when done.
+ * 
  * @author Divya Kamath
  */
 
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Font;
-import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.awt.Image;
 import java.awt.Toolkit;
 
 import javax.swing.ImageIcon;
-import javax.swing.JButton;
-import javax.swing.JCheckBox;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.Map.Entry;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
 
 public class MainFrame extends JFrame implements ActionListener {
 
+    // -Dcbir.liveFeedback=true ranks the images again whenever a relevance checkbox is toggled
+    private static final boolean LIVE_FEEDBACK = Boolean.getBoolean("cbir.liveFeedback");
+
     // The main frame contains two panels, rightPanel to display the selected image
     // and
     // leftPanel to display the images in order
@@ -49,42 +65,65 @@ public class MainFrame extends JFrame implements ActionListener {
     private JLabel selectedImage;
     private JScrollPane scroll = null;
     private ImageIcon defaultImage;
-    private JPanel imageOrder = null;
-    private JCheckBox checkBox;
+    private ResultList imageOrder = null;
+    private JProgressBar progressBar;
     private Toolkit tk;
 
-    private Set<Integer> relevanceSet;
-    // buttonHashMap stores the image number as key and button with images as value
-    private HashMap<Integer, JPanel> buttonHashMap;
-
-    // buttonOrder stores the order in which the images are to be displayed
-    private int[] buttonOrder;
+    // imagePaths stores the file of each image number and previews its 300x300
+    // thumbnail
+    private Path[] imagePaths;
+    private ThumbnailStore.Thumbnail[] previews;
+    // icons stores the 100x100 thumbnail of each image number, the icons are
+    // read through the thumbnailCache when their cell is drawn
+    private ThumbnailStore.Thumbnail[] icons;
+    private ThumbnailCache thumbnailCache;
+
+    // imageSize, intensityMatrix and colorCodeMatrix stores the size and the
+    // intensity and colorCode histogram values of all the images, they are read
+    // on the query thread by loadImages
     private int[] imageSize;
+    private IntMatrix intensityMatrix;
+    private IntMatrix colorCodeMatrix;
+    // the engine holds the normalized images, the session the query of the user,
+    // both are built and used on the query thread only
+    private volatile RetrievalEngine engine;
+    private volatile RetrievalSession session;
+    private final ExecutorService queryExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cbir-query");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // latestQuery numbers the queries, a query that is not the latest one is cancelled
+    private final AtomicInteger latestQuery = new AtomicInteger();
+
+    // the fields below are used on the event dispatch thread only
+    // shownOrder stores the order in which the images are displayed, from element 1
+    private int[] shownOrder;
+    private int shownCount;
+    // shownRelevant stores the images that are shown as relevant
+    private final Set<Integer> shownRelevant = new HashSet<Integer>();
+    // relevanceEdits counts the relevance checkboxes toggled, so a ranking does not
+    // show the relevant images of the session from before a newer toggle
+    private int relevanceEdits = 0;
     private int picNo = 0;
 
-    // intensityMatrix and colorCodeMatrix stores the intensity and colorCode
-    // histogram values of all the images
-    private int[][] intensityMatrix;
-    private int[][] colorCodeMatrix;
-    private double[][] normalizedFeatureMartix;
-    private double[] weight;
-    private CalculateUtil calculate;
-
     /**
      * constructor
      * 
      * pre: none
      * 
-     * post: Following 3 things are set up
+     * post: Following 4 things are set up
      * (a) Sets up the default GUI
-     * (b) Instantiates ReadImage object to create ColorCode.txt and Intensity.txt
-     * (c) reads the Intensity.txt and ColorCode.txt files
+     * (b) Instantiates ReadImage object to update ColorCode.bin and Intensity.bin
+     * (c) extracts the images with ReadImage, maps the Intensity.bin, ColorCode.bin
+     * and ImageSize.bin files and builds the RetrievalEngine and the session of the
+     * user on the query thread, see loadImages
+     * (d) shows the images in a ResultList
      * 
      */
 
     MainFrame() {
         tk = this.getToolkit();
-        relevanceSet = new HashSet<Integer>();
         // HEADING START
         JLabel heading = new JLabel();
         heading.setText("CONTENT BASED IMAGE RETRIEVAL SYSTEM");
@@ -123,7 +162,12 @@ public class MainFrame extends JFrame implements ActionListener {
         selectedImage = new JLabel();
         selectedImage.setBounds(75, 25, 300, 300);
 
+        progressBar = new JProgressBar(0, 100);
+        progressBar.setBounds(15, 330, 420, 14);
+        progressBar.setVisible(false);
+
         leftPanel.add(selectedImage);
+        leftPanel.add(progressBar);
         leftPanel.add(reset);
         leftPanel.add(relevance);
         leftPanel.add(colorButton);
@@ -136,55 +180,33 @@ public class MainFrame extends JFrame implements ActionListener {
         rightPanel.setBackground(new Color(0x39796b));
         rightPanel.setBounds(500, 80, 500, 550);
 
-        imageSize = new int[101];
-        buttonOrder = new int[101];
-        buttonOrder[0] = 0;
-        buttonHashMap = new HashMap<Integer, JPanel>();
-
-        for (int i = 1; i <= 100; i++) {
-            java.net.URL ImageUrl = this.getClass().getResource("images/" + i + ".jpg");
-            ImageIcon icon = new ImageIcon(tk.getImage(ImageUrl));
-            if (icon != null) {
-                imageSize[i] = icon.getIconWidth() * icon.getIconHeight();
-                Image imageIcon = icon.getImage();
-                Image newingIcon = imageIcon.getScaledInstance(100, 100, java.awt.Image.SCALE_SMOOTH);
-                icon = new ImageIcon(newingIcon);
-
-                JButton imgButton = new JButton(icon);
-                imgButton.setToolTipText(i + ".jpg");
-                imgButton.setPreferredSize(new Dimension(100, 75));
-                imgButton.addActionListener(new IconButtonHandler(i, icon));
-                imgButton.setDisabledIcon(icon);
-
-                checkBox = new JCheckBox("Relevant");
-                checkBox.setSelected(false);
-                checkBox.setFocusable(false);
-                checkBox.setName(i + "");
-                checkBox.addActionListener(new CheckBoxHandler(i, checkBox));
-
-                JPanel imgSet = new JPanel();
-                imgSet.add(imgButton);
-                imgSet.add(checkBox);
-                imgSet.setPreferredSize(new Dimension(100, 110));
-
-                buttonHashMap.put(i, imgSet);
-                buttonOrder[i] = i;
-            }
-        }
-        imageOder();
+        thumbnailCache = new ThumbnailCache();
+
+        // the query thread extracts the images and builds the engine before it
+        // ranks the first query, the images are shown when it is done
+        progressBar.setIndeterminate(true);
+        progressBar.setVisible(true);
+        queryExecutor.execute(() -> loadImages());
 
         // RIGHT PANEL ENDS
 
         // MAIN FRAME START
         this.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        this.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                System.out.println(thumbnailCache.report());
+                if (session != null) {
+                    System.out.println(session.report());
+                    System.out.println(engine.report());
+                }
+            }
+        });
         this.setSize(1024, 1024);
         this.setResizable(false);
         this.getContentPane().setBackground(new Color(0x263238));
         this.setLocationRelativeTo(null);
 
-        // this.setTitle("Reading images Please wait");
-        // this.setVisible(true);
-        // new ReadImage();
 
         this.setTitle("Content-Based Image Retrieval System");
 
@@ -199,43 +221,82 @@ public class MainFrame extends JFrame implements ActionListener {
         defaultSetting();
         // MAIN FRAME END
 
-        intensityMatrix = new int[101][26];
-        colorCodeMatrix = new int[101][65];
-        normalizedFeatureMartix = new double[101][90];
-        weight = new double[normalizedFeatureMartix[0].length];
-        readIntensityFile();
-        readColorCodeFile();
+    }
 
-        calculate = new CalculateUtil();
-        calculate.calculateGaussianNormalization(normalizedFeatureMartix, intensityMatrix,
-                colorCodeMatrix, imageSize);
+    /**
+     * loadImages method extracts the images that changed since the last launch
+     * and builds the RetrievalEngine and the session of the user
+     * 
+     * pre: called on the query thread
+     * 
+     * post: the images are shown in ascending order on the event dispatch
+     * thread. If they cannot be loaded the error is printed and no images are
+     * shown.
+     */
+    private void loadImages() {
+        ReadImage readImage;
+        try {
+            // extracts only the images that changed since the last launch
+            readImage = new ReadImage();
+            int imageCount = readImage.getImagePaths().length - 1;
+
+            imageSize = new int[imageCount + 1];
+            readImageSizeFile();
+            intensityMatrix = new IntMatrix(26);
+            colorCodeMatrix = new IntMatrix(65);
+            readIntensityFile();
+            readColorCodeFile();
+            intensityMatrix.setRows(imageCount + 1);
+            colorCodeMatrix.setRows(imageCount + 1);
+            engine = RetrievalEngine.build(intensityMatrix, colorCodeMatrix, imageSize,
+                    readImage.getFeatureStatistics());
+            session = engine.newSession();
+        } catch (RuntimeException e) {
+            System.out.println("Unable to load the images: " + e);
+            SwingUtilities.invokeLater(() -> {
+                progressBar.setIndeterminate(false);
+                progressBar.setVisible(false);
+            });
+            return;
+        }
 
+        Path[] loadedImagePaths = readImage.getImagePaths();
+        ThumbnailStore.Thumbnail[] loadedIcons = readImage.getThumbnails(ThumbnailStore.ICON_SIZE);
+        ThumbnailStore.Thumbnail[] loadedPreviews = readImage.getThumbnails(ThumbnailStore.PREVIEW_SIZE);
+        SwingUtilities.invokeLater(() -> {
+            imagePaths = loadedImagePaths;
+            icons = loadedIcons;
+            previews = loadedPreviews;
+            shownOrder = new int[imagePaths.length];
+            resetOrder();
+            imageOder();
+            progressBar.setIndeterminate(false);
+            if (latestQuery.get() == 0) {
+                progressBar.setVisible(false);
+            }
+        });
     }
 
     /**
      * ImageOrder method is responsible to diplay the images in the rightPanel.
-     * It displays the images as per the index order in buttonOrder array
+     * It displays the images as per the index order in shownOrder array
      * 
-     * pre: rightPanel, buttonHashMap and buttonOrder are instantiated
+     * pre: rightPanel and shownOrder are instantiated
      * 
      * post: Adds scroll to rightPanel. Scroll is populated with imageOrder that
-     * holds all the image in desired order.
+     * shows all the images in desired order and hides the checkboxes.
      */
 
     private void imageOder() {
 
         if (imageOrder == null) {
-            imageOrder = new JPanel(new GridLayout(25, 4, 0, 0));
-            imageOrder.setBounds(525, 100, 500, 550);
+            imageOrder = new ResultList(shownOrder, shownCount, imagePaths, icons, shownRelevant,
+                    thumbnailCache);
+            imageOrder.addMouseListener(new ImageClickHandler());
         } else {
-            imageOrder.removeAll();
-            imageOrder.revalidate();
-            imageOrder.repaint();
-        }
-        HideRelevanceIcon();
-        for (int i = 1; i < 101; i++) {
-            imageOrder.add(buttonHashMap.get(buttonOrder[i]));
+            imageOrder.reordered(shownCount);
         }
+        imageOrder.setRelevanceMode(false);
 
         if (scroll == null) {
             scroll = new JScrollPane(imageOrder, JScrollPane.VERTICAL_SCROLLBAR_ALWAYS,
@@ -244,10 +305,148 @@ public class MainFrame extends JFrame implements ActionListener {
             scroll.setPreferredSize(new Dimension(500, 550));
             scroll.getVerticalScrollBar().setUnitIncrement(550); // skips to next 20 images
             rightPanel.add(scroll);
+            rightPanel.revalidate();
         }
         scroll.getVerticalScrollBar().setValue(0);
     }
 
+    /**
+     * resetOrder method puts all images in shownOrder in ascending order of
+     * image number
+     * 
+     * pre: shownOrder is instantiated
+     * 
+     * post: every image is shown
+     */
+    private void resetOrder() {
+        for (int i = 1; i < shownOrder.length; i++) {
+            shownOrder[i] = i;
+        }
+        shownCount = shownOrder.length - 1;
+    }
+
+    /**
+     * runQuery method cancels the query that is still ranking and ranks a new
+     * one on the query thread
+     * 
+     * pre: called on the event dispatch thread, ranking runs a query of the
+     * session and returns the number of images ranked
+     * 
+     * post: once the query is ranked, if no newer query was started, the
+     * ranking and the relevant images of the session are shown, in place if
+     * inPlace is true and from the top otherwise. While it is ranking, the
+     * progress of its scans is shown in the progressBar.
+     */
+    private void runQuery(IntSupplier ranking, boolean inPlace) {
+        int query = latestQuery.incrementAndGet();
+        int edits = relevanceEdits;
+        progressBar.setValue(0);
+        progressBar.setVisible(true);
+        queryExecutor.execute(() -> {
+            if (latestQuery.get() != query) {
+                return;
+            }
+            int count;
+            try {
+                session.setProgress(new QueryProgress(query));
+                count = ranking.getAsInt();
+            } catch (CancellationException e) {
+                return;
+            } catch (RuntimeException e) {
+                System.out.println("Unable to rank the images: " + e);
+                SwingUtilities.invokeLater(() -> {
+                    if (latestQuery.get() == query) {
+                        progressBar.setVisible(false);
+                    }
+                });
+                return;
+            } finally {
+                if (session != null) {
+                    session.setProgress(null);
+                }
+            }
+            int[] order = Arrays.copyOf(session.getButtonOrder(), count + 1);
+            Set<Integer> relevant = new HashSet<Integer>(session.relevantImages());
+            SwingUtilities.invokeLater(() -> {
+                if (latestQuery.get() != query) {
+                    return;
+                }
+                System.arraycopy(order, 1, shownOrder, 1, count);
+                shownCount = count;
+                if (relevanceEdits == edits) {
+                    shownRelevant.clear();
+                    shownRelevant.addAll(relevant);
+                }
+                progressBar.setVisible(false);
+                if (inPlace) {
+                    imageOrder.reordered(shownCount);
+                } else {
+                    imageOder();
+                }
+            });
+        });
+    }
+
+    /**
+     * runOnSession method changes the session on the query thread, after the
+     * queries that were started before
+     * 
+     * pre: called on the event dispatch thread
+     * 
+     * post: change is run on the query thread
+     */
+    private void runOnSession(Runnable change) {
+        queryExecutor.execute(() -> {
+            if (session != null) {
+                change.run();
+            }
+        });
+    }
+
+    /**
+     * cancelQuery method cancels the query that is still ranking
+     * 
+     * pre: called on the event dispatch thread
+     * 
+     * post: no ranking that was started before is shown
+     */
+    private void cancelQuery() {
+        latestQuery.incrementAndGet();
+        progressBar.setVisible(false);
+    }
+
+    /**
+     * The QueryProgress shows how much of the scans of a query is done and
+     * cancels them when a newer query was started
+     */
+    private final class QueryProgress implements CalculateUtil.Progress {
+        private final int query;
+        private int shownPercent = -1;
+
+        QueryProgress(int query) {
+            this.query = query;
+        }
+
+        @Override
+        public void scanned(int images, int total) {
+            int percent = (int) (100L * images / total);
+            if (percent == shownPercent) {
+                return;
+            }
+            shownPercent = percent;
+            SwingUtilities.invokeLater(() -> {
+                if (latestQuery.get() == query) {
+                    progressBar.setValue(percent);
+                }
+            });
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return latestQuery.get() != query;
+        }
+    }
+
     /**
      * defaultSetting method sets the GUI to its default setting
      * 
@@ -272,76 +471,60 @@ public class MainFrame extends JFrame implements ActionListener {
     }
 
     /**
-     * IconButtonHandler implements an ActionListener for each iconButton.
+     * ImageClickHandler implements a MouseListener for the imageOrder list.
      * 
      * pre: none
      * 
-     * post: When an iconButton is clicked, it sets two values
-     * (a) it sets the selectedImage to the image on the button
-     * (b) it sets picNo to the image number selected
+     * post: When an image is clicked in relevance mode, it is added to the
+     * relevance set, or removed if it was in the set already. Otherwise it sets
+     * two values
+     * (a) it sets the selectedImage to the image clicked
+     * (b) it selects the image clicked as the query image of the session
+     * and cancels the query that is still ranking
      * 
      */
 
-    private class IconButtonHandler implements ActionListener {
-        int pNo;
-        // ImageIcon imgButton;
+    private class ImageClickHandler extends MouseAdapter {
 
-        IconButtonHandler(int i, ImageIcon img) {
-            pNo = i;
-            // imgButton = img;
-        }
+        @Override
+        public void mouseClicked(MouseEvent e) {
+            int pNo = imageOrder.imageAt(e.getPoint());
+            if (pNo == 0) {
+                return;
+            }
+            if (imageOrder.isRelevanceMode()) {
+                if (!shownRelevant.remove(pNo)) {
+                    shownRelevant.add(pNo);
+                }
+                relevanceEdits++;
+                runOnSession(() -> session.toggleRelevant(pNo));
+                if (LIVE_FEEDBACK) {
+                    runQuery(() -> session.rankColorIntensity(), true);
+                }
+                imageOrder.repaint();
+                return;
+            }
 
-        public void actionPerformed(ActionEvent e) {
-            java.net.URL selectedImgUrl = this.getClass().getResource("images/" + pNo + ".jpg");
-            selectedImage.setIcon(new ImageIcon(
-                    tk.getImage(selectedImgUrl).getScaledInstance(300, 300, java.awt.Image.SCALE_SMOOTH)));
+            try {
+                selectedImage.setIcon(new ImageIcon(previews[pNo].read()));
+            } catch (IOException ex) {
+                System.out.println("Unable to read the thumbnail " + previews[pNo]);
+                selectedImage.setIcon(null);
+            }
 
-            selectedImage.setToolTipText(pNo + ".jpg");
+            selectedImage.setToolTipText(imagePaths[pNo].getFileName().toString());
 
             picNo = pNo;
+            cancelQuery();
+            runOnSession(() -> session.select(pNo));
+            shownRelevant.clear();
 
             colorIntensityButton.setEnabled(true);
             intensityButton.setEnabled(true);
             colorButton.setEnabled(true);
             reset.setEnabled(true);
 
-            if (relevanceSet.size() > 0) {
-                relevanceSet.clear();
-            }
-            for (Entry<Integer, JPanel> entry : buttonHashMap.entrySet()) {
-                JPanel imgPanel = entry.getValue();
-                JCheckBox box = (JCheckBox) imgPanel.getComponent(1);
-                box.setSelected(false);
-            }
-        }
-
-    }
-
-    /**
-     * CheckBoxHandler implements an ActionListener for each checkBox.
-     * 
-     * pre: none
-     * 
-     * post: When an checkBox is selected, it is added to relevance set
-     * If deselected, it is removed from the set.
-     * 
-     */
-    private class CheckBoxHandler implements ActionListener {
-        int pNo;
-        JCheckBox box;
-
-        CheckBoxHandler(int i, JCheckBox checkBox) {
-            pNo = i;
-            box = checkBox;
-        }
-
-        public void actionPerformed(ActionEvent e) {
-            if (box.isSelected()) {
-                relevanceSet.add(pNo);
-            }
-            if (!box.isSelected()) {
-                relevanceSet.remove(pNo);
-            }
+            imageOrder.repaint();
         }
 
     }
@@ -352,8 +535,8 @@ public class MainFrame extends JFrame implements ActionListener {
      * pre: reset button is enabled
      * 
      * post: When an reset button is clicked, it makes 3 changes
-     * (a) it sets the picNo to 0
-     * (b) sorts the buttonOrder in ascending Order to reset the image display order
+     * (a) it resets the session, which has no query image then
+     * (b) and shows the images in ascending Order
      * (c) it calls the deafultSetting and ImageOrder method
      * 
      */
@@ -364,30 +547,11 @@ public class MainFrame extends JFrame implements ActionListener {
 
         public void actionPerformed(ActionEvent e) {
             picNo = 0;
-            Arrays.sort(buttonOrder);
+            cancelQuery();
+            runOnSession(() -> session.reset());
+            resetOrder();
             defaultSetting();
             imageOder();
-            for (Entry<Integer, JPanel> entry : buttonHashMap.entrySet()) {
-                JPanel imgPanel = entry.getValue();
-                imgPanel.getComponent(0).setEnabled(true);
-            }
-        }
-
-    }
-
-    /**
-     * HideRelevanceIcon is responsible to hide the checkBox.
-     * 
-     * pre: checkBox is visible
-     * 
-     * post: hides the checkBox
-     * 
-     */
-    private void HideRelevanceIcon() {
-        for (Entry<Integer, JPanel> entry : buttonHashMap.entrySet()) {
-            JPanel imgPanel = entry.getValue();
-            JCheckBox box = (JCheckBox) imgPanel.getComponent(1);
-            box.setVisible(false);
         }
 
     }
@@ -411,12 +575,7 @@ public class MainFrame extends JFrame implements ActionListener {
             relevance.setEnabled(false);
             colorButton.setEnabled(false);
             intensityButton.setEnabled(false);
-            for (Entry<Integer, JPanel> entry : buttonHashMap.entrySet()) {
-                JPanel imgPanel = entry.getValue();
-                JCheckBox box = (JCheckBox) imgPanel.getComponent(1);
-                box.setVisible(true);
-                imgPanel.getComponent(0).setEnabled(false);
-            }
+            imageOrder.setRelevanceMode(true);
 
         }
 
@@ -429,7 +588,7 @@ public class MainFrame extends JFrame implements ActionListener {
      * 
      * post: ColorButtonHandler calls the calculateManhattanDistance method and pass
      * the
-     * colorCodeMatrix 2D array. It arranges the images based on the color code
+     * normalizedColorCodeMatrix on the query thread. It arranges the images based on the color code
      * 
      */
 
@@ -440,8 +599,7 @@ public class MainFrame extends JFrame implements ActionListener {
                 return;
             }
 
-            calculate.calculateManhattanDistance(colorCodeMatrix, imageSize, picNo, buttonOrder);
-            imageOder();
+            runQuery(() -> session.rankColorCode(), false);
         }
 
     }
@@ -453,7 +611,7 @@ public class MainFrame extends JFrame implements ActionListener {
      * 
      * post: IntensityButtonHandler calls the calculateManhattanDistance method and
      * pass the
-     * intensityMatrix 2D array. It arranges the images based on the intensity
+     * normalizedIntensityMatrix on the query thread. It arranges the images based on the intensity
      * 
      */
     private class IntensityButtonHandler implements ActionListener {
@@ -463,8 +621,7 @@ public class MainFrame extends JFrame implements ActionListener {
                 return;
             }
 
-            calculate.calculateManhattanDistance(intensityMatrix, imageSize, picNo, buttonOrder);
-            imageOder();
+            runQuery(() -> session.rankIntensity(), false);
         }
 
     }
@@ -490,49 +647,64 @@ public class MainFrame extends JFrame implements ActionListener {
             colorButton.setEnabled(true);
             intensityButton.setEnabled(true);
 
-            for (Entry<Integer, JPanel> entry : buttonHashMap.entrySet()) {
-                JPanel imgPanel = entry.getValue();
-                imgPanel.getComponent(0).setEnabled(true);
-            }
-
-            calculate.calculateWeight(weight, relevanceSet, normalizedFeatureMartix, picNo);
-            calculate.calculateDistanceMetrix(normalizedFeatureMartix, weight, picNo, buttonOrder);
-            imageOder();
+            runQuery(() -> session.rankColorIntensity(), false);
         }
 
     }
 
     /**
-     * readIntensityFile method calls the readFile to read the intensity.txt file
+     * readIntensityFile method calls the FeatureStore to open the Intensity.bin file
      * containing the intensity matrix with the histogram bin values of each image
      * 
-     * pre: intensity.txt file is loaded
+     * pre: Intensity.bin or the older Intensity.txt file is loaded
      * 
-     * post: calls the readFile to read intensity.txt file and store the value in
-     * intensityMatrix
+     * post: intensityMatrix is mapped from Intensity.bin, or is empty if there is
+     * no feature file
      * 
      */
     private void readIntensityFile() {
-        String fileName = "Intensity.txt";
-        ReadTextFile rf = new ReadTextFile();
-        intensityMatrix = rf.readFile(intensityMatrix, fileName);
+        IntMatrix matrix = FeatureStore.load("Intensity", intensityMatrix.cols(), true);
+        if (matrix != null) {
+            intensityMatrix = matrix;
+        }
 
     }
 
     /**
-     * readColorCodeFile method calls the readFile to read the ColorCodes.txt file
+     * readColorCodeFile method calls the FeatureStore to open the ColorCode.bin file
      * containing the colorCode matrix with the histogram bin values of each image
      * 
-     * pre: ColorCodes.txt file is loaded
+     * pre: ColorCode.bin or the older ColorCode.txt file is loaded
      * 
-     * post: calls the readFile to read ColorCodes.txt file and store the value in
-     * colorCodeyMatrix
+     * post: colorCodeMatrix is mapped from ColorCode.bin, or is empty if there is
+     * no feature file
      * 
      */
     private void readColorCodeFile() {
-        String fileName = "ColorCode.txt";
-        ReadTextFile rf = new ReadTextFile();
-        colorCodeMatrix = rf.readFile(colorCodeMatrix, fileName);
+        IntMatrix matrix = FeatureStore.load("ColorCode", colorCodeMatrix.cols(), true);
+        if (matrix != null) {
+            colorCodeMatrix = matrix;
+        }
+
+    }
+
+    /**
+     * readImageSizeFile method calls the FeatureStore to open the ImageSize.bin
+     * file containing the width and height of each image
+     * 
+     * pre: imageSize is instantiated with one element per image
+     * 
+     * post: imageSize holds the number of pixels of each image
+     * 
+     */
+    private void readImageSizeFile() {
+        IntMatrix matrix = FeatureStore.load("ImageSize", 3, true);
+        if (matrix == null) {
+            return;
+        }
+        for (int i = 1; i < imageSize.length && i < matrix.rows(); i++) {
+            imageSize[i] = matrix.get(i, 1) * matrix.get(i, 2);
+        }
 
     }
 
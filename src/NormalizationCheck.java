@@ -0,0 +1,272 @@
+
+/**
+ * The NormalizationCheck checks the RunningStats updates and the incremental
+ * FeatureNormalization against calculating everything again.
+ *
+ * It compares the averages and variances of add, remove and merge with the
+ * ones RunningStats.of calculates from the same rows. Then it normalizes the
+ * histograms of a synthetic corpus, adds a batch of images whose histograms
+ * follow other profiles one at a time, as a nightly run of ReadImage would,
+ * removes some of them again, and prints the time per add, after which images
+ * the rows were normalized again, and how far the normalized values are from
+ * a full normalization of the same images.
+ *
+ * It is run with
+ * java NormalizationCheck [imageCount [addedCount]]
+ * imageCount is 20000 and addedCount 2000 by default. It exits with status 1
+ * if a check fails.
+ */
+
+import java.util.Arrays;
+import java.util.Random;
+
+public class NormalizationCheck {
+
+    // largest relative difference to RunningStats.of that is put down to rounding
+    private static final double TOLERANCE = 1e-9;
+
+    /**
+     * main method runs the checks
+     *
+     * pre: args are optionally the number of images and of added images
+     *
+     * post: prints the differences, times and renormalizations, exits with
+     * status 1 if a check fails
+     */
+    public static void main(String[] args) {
+        int imageCount = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+        int addedCount = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+        boolean passed = checkRunningStats(imageCount);
+        passed &= checkNormalization(imageCount, addedCount);
+        System.out.println(passed ? "All checks passed" : "FAILED");
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * checkRunningStats method compares add, remove and merge with
+     * RunningStats.of
+     *
+     * pre: imageCount > 4
+     *
+     * post: prints the largest differences, returns true if they are within
+     * TOLERANCE
+     */
+    private static boolean checkRunningStats(int imageCount) {
+        Random random = new Random(5);
+        int cols = 90;
+        DoubleMatrix matrix = new DoubleMatrix(imageCount + 1, cols);
+        for (int i = 1; i <= imageCount; i++) {
+            for (int j = 1; j < cols; j++) {
+                matrix.set(i, j, 3 + 2 * random.nextGaussian());
+            }
+        }
+
+        RunningStats added = new RunningStats(cols);
+        for (int i = 1; i <= imageCount; i++) {
+            added.add(matrix.data(), i * cols);
+        }
+        double addError = difference(added, RunningStats.of(matrix));
+
+        // removes the second half of the rows again
+        int kept = imageCount / 2;
+        for (int i = kept + 1; i <= imageCount; i++) {
+            added.remove(matrix.data(), i * cols);
+        }
+        DoubleMatrix keptMatrix = rows(matrix, 1, kept + 1);
+        double removeError = difference(added, RunningStats.of(keptMatrix));
+
+        // merges the statistics of 4 partitions
+        RunningStats merged = new RunningStats(cols);
+        int partitionSize = imageCount / 4;
+        for (int from = 1; from <= imageCount; from += partitionSize) {
+            merged.merge(RunningStats.of(rows(matrix, from, Math.min(imageCount + 1, from + partitionSize))));
+        }
+        double mergeError = difference(merged, RunningStats.of(matrix));
+
+        System.out.println(String.format("RunningStats of %d rows, largest relative difference to "
+                + "RunningStats.of: add %.2e, remove %.2e, merge %.2e", imageCount, addError, removeError,
+                mergeError));
+        return addError <= TOLERANCE && removeError <= TOLERANCE && mergeError <= TOLERANCE;
+    }
+
+    /**
+     * checkNormalization method adds and removes images of other profiles
+     * through a FeatureNormalization and compares the rows with a full
+     * normalization
+     *
+     * pre: imageCount > 1, addedCount >= 0
+     *
+     * post: prints the time per add, the renormalizations and the largest
+     * difference to a full normalization, returns true if the statistics match
+     * RunningStats.of and the rows are within the drift the threshold allows
+     */
+    private static boolean checkNormalization(int imageCount, int addedCount) {
+        int total = imageCount + addedCount;
+        IntMatrix intensityMatrix = new IntMatrix(total + 1, 26);
+        IntMatrix colorCodeMatrix = new IntMatrix(total + 1, 65);
+        int[] allSizes = new int[total + 1];
+        Random random = new Random(9);
+        histograms(intensityMatrix, colorCodeMatrix, allSizes, 1, imageCount + 1, profiles(random, 50), random);
+        // the added images are of other scenes, so the statistics drift
+        histograms(intensityMatrix, colorCodeMatrix, allSizes, imageCount + 1, total + 1, profiles(random, 5),
+                random);
+
+        int cols = intensityMatrix.cols() + colorCodeMatrix.cols() - 1;
+        DoubleMatrix normalizedFeatureMartix = new DoubleMatrix(imageCount + 1, cols);
+        FeatureNormalization normalization = new FeatureNormalization(normalizedFeatureMartix, intensityMatrix,
+                colorCodeMatrix, Arrays.copyOf(allSizes, imageCount + 1));
+
+        StringBuilder renormalizedAfter = new StringBuilder();
+        long addNanos = 0;
+        long renormalizeNanos = 0;
+        for (int image = imageCount + 1; image <= total; image++) {
+            int renormalizations = normalization.getRenormalizations();
+            long start = System.nanoTime();
+            normalization.add(image, allSizes[image]);
+            long nanos = System.nanoTime() - start;
+            if (normalization.getRenormalizations() > renormalizations) {
+                renormalizedAfter.append(' ').append(image - imageCount);
+                renormalizeNanos += nanos;
+            } else {
+                addNanos += nanos;
+            }
+        }
+        int renormalized = normalization.getRenormalizations();
+        System.out.println(String.format("Added %d images to %d: %.1f us per add of one row, renormalized %d "
+                + "times in %.1f ms each, after the adds%s", addedCount, imageCount,
+                addNanos / 1e3 / Math.max(1, addedCount - renormalized), renormalized,
+                renormalizeNanos / 1e6 / Math.max(1, renormalized),
+                (renormalizedAfter.length() == 0) ? " -" : renormalizedAfter));
+        boolean passed = compare(normalization, normalizedFeatureMartix, intensityMatrix, colorCodeMatrix,
+                allSizes, total);
+
+        // removes the added images of the last half of the batch again
+        int removed = addedCount / 2;
+        int renormalizations = normalization.getRenormalizations();
+        long start = System.nanoTime();
+        for (int image = total; image > total - removed; image--) {
+            normalization.remove(image, allSizes[image]);
+        }
+        long removeNanos = System.nanoTime() - start;
+        normalizedFeatureMartix.setRows(total - removed + 1);
+        System.out.println(String.format("Removed %d images in %.1f us per image, renormalized %d times",
+                removed, removeNanos / 1e3 / Math.max(1, removed),
+                normalization.getRenormalizations() - renormalizations));
+        passed &= compare(normalization, normalizedFeatureMartix, intensityMatrix, colorCodeMatrix, allSizes,
+                total - removed);
+        return passed;
+    }
+
+    /**
+     * compare method compares the statistics and rows of normalization with a
+     * full normalization of the images 1 to imageCount
+     *
+     * pre: normalization holds the images 1 to imageCount
+     *
+     * post: prints the differences, returns true if the statistics are within
+     * TOLERANCE and the rows within the drift the threshold allows
+     */
+    private static boolean compare(FeatureNormalization normalization, DoubleMatrix normalizedFeatureMartix,
+            IntMatrix intensityMatrix, IntMatrix colorCodeMatrix, int[] allSizes, int imageCount) {
+        int cols = normalizedFeatureMartix.cols();
+        IntMatrix intensity = new IntMatrix(imageCount + 1, intensityMatrix.cols());
+        IntMatrix colorCode = new IntMatrix(imageCount + 1, colorCodeMatrix.cols());
+        for (int i = 1; i <= imageCount; i++) {
+            for (int j = 1; j < intensity.cols(); j++) {
+                intensity.set(i, j, intensityMatrix.get(i, j));
+            }
+            for (int j = 1; j < colorCode.cols(); j++) {
+                colorCode.set(i, j, colorCodeMatrix.get(i, j));
+            }
+        }
+        DoubleMatrix full = new DoubleMatrix(imageCount + 1, cols);
+        FeatureNormalization fullNormalization = new FeatureNormalization(full, intensity, colorCode,
+                Arrays.copyOf(allSizes, imageCount + 1));
+        double statsError = difference(normalization.getStats(), fullNormalization.getStats());
+
+        double rowError = 0.0;
+        for (int i = 1; i <= imageCount; i++) {
+            for (int j = 1; j < cols; j++) {
+                double value = full.get(i, j);
+                rowError = Math.max(rowError,
+                        Math.abs(normalizedFeatureMartix.get(i, j) - value) / (1 + Math.abs(value)));
+            }
+        }
+        // the rows are normalized with statistics that moved at most the
+        // threshold, relative to the standard deviation
+        double allowed = 2.5 * Double.parseDouble(System.getProperty("cbir.normalizationDrift", "0.01"));
+        System.out.println(String.format("  %d images: statistics differ %.2e from RunningStats.of, rows differ "
+                + "%.2e from a full normalization (allowed %.2e)", imageCount, statsError, rowError, allowed));
+        return statsError <= TOLERANCE && rowError <= allowed;
+    }
+
+    // largest difference of the averages and variances, relative to their size
+    private static double difference(RunningStats stats, RunningStats expected) {
+        if (stats.count() != expected.count()) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double error = 0.0;
+        for (int j = 1; j < stats.cols(); j++) {
+            double sd = Math.sqrt(expected.variance(j));
+            double scale = Math.max(sd, Double.MIN_NORMAL);
+            error = Math.max(error, Math.abs(stats.mean(j) - expected.mean(j)) / scale);
+            error = Math.max(error, Math.abs(stats.variance(j) - expected.variance(j)) / Math.max(
+                    expected.variance(j), Double.MIN_NORMAL));
+        }
+        return error;
+    }
+
+    // the rows from to to of matrix as a matrix from row 1
+    private static DoubleMatrix rows(DoubleMatrix matrix, int from, int to) {
+        DoubleMatrix rows = new DoubleMatrix(to - from + 1, matrix.cols());
+        for (int i = from; i < to; i++) {
+            for (int j = 1; j < matrix.cols(); j++) {
+                rows.set(i - from + 1, j, matrix.get(i, j));
+            }
+        }
+        return rows;
+    }
+
+    // random intensity and color code profiles, the share of the pixels in each bin
+    private static double[][][] profiles(Random random, int count) {
+        double[][][] profiles = new double[count][][];
+        for (int p = 0; p < count; p++) {
+            profiles[p] = new double[][] { profile(random, 26), profile(random, 65) };
+        }
+        return profiles;
+    }
+
+    private static double[] profile(Random random, int cols) {
+        double[] profile = new double[cols];
+        double sum = 0.0;
+        for (int j = 1; j < cols; j++) {
+            profile[j] = -Math.log(1 - random.nextDouble());
+            sum += profile[j];
+        }
+        for (int j = 1; j < cols; j++) {
+            profile[j] /= sum;
+        }
+        return profile;
+    }
+
+    // histograms of the images from to to, of a random size, around the profiles
+    private static void histograms(IntMatrix intensityMatrix, IntMatrix colorCodeMatrix, int[] imageSize,
+            int from, int to, double[][][] profiles, Random random) {
+        for (int i = from; i < to; i++) {
+            double[][] profile = profiles[random.nextInt(profiles.length)];
+            imageSize[i] = (48 + random.nextInt(80)) * (48 + random.nextInt(80));
+            for (int j = 1; j < intensityMatrix.cols(); j++) {
+                intensityMatrix.set(i, j, bin(imageSize[i], profile[0][j], random));
+            }
+            for (int j = 1; j < colorCodeMatrix.cols(); j++) {
+                colorCodeMatrix.set(i, j, bin(imageSize[i], profile[1][j], random));
+            }
+        }
+    }
+
+    private static int bin(int size, double share, Random random) {
+        return (int) Math.max(0, Math.round(size * share * (1 + 0.2 * random.nextGaussian())));
+    }
+}
@@ -0,0 +1,215 @@
+
+/**
+ * The QueryCache keeps the rankings of recent queries, so clicking an image or
+ * a sort button again shows the ranking without calculating it.
+ *
+ * A ranking is kept for its query image, sort mode, number of images ranked
+ * and the weights of the color code + intensity sort. The cache is a least
+ * recently used map bounded by the bytes of the rankings, 16 MB unless
+ * -Dcbir.queryCacheMB is set.
+ *
+ * The rankings of a mode are dropped when it is asked for with another matrix
+ * or after its matrix was modified, e.g. because images were added or the
+ * normalization was calculated again.
+ *
+ * Hits, misses, evictions and invalidated rankings are counted and printed by
+ * report.
+ */
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+public class QueryCache {
+
+    static final int COLOR_CODE = 0;
+    static final int INTENSITY = 1;
+    static final int COMBINED = 2;
+    private static final int MODES = 3;
+
+    private static final long DEFAULT_CAPACITY = Math.max(1, Long.getLong("cbir.queryCacheMB", 16)) << 20;
+
+    /**
+     * The Key identifies a ranking, weight is null for the unweighted sorts
+     */
+    private static final class Key {
+        private final int mode;
+        private final int picNo;
+        private final int k;
+        private final double[] weight;
+        private final int hash;
+
+        Key(int mode, int picNo, int k, double[] weight) {
+            this.mode = mode;
+            this.picNo = picNo;
+            this.k = k;
+            this.weight = weight;
+            this.hash = ((mode * 31 + picNo) * 31 + k) * 31 + Arrays.hashCode(weight);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) object;
+            return hash == other.hash && mode == other.mode && picNo == other.picNo && k == other.k
+                    && Arrays.equals(weight, other.weight);
+        }
+    }
+
+    private final long capacity;
+    // access ordered, so the first entry is the least recently used one
+    private final LinkedHashMap<Key, int[]> rankings = new LinkedHashMap<Key, int[]>(16, 0.75f, true);
+    private long size = 0;
+    // matrix every mode was ranked on and its modifications at that time
+    private final DoubleMatrix[] matrices = new DoubleMatrix[MODES];
+    private final int[] modifications = new int[MODES];
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+
+    QueryCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    QueryCache(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * get method copies a cached ranking into buttonOrder
+     *
+     * pre: mode is COLOR_CODE, INTENSITY or COMBINED, matrix is the matrix the
+     * mode ranks on or null, weight is null for the unweighted sorts
+     *
+     * post: on a hit buttonOrder holds the ranking from element 1 and the number
+     * of images ranked is returned, on a miss -1 is returned
+     */
+    public synchronized int get(int mode, DoubleMatrix matrix, int picNo, double[] weight, int k,
+            int[] buttonOrder) {
+        validate(mode, matrix);
+        int[] ranking = rankings.get(new Key(mode, picNo, k, weight));
+        if (ranking == null) {
+            misses++;
+            return -1;
+        }
+        hits++;
+        System.arraycopy(ranking, 0, buttonOrder, 1, ranking.length);
+        return ranking.length;
+    }
+
+    /**
+     * put method caches the ranking in buttonOrder
+     *
+     * pre: buttonOrder holds count images from element 1, ranked by mode on
+     * matrix for picNo with weight
+     *
+     * post: the ranking is cached, the least recently used rankings are evicted
+     * until the cache fits in its capacity
+     */
+    public synchronized void put(int mode, DoubleMatrix matrix, int picNo, double[] weight, int k,
+            int[] buttonOrder, int count) {
+        validate(mode, matrix);
+        double[] weightCopy = (weight == null) ? null : weight.clone();
+        int[] previous = rankings.put(new Key(mode, picNo, k, weightCopy),
+                Arrays.copyOfRange(buttonOrder, 1, count + 1));
+        if (previous != null) {
+            size -= bytes(previous.length);
+        }
+        size += bytes(count);
+        Iterator<int[]> eldest = rankings.values().iterator();
+        while (size > capacity && rankings.size() > 1) {
+            size -= bytes(eldest.next().length);
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * invalidate method drops every cached ranking
+     *
+     * pre: none
+     *
+     * post: the cache is empty
+     */
+    public synchronized void invalidate() {
+        invalidations += rankings.size();
+        rankings.clear();
+        size = 0;
+        Arrays.fill(matrices, null);
+    }
+
+    /**
+     * validate method drops the rankings of the mode if its matrix was replaced
+     * or modified since they were cached
+     *
+     * pre: caller holds the lock of the cache
+     *
+     * post: the cached rankings of the mode were ranked on matrix as it is now
+     */
+    private void validate(int mode, DoubleMatrix matrix) {
+        // a mode without a matrix ranks on rows that do not change
+        int modified = (matrix == null) ? 0 : matrix.modifications();
+        if (matrices[mode] == matrix && modifications[mode] == modified) {
+            return;
+        }
+        Iterator<Key> keys = rankings.keySet().iterator();
+        while (keys.hasNext()) {
+            Key key = keys.next();
+            if (key.mode == mode) {
+                size -= bytes(rankings.get(key).length);
+                keys.remove();
+                invalidations++;
+            }
+        }
+        matrices[mode] = matrix;
+        modifications[mode] = modified;
+    }
+
+    // memory of a ranking, the key and entry are counted as 64 bytes
+    private static long bytes(int count) {
+        return 64 + (long) count * Integer.BYTES;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    public synchronized double getHitRate() {
+        return (hits + misses == 0) ? 0.0 : hits / (double) (hits + misses);
+    }
+
+    /**
+     * report method returns the counters of the cache
+     *
+     * pre: none
+     *
+     * post: returns hits, misses, hit rate, evictions, invalidations and memory
+     * in use
+     */
+    public synchronized String report() {
+        return String.format("Query cache: %d hits, %d misses (%.1f%% hit rate), %d evictions, %d invalidated, "
+                + "%d rankings in %d of %d KB", hits, misses, 100 * getHitRate(), evictions, invalidations,
+                rankings.size(), size >> 10, capacity >> 10);
+    }
+}
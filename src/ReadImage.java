@@ -1,28 +1,151 @@
-
 /**
  * 
- * The ReadImage reads each image and calculate the following two values using its RGB value
+ * The ReadImage reads each image found by ImageCorpus and calculate the following two
+ * values using its RGB value
  * (a) 25 Intensity histogram values
  * (b) 64 Color Code histogram values 
  * 
+ * The images are processed by a three stage pipeline connected with bounded queues
+ * (a) decode stage reads the image files
+ * (b) histogram stage calculates the bin values, each worker using its own bin arrays
+ * (c) a single writer stage stores the bins in the matrices and writes the feature files
+ * An image that fails in a stage is skipped. If a stage thread fails, the other stages
+ * stop instead of waiting for it, the images stored so far are saved and the next run
+ * resumes with the rest.
+ * 
+ * Only new and changed images are extracted. The ImageManifest records size, modified
+ * time and content hash of every extracted image, and the writer saves the feature files
+ * and the manifest at regular checkpoints so an interrupted run resumes where it stopped.
+ * The manifest also holds the image number of each image. Image numbers are kept dense,
+ * when images are deleted the later images move up.
+ * 
+ * The histograms are calculated by the allocation free HistogramKernel. The original
+ * per pixel calculation can still be selected with -Dcbir.extraction=legacy.
+ * 
+ * The statistics of the features of the stored images, which the color code +
+ * intensity sort is normalized with, are kept up to date in O(features) per
+ * new, changed or deleted image and saved in Normalization.bin with the
+ * fingerprint of the feature files, so they are only calculated from every
+ * image when they do not match the feature files.
+ * 
+ * Each image is decoded once. The same decoded image gives the histograms, the
+ * width and height stored in ImageSize.bin and the thumbnails of the ThumbnailStore,
+ * so the GUI does not read the original images.
+ * 
+ * For bulk ingest the ImageDecoder can read a subset of the pixels. With
+ * -Dcbir.sampleReport=n the histograms and rankings of n images are compared with
+ * the ones calculated from every pixel once the extraction is finished.
+ * 
  * @author Divya Kamath
  */
 
 import java.awt.image.BufferedImage;
 import java.io.*;
-import java.nio.file.Paths;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.imageio.ImageIO;
 
 public class ReadImage {
 
-    private int imageCount = 1;
+    // number of threads of each stage, can be overridden with -Dcbir.decodeThreads
+    // and -Dcbir.histogramThreads
+    private static final int DECODE_THREADS = Math.max(1, Integer.getInteger("cbir.decodeThreads", 2));
+    private static final int HISTOGRAM_THREADS = Math.max(1,
+            Integer.getInteger("cbir.histogramThreads", Runtime.getRuntime().availableProcessors()));
+    private static final int QUEUE_CAPACITY = 4 * HISTOGRAM_THREADS;
+    private static final boolean LEGACY_EXTRACTION = "legacy".equals(System.getProperty("cbir.extraction"));
+    // number of extracted images after which the feature files and manifest are saved
+    private static final int CHECKPOINT_INTERVAL = Math.max(1, Integer.getInteger("cbir.checkpointInterval", 256));
+    private static final int SAMPLE_REPORT_IMAGES = Integer.getInteger("cbir.sampleReport", 0);
+    // how often a stage waiting on a queue checks whether another stage failed
+    private static final long POLL_MILLIS = 100;
+    // intensity and color code features of the statistics, from column 1
+    private static final int FEATURE_COLS = 25 + 64 + 1;
+
+    private final AtomicInteger nextImage = new AtomicInteger(0);
+    private final AtomicInteger extractedCount = new AtomicInteger();
+    // set when a stage thread fails, the other stages stop waiting on the queues
+    private volatile boolean stageFailed = false;
+
+    private IntMatrix intensityMatrix = new IntMatrix(26);
+    private IntMatrix colorCodeMatrix = new IntMatrix(65);
+    // imageSizeMatrix stores the width in column 1 and the height in column 2
+    private IntMatrix imageSizeMatrix = new IntMatrix(3);
+
+    private final Path imageDirectory = ImageCorpus.imageDirectory();
+    private final ImageManifest manifest = new ImageManifest("Manifest.txt");
+    private final ThumbnailStore thumbnails = new ThumbnailStore("Thumbnails");
+    // pendingImages holds the image numbers to extract, pendingPaths their files
+    // and previousHash the hash recorded in the manifest
+    private int[] pendingImages;
+    private Path[] pendingPaths;
+    private String[] previousHash;
+    // entries of the extracted images that are not saved yet, used by the writer only
+    private final List<ImageManifest.Entry> uncommittedEntries = new ArrayList<ImageManifest.Entry>();
+    private boolean featuresChanged = false;
+    // the checkpoints write the rows that changed into the feature files
+    private FeatureStore.Updater intensityFile = new FeatureStore.Updater("Intensity", -1);
+    private FeatureStore.Updater colorCodeFile = new FeatureStore.Updater("ColorCode", -1);
+    private FeatureStore.Updater imageSizeFile = new FeatureStore.Updater("ImageSize", -1);
+    // statistics of the features of the images 1 to storedImages - 1 and of the
+    // images stored since, null if they are calculated from every image at the end
+    private FeatureNormalization normalization;
+    private int storedImages;
+
+    /**
+     * DecodedImage is passed from the decode stage to the histogram stage.
+     * HistogramResult is passed from the histogram stage to the writer stage, its
+     * bins are null if only the file attributes of the image changed.
+     * An imageNo of 0 marks the end of the stream.
+     */
+    private static final class DecodedImage {
+        final int imageNo;
+        final BufferedImage image;
+        final int width;
+        final int height;
+        final ImageManifest.Entry entry;
+
+        DecodedImage(int imageNo, BufferedImage image, int width, int height, ImageManifest.Entry entry) {
+            this.imageNo = imageNo;
+            this.image = image;
+            this.width = width;
+            this.height = height;
+            this.entry = entry;
+        }
+    }
 
-    private int intensityBins[] = new int[26];
-    private int intensityMatrix[][] = new int[101][26];
+    private static final class HistogramResult {
+        final int imageNo;
+        final int[] intensityBins;
+        final int[] colorCodeBins;
+        final int width;
+        final int height;
+        final ImageManifest.Entry entry;
+
+        HistogramResult(int imageNo, int[] intensityBins, int[] colorCodeBins, int width, int height,
+                ImageManifest.Entry entry) {
+            this.imageNo = imageNo;
+            this.intensityBins = intensityBins;
+            this.colorCodeBins = colorCodeBins;
+            this.width = width;
+            this.height = height;
+            this.entry = entry;
+        }
+    }
 
-    private int colorCodeBins[] = new int[65];
-    private int colorCodeMatrix[][] = new int[101][65];
+    private static final DecodedImage END_OF_IMAGES = new DecodedImage(0, null, 0, 0, null);
+    private static final HistogramResult END_OF_RESULTS = new HistogramResult(0, null, null, 0, 0, null);
 
     /**
      * constructor
@@ -38,30 +161,535 @@ public class ReadImage {
 
     /**
      * ExtractImageValues method is responsible for the following
-     * (a) To read each image and call the getPixelValue method to extract the RGB
-     * value of the image
-     * (b) To call the writeIntensity and writeColorCode method to write the
-     * histogram values in text file
+     * (a) To find the new, changed and deleted images
+     * (b) To start the decode, histogram and writer stages
+     * (c) To wait for every stage to finish and report the throughput
      * 
      * pre: none
      * 
-     * post: ColorCode.txt and Intensity.txt files are generated
+     * post: ColorCode.bin, Intensity.bin, ImageSize.bin, the thumbnails and
+     * Manifest.txt are up to date
      */
 
     private void extractImageValues() {
-        while (imageCount < 101) {
+        findChangedImages();
+        if (pendingImages.length == 0 && !featuresChanged) {
+            System.out.println("Feature files are up to date");
+            if (normalization == null) {
+                saveNormalization();
+            }
+            return;
+        }
+
+        BlockingQueue<DecodedImage> decodedQueue = new ArrayBlockingQueue<DecodedImage>(QUEUE_CAPACITY);
+        BlockingQueue<HistogramResult> resultQueue = new ArrayBlockingQueue<HistogramResult>(QUEUE_CAPACITY);
+        long start = System.nanoTime();
+
+        Thread[] decoders = new Thread[DECODE_THREADS];
+        for (int i = 0; i < decoders.length; i++) {
+            decoders[i] = new Thread(() -> runStage(() -> decodeImages(decodedQueue, resultQueue)),
+                    "cbir-decode-" + i);
+            decoders[i].start();
+        }
+        Thread[] workers = new Thread[HISTOGRAM_THREADS];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(() -> runStage(() -> calculateHistograms(decodedQueue, resultQueue)),
+                    "cbir-histogram-" + i);
+            workers[i].start();
+        }
+        Thread writer = new Thread(() -> runStage(() -> storeHistograms(resultQueue)), "cbir-writer");
+        writer.start();
+
+        try {
+            for (Thread decoder : decoders) {
+                decoder.join();
+            }
+            for (int i = 0; i < workers.length; i++) {
+                if (!put(decodedQueue, END_OF_IMAGES)) {
+                    break;
+                }
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            put(resultQueue, END_OF_RESULTS);
+            writer.join();
+        } catch (InterruptedException e) {
+            System.out.println("Interrupted while extracting the image values");
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format("Extracted %d images in %.2f s (%.1f images/sec)",
+                extractedCount.get(), seconds, extractedCount.get() / seconds));
+        if (stageFailed) {
+            System.out.println("The extraction stopped after a failure, the next run extracts the remaining images");
+            return;
+        }
+
+        if (SAMPLE_REPORT_IMAGES > 0 && ImageDecoder.isSubsampling()) {
+            SamplingAccuracy.report(getImagePaths(), SAMPLE_REPORT_IMAGES);
+        }
+    }
+
+    /**
+     * findChangedImages method compares the image files with the manifest
+     * 
+     * pre: none
+     * 
+     * post: pendingImages holds the new images and the images whose size or
+     * modified time changed. New images get the next free image numbers. Deleted
+     * images are removed from the manifest and the feature rows of the later
+     * images move up. If the manifest or a feature file is missing every image
+     * is pending. Images without thumbnails are decoded again.
+     */
+    private void findChangedImages() {
+        IntMatrix storedIntensity = null;
+        IntMatrix storedColorCode = null;
+        IntMatrix storedImageSize = null;
+        if (manifest.load()) {
+            storedIntensity = FeatureStore.load("Intensity", intensityMatrix.cols(), false);
+            storedColorCode = FeatureStore.load("ColorCode", colorCodeMatrix.cols(), false);
+            storedImageSize = FeatureStore.load("ImageSize", imageSizeMatrix.cols(), false);
+        }
+        if (storedIntensity != null && storedColorCode != null && storedImageSize != null) {
+            intensityMatrix = storedIntensity;
+            colorCodeMatrix = storedColorCode;
+            imageSizeMatrix = storedImageSize;
+            intensityFile = new FeatureStore.Updater("Intensity", storedIntensity.rows());
+            colorCodeFile = new FeatureStore.Updater("ColorCode", storedColorCode.rows());
+            imageSizeFile = new FeatureStore.Updater("ImageSize", storedImageSize.rows());
+            RunningStats stats = RunningStats.load("Normalization", FEATURE_COLS, FeatureStore.fingerprint(
+                    "Intensity", "ColorCode", "ImageSize"));
+            normalization = (stats != null)
+                    ? FeatureNormalization.statistics(intensityMatrix, colorCodeMatrix, stats) : null;
+        } else {
+            manifest.clear();
+            featuresChanged = true;
+            normalization = FeatureNormalization.statistics(intensityMatrix, colorCodeMatrix,
+                    new RunningStats(FEATURE_COLS));
+        }
+        thumbnails.load();
+
+        List<Path> images;
+        try {
+            images = ImageCorpus.scan(imageDirectory);
+        } catch (IOException e) {
+            System.out.println("Unable to read the image directory " + imageDirectory);
+            images = Collections.emptyList();
+        }
+        Set<String> imageNames = new HashSet<String>();
+        for (Path image : images) {
+            imageNames.add(ImageCorpus.relativeName(imageDirectory, image));
+        }
+
+        for (ImageManifest.Entry entry : new ArrayList<ImageManifest.Entry>(manifest.entries())) {
+            boolean stored = entry.index >= 1 && entry.index < intensityMatrix.rows()
+                    && entry.index < colorCodeMatrix.rows() && entry.index < imageSizeMatrix.rows();
+            if (!imageNames.contains(entry.fileName)) {
+                manifest.remove(entry.fileName);
+                if (stored && normalization != null) {
+                    normalization.remove(entry.index, imageSize(entry.index));
+                }
+                featuresChanged = true;
+                System.out.println("The image file " + entry.fileName + " was deleted");
+            } else if (!stored) {
+                // histogram values are missing from the feature files
+                manifest.remove(entry.fileName);
+            }
+        }
+        compactImages();
+        // rows without a manifest entry, e.g. of an interrupted run, are dropped
+        // and are still in the statistics
+        if (normalization != null && normalization.getStats().count() != intensityMatrix.rows() - 1) {
+            normalization = null;
+        }
+        storedImages = intensityMatrix.rows();
+
+        int nextImageNo = intensityMatrix.rows();
+        List<Integer> pendingNumbers = new ArrayList<Integer>();
+        List<Path> paths = new ArrayList<Path>();
+        List<String> hashes = new ArrayList<String>();
+        for (Path image : images) {
+            ImageManifest.Entry entry = manifest.get(ImageCorpus.relativeName(imageDirectory, image));
+            if (entry == null) {
+                pendingNumbers.add(nextImageNo++);
+                paths.add(image);
+                hashes.add(null);
+                continue;
+            }
             try {
-                java.net.URL ImgUrl = this.getClass().getResource("images/" + imageCount + ".jpg");
-                BufferedImage image = ImageIO.read(ImgUrl);
-                getPixelValues(image, image.getHeight(), image.getWidth());
-                imageCount++;
+                BasicFileAttributes attributes = Files.readAttributes(image, BasicFileAttributes.class);
+                if (!entry.sameFile(attributes.size(), attributes.lastModifiedTime().toMillis())) {
+                    pendingNumbers.add(entry.index);
+                    paths.add(image);
+                    hashes.add(entry.hash);
+                } else if (!thumbnails.contains(entry.hash)) {
+                    pendingNumbers.add(entry.index);
+                    paths.add(image);
+                    hashes.add(null);
+                }
             } catch (IOException e) {
-                System.out.println("Error occurred when reading the image file.");
+                System.out.println("Error occurred when reading the attributes of " + entry.fileName);
+            }
+        }
+        intensityMatrix.setRows(nextImageNo);
+        colorCodeMatrix.setRows(nextImageNo);
+        imageSizeMatrix.setRows(nextImageNo);
+
+        pendingImages = new int[pendingNumbers.size()];
+        for (int i = 0; i < pendingImages.length; i++) {
+            pendingImages[i] = pendingNumbers.get(i);
+        }
+        pendingPaths = paths.toArray(new Path[0]);
+        previousHash = hashes.toArray(new String[0]);
+    }
+
+    /**
+     * compactImages method renumbers the images in the manifest to 1..n in their
+     * current order and moves their feature rows accordingly
+     * 
+     * pre: every manifest entry has a row in the feature matrices
+     * 
+     * post: image numbers are dense and the matrices have n + 1 rows
+     */
+    private void compactImages() {
+        List<ImageManifest.Entry> entries = new ArrayList<ImageManifest.Entry>(manifest.entries());
+        entries.sort(Comparator.comparingInt(entry -> entry.index));
+        int imageNo = 1;
+        for (ImageManifest.Entry entry : entries) {
+            if (entry.index != imageNo) {
+                intensityMatrix.copyRow(entry.index, imageNo);
+                colorCodeMatrix.copyRow(entry.index, imageNo);
+                imageSizeMatrix.copyRow(entry.index, imageNo);
+                changedRow(imageNo);
+                manifest.put(entry.withIndex(imageNo));
+                featuresChanged = true;
+            }
+            imageNo++;
+        }
+        if (intensityMatrix.rows() != imageNo || colorCodeMatrix.rows() != imageNo
+                || imageSizeMatrix.rows() != imageNo) {
+            featuresChanged = true;
+        }
+        intensityMatrix.setRows(imageNo);
+        colorCodeMatrix.setRows(imageNo);
+        imageSizeMatrix.setRows(imageNo);
+    }
+
+    /**
+     * getImagePaths method returns the image files in image number order
+     * 
+     * pre: extraction is finished
+     * 
+     * post: returns an array whose element i is the file of image number i, element
+     * 0 is not used
+     */
+    public Path[] getImagePaths() {
+        Path[] imagePaths = new Path[manifest.entries().size() + 1];
+        for (ImageManifest.Entry entry : manifest.entries()) {
+            imagePaths[entry.index] = imageDirectory.resolve(entry.fileName);
+        }
+        return imagePaths;
+    }
+
+    /**
+     * getThumbnails method returns the thumbnails in image number order
+     * 
+     * pre: extraction is finished, ThumbnailStore.ICON_SIZE or PREVIEW_SIZE
+     * 
+     * post: returns an array whose element i is the thumbnail of image number i,
+     * element 0 is not used
+     */
+    public ThumbnailStore.Thumbnail[] getThumbnails(int size) {
+        ThumbnailStore.Thumbnail[] imageThumbnails = new ThumbnailStore.Thumbnail[manifest.entries().size() + 1];
+        for (ImageManifest.Entry entry : manifest.entries()) {
+            imageThumbnails[entry.index] = thumbnails.thumbnail(entry.hash, size);
+        }
+        return imageThumbnails;
+    }
+
+    /**
+     * decodeImages method is the decode stage. Each decode thread claims the next
+     * pending image, reads the file and calculates its hash. Images whose content
+     * did not change are passed straight to the writer.
+     * 
+     * pre: decodedQueue and resultQueue are instantiated
+     * 
+     * post: every changed image is decoded and put in the decodedQueue
+     */
+    private void decodeImages(BlockingQueue<DecodedImage> decodedQueue, BlockingQueue<HistogramResult> resultQueue) {
+        ImageDecoder decoder = new ImageDecoder();
+        int next;
+        while ((next = nextImage.getAndIncrement()) < pendingImages.length) {
+            int imageNo = pendingImages[next];
+            Path path = pendingPaths[next];
+            String fileName = ImageCorpus.relativeName(imageDirectory, path);
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                byte[] content = Files.readAllBytes(path);
+                ImageManifest.Entry entry = new ImageManifest.Entry(imageNo, attributes.size(),
+                        attributes.lastModifiedTime().toMillis(), ImageManifest.hash(content), fileName);
+                if (entry.hash.equals(previousHash[next]) && thumbnails.contains(entry.hash)) {
+                    if (!put(resultQueue, new HistogramResult(imageNo, null, null, 0, 0, entry))) {
+                        return;
+                    }
+                    continue;
+                }
+
+                BufferedImage image = decoder.decode(content);
+                if (image == null) {
+                    System.out.println("The image file " + fileName + " cannot be decoded");
+                    continue;
+                }
+                if (!put(decodedQueue,
+                        new DecodedImage(imageNo, image, decoder.getWidth(), decoder.getHeight(), entry))) {
+                    return;
+                }
+            } catch (IOException e) {
+                System.out.println("Error occurred when reading the image file " + fileName);
+            } catch (RuntimeException e) {
+                System.out.println("The image file " + fileName + " cannot be decoded: " + e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * calculateHistograms method is the histogram stage. Every worker owns its
+     * bin arrays, so the workers never share any mutable state.
+     * 
+     * pre: decodedQueue and resultQueue are instantiated
+     * 
+     * post: thumbnails of each decoded image are saved and its histogram is put
+     * in the resultQueue
+     */
+    private void calculateHistograms(BlockingQueue<DecodedImage> decodedQueue,
+            BlockingQueue<HistogramResult> resultQueue) {
+        int[] intensityBins = new int[26];
+        int[] colorCodeBins = new int[65];
+        HistogramKernel kernel = new HistogramKernel();
+        try {
+            DecodedImage decoded;
+            while ((decoded = take(decodedQueue)) != END_OF_IMAGES && decoded != null) {
+                BufferedImage image = decoded.image;
+                try {
+                    if (LEGACY_EXTRACTION || !kernel.calculate(image, intensityBins, colorCodeBins)) {
+                        getPixelValues(image, image.getHeight(), image.getWidth(), intensityBins, colorCodeBins);
+                    }
+                } catch (RuntimeException e) {
+                    System.out.println("Unable to calculate the histograms of " + decoded.entry.fileName + ": " + e);
+                    continue;
+                }
+                long fullArea = (long) decoded.width * decoded.height;
+                long sampledArea = (long) image.getWidth() * image.getHeight();
+                ImageDecoder.scaleBins(intensityBins, fullArea, sampledArea);
+                ImageDecoder.scaleBins(colorCodeBins, fullArea, sampledArea);
+                try {
+                    thumbnails.save(decoded.entry.hash, image);
+                } catch (IOException e) {
+                    System.out.println("Unable to save the thumbnails of " + decoded.entry.fileName);
+                }
+                if (!put(resultQueue, new HistogramResult(decoded.imageNo, intensityBins.clone(),
+                        colorCodeBins.clone(), decoded.width, decoded.height, decoded.entry))) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * storeHistograms method is the writer stage. It is the only thread that
+     * touches intensityMatrix, colorCodeMatrix and the manifest.
+     * 
+     * pre: resultQueue is instantiated
+     * 
+     * post: intenistyMatrix, colorCodeMatrix and imageSizeMatrix are populated with
+     * the values of each image at the index that is the same as image number and
+     * the feature files and manifest are written. Thumbnails of images that are
+     * no longer in the manifest are deleted.
+     */
+    private void storeHistograms(BlockingQueue<HistogramResult> resultQueue) {
+        try {
+            HistogramResult result;
+            while ((result = take(resultQueue)) != END_OF_RESULTS && result != null) {
+                if (result.intensityBins != null) {
+                    // a changed image is removed from the statistics with its old values
+                    if (normalization != null && result.imageNo < storedImages) {
+                        normalization.remove(result.imageNo, imageSize(result.imageNo));
+                    }
+                    for (int i = 1; i < 26; i++) {
+                        intensityMatrix.set(result.imageNo, i, result.intensityBins[i]);
+                    }
+
+                    for (int i = 1; i < 65; i++) {
+                        colorCodeMatrix.set(result.imageNo, i, result.colorCodeBins[i]);
+                    }
+                    imageSizeMatrix.set(result.imageNo, 1, result.width);
+                    imageSizeMatrix.set(result.imageNo, 2, result.height);
+                    if (normalization != null) {
+                        normalization.add(result.imageNo, imageSize(result.imageNo));
+                    }
+                    changedRow(result.imageNo);
+                    extractedCount.incrementAndGet();
+                    featuresChanged = true;
+                }
+                uncommittedEntries.add(result.entry);
+                if (uncommittedEntries.size() >= CHECKPOINT_INTERVAL) {
+                    checkpoint();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        // images that could not be decoded leave a gap in the image numbers
+        for (ImageManifest.Entry entry : uncommittedEntries) {
+            manifest.put(entry);
+        }
+        uncommittedEntries.clear();
+        compactImages();
+        checkpoint();
+        saveNormalization();
+
+        Set<String> hashes = new HashSet<String>();
+        for (ImageManifest.Entry entry : manifest.entries()) {
+            hashes.add(entry.hash);
+        }
+        thumbnails.retain(hashes);
+    }
+
+    /**
+     * runStage method runs the loop of a stage thread
+     * 
+     * pre: stage is the loop of a decode, histogram or writer thread
+     * 
+     * post: if the stage fails the failure is printed and stageFailed is set, so
+     * the other stages do not wait for it
+     */
+    private void runStage(Runnable stage) {
+        try {
+            stage.run();
+        } catch (RuntimeException | Error e) {
+            stageFailed = true;
+            System.out.println("The " + Thread.currentThread().getName() + " thread failed: " + e);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * put method puts an item in a queue, waiting while the queue is full
+     * 
+     * pre: none
+     * 
+     * post: returns true if the item was put, false if a stage failed
+     */
+    private <T> boolean put(BlockingQueue<T> queue, T item) throws InterruptedException {
+        while (!stageFailed) {
+            if (queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * take method takes the next item of a queue, waiting while it is empty
+     * 
+     * pre: none
+     * 
+     * post: returns the item, or null if a stage failed
+     */
+    private <T> T take(BlockingQueue<T> queue) throws InterruptedException {
+        while (!stageFailed) {
+            T item = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (item != null) {
+                return item;
             }
         }
+        return null;
+    }
 
-        writeIntensity();
-        writeColorCode();
+    // number of pixels of a stored image
+    private int imageSize(int imageNo) {
+        return imageSizeMatrix.get(imageNo, 1) * imageSizeMatrix.get(imageNo, 2);
+    }
+
+    /**
+     * saveNormalization method saves the statistics of the features with the
+     * fingerprint of the feature files
+     * 
+     * pre: the feature files are saved
+     * 
+     * post: Normalization.bin holds the statistics of the stored images, which
+     * are calculated from every image first if they were not kept up to date
+     */
+    private void saveNormalization() {
+        if (normalization == null) {
+            System.out.println("Calculating the feature statistics of every image");
+            int[] imageSizes = new int[imageSizeMatrix.rows()];
+            for (int i = 1; i < imageSizes.length; i++) {
+                imageSizes[i] = imageSize(i);
+            }
+            normalization = FeatureNormalization.statistics(intensityMatrix, colorCodeMatrix,
+                    RunningStats.of(FeatureRows.areaNormalize(intensityMatrix, colorCodeMatrix, imageSizes)));
+        }
+        normalization.getStats().save("Normalization",
+                FeatureStore.fingerprint("Intensity", "ColorCode", "ImageSize"));
+    }
+
+    /**
+     * getFeatureStatistics method returns the statistics of the features of
+     * the stored images
+     * 
+     * pre: extraction is finished
+     * 
+     * post: returns the statistics of the images 1 to n, or null if they
+     * could not be kept
+     */
+    public RunningStats getFeatureStatistics() {
+        return (normalization == null) ? null : normalization.getStats();
+    }
+
+    // marks a row of the feature matrices to be written by the next checkpoint
+    private void changedRow(int imageNo) {
+        intensityFile.changed(imageNo);
+        colorCodeFile.changed(imageNo);
+        imageSizeFile.changed(imageNo);
+    }
+
+    /**
+     * checkpoint method saves the feature files and then the manifest
+     * 
+     * pre: called by the writer stage
+     * 
+     * post: the rows of Intensity.bin, ColorCode.bin and ImageSize.bin that
+     * changed since the last checkpoint are written, followed by
+     * Manifest.txt with the entries of the images stored so far
+     */
+    private void checkpoint() {
+        if (featuresChanged) {
+            writeIntensity();
+            writeColorCode();
+            imageSizeFile.save(imageSizeMatrix);
+            featuresChanged = false;
+        }
+        for (ImageManifest.Entry entry : uncommittedEntries) {
+            manifest.put(entry);
+        }
+        uncommittedEntries.clear();
+        try {
+            manifest.save();
+        } catch (IOException e) {
+            System.out.println("Unable to write the manifest");
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -69,14 +697,15 @@ public class ReadImage {
      * and call getIntensity and getColorCode method to calculate the respective
      * histogram values.
      * 
-     * pre: image and its height and width
+     * pre: image, its height and width and the bins of the calling worker
      * 
-     * post: intenistyMatrix and colorCodeMatrix are populated with histogram values
-     * of the image at the index that is the same as image number.
+     * post: intensityBins and colorCodeBins are populated with histogram values
+     * of the image
      * 
      */
 
-    private void getPixelValues(BufferedImage image, int height, int width) {
+    private void getPixelValues(BufferedImage image, int height, int width, int[] intensityBins,
+            int[] colorCodeBins) {
         int[] pixel;
         for (int i = 0; i < 26; i++) {
             intensityBins[i] = 0;
@@ -89,19 +718,10 @@ public class ReadImage {
         for (int y = 0; y < height; y++) {
             for (int x = 0; x < width; x++) {
                 pixel = image.getRaster().getPixel(x, y, new int[3]);
-                getIntensity(pixel);
-                getColorCode(pixel);
+                getIntensity(pixel, intensityBins);
+                getColorCode(pixel, colorCodeBins);
             }
         }
-
-        for (int i = 1; i < 26; i++) {
-            intensityMatrix[imageCount][i] = intensityBins[i];
-        }
-
-        for (int i = 1; i < 65; i++) {
-            colorCodeMatrix[imageCount][i] = colorCodeBins[i];
-        }
-
     }
 
     /**
@@ -113,7 +733,7 @@ public class ReadImage {
      * post: count of respecitve bin in the intensityBin array is increased by 1
      */
 
-    private void getIntensity(int[] pixel) {
+    private void getIntensity(int[] pixel, int[] intensityBins) {
 
         Double intensityDouble = (0.299 * pixel[0]) + (0.587 * pixel[1]) + (0.114 * pixel[2]);
         int intensity = (int) Math.floor(intensityDouble);
@@ -136,7 +756,7 @@ public class ReadImage {
      * post: count of respecitve bin in the colorCodeBin array is increased by 1
      */
 
-    private void getColorCode(int[] pixel) {
+    private void getColorCode(int[] pixel, int[] colorCodeBins) {
         String sixBitColor = "";
         for (int i = 0; i < 3; i++) {
             String color = Integer.toBinaryString(pixel[i]);
@@ -150,82 +770,33 @@ public class ReadImage {
 
     /**
      * writeColorCode method is responsible to write the colorCodeMatrix values in a
-     * ColorCode text file
+     * ColorCode feature file
      * 
      * pre: colorCodeMatrix is populated with count of 64 histogram bin values of
      * each image
      * in database
      * 
-     * post: ColorCode.txt file is saved in the cwd
+     * post: the changed rows of the ColorCode.bin file in the cwd are written
      */
 
     private void writeColorCode() {
-        writeFile(colorCodeMatrix, "ColorCode.txt");
+        colorCodeFile.save(colorCodeMatrix);
 
     }
 
     /**
      * writeIntensity method is responsible to write the intensityMatrix values in a
-     * Intensity text file
+     * Intensity feature file
      * 
      * pre: IntensityMatrix is populated with count of 25 histogram bin values of
      * each image
      * in database
      * 
-     * post: Intensity.txt file is saved in the cwd
+     * post: the changed rows of the Intensity.bin file in the cwd are written
      */
 
     private void writeIntensity() {
-        writeFile(intensityMatrix, "Intensity.txt");
-    }
-
-    /**
-     * writeFile method is responsible to write the values of a matrix in a
-     * text file
-     * 
-     * pre: matrix that contains the values and text fileName to write the values
-     * 
-     * post: file with filename is saved in the cwd
-     * 
-     */
-
-    private void writeFile(int[][] matrix, String fileName) {
-        StringBuilder builder = new StringBuilder();
-        for (int i = 0; i < matrix.length; i++) {
-            for (int j = 0; j < matrix[i].length; j++) {
-                builder.append(matrix[i][j] + "");// append to the output string
-                if (j < matrix.length - 1)// if this is not the last row element
-                    builder.append(",");
-            }
-            builder.append("\n");// append new line at the end of the row
-        }
-        BufferedWriter writer = null;
-        try {
-            File file = new File(
-                    Paths.get("").toAbsolutePath().toString().replace("\\", "/") + "/" + fileName);
-            if (file.exists()) {
-                file.delete();
-            }
-
-            writer = new BufferedWriter(
-                    new FileWriter(
-                            Paths.get("").toAbsolutePath().toString().replace("\\", "/") + "/" + fileName));
-        } catch (IOException e) {
-            System.out.println("Unble to write into " + fileName + "file");
-            e.printStackTrace();
-        }
-        try {
-            writer.write(builder.toString());
-        } catch (IOException e) {
-            System.out.println("Error occurred while saving the string representation of the " + fileName + " matrix");
-            e.printStackTrace();
-        } // save the string representation of the board
-        try {
-            writer.close();
-        } catch (IOException e) {
-            System.out.println("Error occured while closing the writer");
-            e.printStackTrace();
-        }
+        intensityFile.save(intensityMatrix);
     }
 
 }
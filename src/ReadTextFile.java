@@ -1,58 +1,169 @@
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 public class ReadTextFile {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] END_OF_LINE = { '\n' };
+
     ReadTextFile() {
     }
 
     /**
      * readFile method opens the given text file from the pwd containing the matrix
      * with the histogram bin values of each image.
-     * 
+     *
+     * The file is read in blocks and parsed byte by byte, the digits are added
+     * up straight into the matrix without creating any strings.
+     *
      * pre: (a) ColorCodes.txt and/or Intensity.txt file is loaded
-     * (b) colorCodeMatrix and/or intensityMatrix is instantiated
-     * 
-     * post: The contents of the file are read and stored in the two
-     * dimensional array passed.
-     * 
+     * (b) colorCodeMatrix and/or intensityMatrix is instantiated with the number
+     * of columns of the file
+     *
+     * post: The contents of the file are read and stored in the matrix passed,
+     * which grows by one row for every line of the file.
+     *
+     */
+
+    public IntMatrix readFile(IntMatrix matrix, String fileName) {
+        long start = System.nanoTime();
+        int firstRow = matrix.rows();
+        try (FileChannel channel = FileChannel.open(
+                Paths.get("").toAbsolutePath().resolve(fileName), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            Parser parser = new Parser(matrix, fileName);
+            int length;
+            while ((length = channel.read(buffer)) >= 0) {
+                parser.parse(buffer.array(), length);
+                buffer.clear();
+            }
+            parser.parse(END_OF_LINE, 1);
+        } catch (NoSuchFileException e) {
+            System.out.println("The file " + fileName + " does not exist");
+            return matrix;
+        } catch (IOException e) {
+            System.out.println("Error while reading the file " + fileName);
+            e.printStackTrace();
+        }
+
+        System.out.println(String.format("Read %d rows from %s in %.1f ms", matrix.rows() - firstRow, fileName,
+                (System.nanoTime() - start) / 1e6));
+        return matrix;
+    }
+
+    /**
+     * The Parser class holds the state of the line that is being parsed.
+     *
+     * A value that is not a number, e.g. digits separated by a space, is
+     * reported with its line and column and stored as 0, so the rows stay in
+     * line with the image numbers. Lines with too many or too few values are
+     * reported, the missing values are stored as 0. Empty lines are skipped.
      */
+    private static final class Parser {
+        private final IntMatrix matrix;
+        private final String fileName;
+
+        private int line = 1;
+        private long offset = 0; // bytes parsed before the current block
+        private long lineStart = 0; // offset of the current line
+        private long valueStart = 0; // offset of the current value
+        private final int[] rowValues;
+        private boolean rowStarted = false;
+        private int col = 0;
+        private long value = 0;
+        private boolean hasValue = false;
+        // a space or carriage return followed the digits of the current value
+        private boolean spaced = false;
+        private boolean malformed = false;
 
-    public int[][] readFile(int[][] matrix, String fileName) {
-        try {
-
-            BufferedReader reader = new BufferedReader(
-                    new FileReader(Paths.get("").toAbsolutePath().toString().replace("\\", "/") + "/" + fileName));
-            String line = "";
-            int row = 0;
-            try {
-                while ((line = reader.readLine()) != null) {
-                    String[] cols = line.split(",");
-                    int col = 0;
-                    for (String c : cols) {
-                        matrix[row][col] = Integer.parseInt(c);
-                        col++;
+        Parser(IntMatrix matrix, String fileName) {
+            this.matrix = matrix;
+            this.fileName = fileName;
+            this.rowValues = new int[matrix.cols()];
+        }
+
+        /**
+         * parse method parses a block of the file, the state is kept in local
+         * variables while the block is parsed
+         */
+        void parse(byte[] bytes, int length) {
+            long value = this.value;
+            boolean hasValue = this.hasValue;
+            boolean spaced = this.spaced;
+            for (int i = 0; i < length; i++) {
+                int b = bytes[i];
+                int digit = b - '0';
+                if (digit >= 0 && digit <= 9) {
+                    // "1 2" is not read as 12
+                    if (spaced) {
+                        malformed = true;
+                    }
+                    value = value * 10 + digit;
+                    hasValue = true;
+                    // the value is malformed before it can overflow the long
+                    if (value > Integer.MAX_VALUE) {
+                        malformed = true;
+                        value = 0;
                     }
-                    row++;
+                } else if (b == ',' || b == '\n') {
+                    endValue(b == ',', hasValue, value);
+                    value = 0;
+                    hasValue = false;
+                    spaced = false;
+                    valueStart = offset + i + 1;
+                    if (b == '\n') {
+                        endRow();
+                        line++;
+                        lineStart = valueStart;
+                    }
+                } else if (b == '\r' || b == ' ') {
+                    spaced = hasValue;
+                } else {
+                    hasValue = true;
+                    malformed = true;
                 }
-
-            } catch (NumberFormatException | IOException e) {
-                System.out.println("Error while reading the line");
-                e.printStackTrace();
-            }
-            try {
-                reader.close();
-            } catch (IOException e) {
-                System.out.println("Error during closing the reader");
-                e.printStackTrace();
             }
+            offset += length;
+            this.value = value;
+            this.hasValue = hasValue;
+            this.spaced = spaced;
+        }
 
-        } catch (FileNotFoundException e) {
-            System.out.println("The file " + fileName + " does not exist");
+        private void endValue(boolean comma, boolean hasValue, long value) {
+            // a value is stored for "12," and "12\n", an empty value only for ","
+            if (hasValue || comma) {
+                rowStarted = true;
+                if (malformed) {
+                    System.out.println("Malformed value in " + fileName + " at line " + line + ", column "
+                            + (valueStart - lineStart + 1));
+                } else if (col < rowValues.length) {
+                    rowValues[col] = (int) value;
+                } else if (col == rowValues.length && hasValue) {
+                    System.out.println("Line " + line + " of " + fileName + " has more than " + rowValues.length
+                            + " values");
+                }
+                col++;
+            }
+            malformed = false;
         }
 
-        return matrix;
+        private void endRow() {
+            if (rowStarted) {
+                // a row may leave out the value of column 0
+                if (col < rowValues.length - 1) {
+                    System.out.println("Line " + line + " of " + fileName + " has fewer than "
+                            + (rowValues.length - 1) + " values");
+                }
+                matrix.appendRow(rowValues);
+                Arrays.fill(rowValues, 0);
+            }
+            rowStarted = false;
+            col = 0;
+        }
     }
 }
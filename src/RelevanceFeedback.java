@@ -0,0 +1,145 @@
+
+/**
+ * The RelevanceFeedback keeps the images the user marked as relevant and the
+ * RunningStats of their normalized features, which it reads from the
+ * FeatureRows of the engine.
+ *
+ * Marking or unmarking an image updates the average and standard deviation
+ * of every feature in O(features), so the weights of the color code +
+ * intensity sort are calculated without going through the relevant images
+ * again. The weights are the same as the ones of CalculateUtil.calculateWeight
+ * up to rounding.
+ */
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+public class RelevanceFeedback {
+
+    private final FeatureRows featureRows;
+    private final double[] row;
+    private final Set<Integer> images = new HashSet<Integer>();
+    private final Set<Integer> view = Collections.unmodifiableSet(images);
+    private final RunningStats stats;
+    // stats with the query image, the query image is not marked as relevant
+    private final RunningStats queryStats;
+    private final double[][] averageSdSelected;
+
+    /**
+     * constructor
+     *
+     * pre: featureRows gives the normalized features of every image
+     *
+     * post: instantiates RelevanceFeedback without relevant images
+     */
+    RelevanceFeedback(FeatureRows featureRows) {
+        this.featureRows = featureRows;
+        this.row = new double[featureRows.cols()];
+        this.stats = new RunningStats(featureRows.cols());
+        this.queryStats = new RunningStats(featureRows.cols());
+        this.averageSdSelected = new double[featureRows.cols()][2];
+    }
+
+    /**
+     * add method marks an image as relevant
+     *
+     * pre: image is a row of featureRows
+     *
+     * post: returns true if the image was not relevant before
+     */
+    public boolean add(int image) {
+        if (!images.add(image)) {
+            return false;
+        }
+        featureRows.row(image, row, 0);
+        stats.add(row, 0);
+        return true;
+    }
+
+    /**
+     * remove method unmarks a relevant image
+     *
+     * pre: image is a row of featureRows that was not changed since
+     * it was added
+     *
+     * post: returns true if the image was relevant
+     */
+    public boolean remove(int image) {
+        if (!images.remove(image)) {
+            return false;
+        }
+        featureRows.row(image, row, 0);
+        stats.remove(row, 0);
+        return true;
+    }
+
+    /**
+     * toggle method marks an image that is not relevant and unmarks a relevant
+     * one
+     *
+     * pre: image is a row of featureRows
+     *
+     * post: returns true if the image is relevant now
+     */
+    public boolean toggle(int image) {
+        return remove(image) ? false : add(image);
+    }
+
+    public void clear() {
+        images.clear();
+        stats.clear();
+    }
+
+    public boolean isEmpty() {
+        return images.isEmpty();
+    }
+
+    /**
+     * images method returns the relevant images
+     *
+     * pre: none
+     *
+     * post: returns a read only view that follows the changes
+     */
+    public Set<Integer> images() {
+        return view;
+    }
+
+    /**
+     * calculateWeight method calculates the weight of every feature like
+     * CalculateUtil.calculateWeight
+     *
+     * pre: weight has one element per column of featureRows
+     *
+     * post: without relevant images every weight is 1 / number of features.
+     * Otherwise the weight of a feature is 1 / its standard deviation over the
+     * relevant images and the query image, 0 if the standard deviation is 0,
+     * divided by the sum of the weights. The query image is not marked as
+     * relevant.
+     */
+    public void calculateWeight(double[] weight, int picNo) {
+        if (images.isEmpty()) {
+            for (int i = 1; i < weight.length; i++) {
+                weight[i] = 1 / (double) (weight.length - 1);
+            }
+            return;
+        }
+        RunningStats selected = stats;
+        if (!images.contains(picNo)) {
+            queryStats.copyFrom(stats);
+            featureRows.row(picNo, row, 0);
+            queryStats.add(row, 0);
+            selected = queryStats;
+        }
+        selected.averageSd(averageSdSelected);
+        double sum = 0.0;
+        for (int i = 1; i < weight.length; i++) {
+            weight[i] = (averageSdSelected[i][1] == 0) ? 0 : (1 / averageSdSelected[i][1]);
+            sum += weight[i];
+        }
+        for (int i = 1; i < weight.length; i++) {
+            weight[i] /= sum;
+        }
+    }
+}
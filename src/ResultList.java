@@ -0,0 +1,169 @@
+
+/**
+ * The ResultList shows the images in the order of a ranking.
+ *
+ * It is a JList over a model that reads the image numbers straight from the
+ * first elements of the buttonOrder array, so a new ranking is shown by telling the list that its
+ * contents changed. The cells have a fixed size and are drawn by a single
+ * renderer, only the cells that are visible are drawn and their icons are
+ * requested from the ThumbnailCache. Showing a ranking therefore costs the
+ * same for any number of images.
+ *
+ * In relevance mode every cell shows a checkbox that is selected when the
+ * image is in the relevance set.
+ */
+
+import java.awt.Dimension;
+import java.awt.Point;
+import java.nio.file.Path;
+import java.util.Set;
+
+import javax.swing.AbstractListModel;
+import javax.swing.ImageIcon;
+import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JList;
+import javax.swing.JPanel;
+import javax.swing.ListCellRenderer;
+import javax.swing.ListSelectionModel;
+
+public class ResultList extends JList<Integer> {
+
+    private static final int CELL_WIDTH = 120;
+    private static final int CELL_HEIGHT = 110;
+
+    private final RankModel model;
+    private final Path[] imagePaths;
+    private final ThumbnailStore.Thumbnail[] icons;
+    private final Set<Integer> relevanceSet;
+    private final ThumbnailCache thumbnailCache;
+    private boolean relevanceMode = false;
+
+    /**
+     * The RankModel returns buttonOrder[index + 1] as element index, because
+     * element 0 of buttonOrder is not used. Only the first count images of
+     * buttonOrder are ranked.
+     */
+    private static final class RankModel extends AbstractListModel<Integer> {
+        private final int[] buttonOrder;
+        private int count;
+
+        RankModel(int[] buttonOrder, int count) {
+            this.buttonOrder = buttonOrder;
+            this.count = count;
+        }
+
+        public int getSize() {
+            return count;
+        }
+
+        public Integer getElementAt(int index) {
+            return buttonOrder[index + 1];
+        }
+
+        void reordered(int newCount) {
+            int oldCount = count;
+            count = newCount;
+            if (newCount < oldCount) {
+                fireIntervalRemoved(this, newCount, oldCount - 1);
+            } else if (newCount > oldCount) {
+                fireIntervalAdded(this, oldCount, newCount - 1);
+            }
+            if (newCount > 0) {
+                fireContentsChanged(this, 0, newCount - 1);
+            }
+        }
+    }
+
+    /**
+     * The CellRenderer draws the icon button and the relevance checkbox of one
+     * image at a time
+     */
+    private final class CellRenderer extends JPanel implements ListCellRenderer<Integer> {
+        private final JButton imgButton = new JButton();
+        private final JCheckBox checkBox = new JCheckBox("Relevant");
+
+        CellRenderer() {
+            imgButton.setPreferredSize(new Dimension(100, 75));
+            checkBox.setFocusable(false);
+            add(imgButton);
+            add(checkBox);
+        }
+
+        public JPanel getListCellRendererComponent(JList<? extends Integer> list, Integer imageNo, int index,
+                boolean isSelected, boolean cellHasFocus) {
+            // repaint draws only the visible cells again, so a late icon is
+            // never drawn into the cell of another image
+            ImageIcon icon = thumbnailCache.request(icons[imageNo], loaded -> ResultList.this.repaint());
+            imgButton.setIcon(icon);
+            imgButton.setDisabledIcon(icon);
+            imgButton.setEnabled(!relevanceMode);
+            checkBox.setVisible(relevanceMode);
+            checkBox.setSelected(relevanceSet.contains(imageNo));
+            setToolTipText(imagePaths[imageNo].getFileName().toString());
+            return this;
+        }
+    }
+
+    /**
+     * constructor
+     *
+     * pre: buttonOrder holds count image numbers from element 1, imagePaths and
+     * icons the image file and thumbnail of each image number
+     *
+     * post: the list shows the images in buttonOrder, 4 per row
+     */
+    ResultList(int[] buttonOrder, int count, Path[] imagePaths, ThumbnailStore.Thumbnail[] icons,
+            Set<Integer> relevanceSet,
+            ThumbnailCache thumbnailCache) {
+        this.model = new RankModel(buttonOrder, count);
+        this.imagePaths = imagePaths;
+        this.icons = icons;
+        this.relevanceSet = relevanceSet;
+        this.thumbnailCache = thumbnailCache;
+        setModel(model);
+        setCellRenderer(new CellRenderer());
+        setLayoutOrientation(JList.HORIZONTAL_WRAP);
+        setVisibleRowCount(-1);
+        setFixedCellWidth(CELL_WIDTH);
+        setFixedCellHeight(CELL_HEIGHT);
+        setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        setFocusable(false);
+    }
+
+    /**
+     * reordered method shows the ranking after buttonOrder was changed
+     *
+     * pre: the first count elements of buttonOrder from element 1 are sorted
+     *
+     * post: the visible cells are drawn again in the new order
+     */
+    public void reordered(int count) {
+        clearSelection();
+        model.reordered(count);
+    }
+
+    /**
+     * imageAt method returns the image shown at a point of the list
+     *
+     * pre: point in the coordinates of the list
+     *
+     * post: returns the image number, or 0 if there is no cell at the point
+     */
+    public int imageAt(Point point) {
+        int index = locationToIndex(point);
+        if (index < 0 || !getCellBounds(index, index).contains(point)) {
+            return 0;
+        }
+        return model.getElementAt(index);
+    }
+
+    public boolean isRelevanceMode() {
+        return relevanceMode;
+    }
+
+    public void setRelevanceMode(boolean relevanceMode) {
+        this.relevanceMode = relevanceMode;
+        repaint();
+    }
+}
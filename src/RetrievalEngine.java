@@ -0,0 +1,268 @@
+
+/**
+ * The RetrievalEngine holds the corpus that every RetrievalSession ranks: the
+ * normalized intensity, color code and color code + intensity matrices, the
+ * index or representation of the color code + intensity sort chosen at start
+ * and the rankings cached by the queries.
+ *
+ * With -Dcbir.quantization no matrix of doubles is kept. All three sorts rank
+ * the images on the codes of the QuantizedMatrix and the features of the
+ * query and the candidates to rescore are calculated from the histograms by
+ * FeatureRows, so the heap holds the codes and the mapped histograms stay in
+ * the page cache. The codes are of the normalized features, whose difference
+ * times the standard deviation of the feature is the difference of the
+ * histogram values divided by the image size, so the color code and intensity
+ * sorts weight the codes of their features by the standard deviations and
+ * rescore with the Manhattan distance of the histogram rows.
+ *
+ * The statistics the color code + intensity features are normalized with are
+ * the ones ReadImage keeps up to date while it applies the changes of the
+ * image directory, so they are only calculated from every image when there
+ * are none. The engine keeps the FeatureNormalization of its matrix.
+ *
+ * The engine is not changed after it is made, so any number of sessions can
+ * rank on it from their own threads without locking. The matrices must not be
+ * changed while the engine is in use, a changed corpus gets a new engine. The
+ * only shared state that changes are the cached rankings, which are kept in
+ * -Dcbir.cacheStripes (16) QueryCaches, each with its own lock and an equal
+ * share of the capacity. The stripe of a ranking is chosen by its query image,
+ * so sessions that rank different images rarely wait for each other, while
+ * the ranking of a popular image is calculated once for every session.
+ */
+
+public class RetrievalEngine {
+
+    // -Dcbir.ann=true ranks the color code + intensity queries with the HnswIndex
+    private static final boolean USE_INDEX = Boolean.getBoolean("cbir.ann");
+    // -Dcbir.ivf=true ranks them with the IvfPqIndex
+    private static final boolean USE_IVF = Boolean.getBoolean("cbir.ivf");
+    // -Dcbir.quantization=8 or 16 ranks them on 8 or 16 bit codes, see QuantizedMatrix
+    private static final int QUANTIZATION_BITS = Integer.getInteger("cbir.quantization", 0);
+    private static final int CACHE_STRIPES = Math.max(1, Integer.getInteger("cbir.cacheStripes", 16));
+    private static final long CACHE_CAPACITY = Math.max(1, Long.getLong("cbir.queryCacheMB", 16)) << 20;
+
+    // the matrices are null with -Dcbir.quantization
+    private final DoubleMatrix normalizedIntensityMatrix;
+    private final DoubleMatrix normalizedColorCodeMatrix;
+    private final DoubleMatrix normalizedFeatureMartix;
+    private final FeatureRows featureRows;
+    // histogram rows and weights of the color code and intensity sorts on the
+    // codes, indexed by QueryCache.COLOR_CODE and INTENSITY
+    private final FeatureRows histogramRows;
+    private final double[][] codeWeights = new double[2][];
+    private final double[][] histogramWeights = new double[2][];
+    private final HnswIndex featureIndex;
+    private final IvfPqIndex ivfIndex;
+    private final QuantizedMatrix quantizedFeatureMatrix;
+    // null with -Dcbir.quantization
+    private final FeatureNormalization featureNormalization;
+    private final QueryCache[] queryCaches = new QueryCache[CACHE_STRIPES];
+
+    /**
+     * constructor
+     *
+     * pre: the matrices are normalized and have a row per image, they are null
+     * only if quantizedFeatureMatrix is not, featureRows gives the rows of
+     * normalizedFeatureMartix, featureIndex, ivfIndex and
+     * quantizedFeatureMatrix are null or made from the rows, histogramRows is
+     * null or the area normalized rows of the histograms that featureRows is
+     * calculated from by FeatureRows.normalize, featureNormalization is null
+     * or normalized normalizedFeatureMartix
+     *
+     * post: instantiates RetrievalEngine with empty caches
+     */
+    RetrievalEngine(DoubleMatrix normalizedIntensityMatrix, DoubleMatrix normalizedColorCodeMatrix,
+            DoubleMatrix normalizedFeatureMartix, FeatureRows featureRows, FeatureRows histogramRows,
+            HnswIndex featureIndex, IvfPqIndex ivfIndex, QuantizedMatrix quantizedFeatureMatrix,
+            FeatureNormalization featureNormalization) {
+        this.normalizedIntensityMatrix = normalizedIntensityMatrix;
+        this.normalizedColorCodeMatrix = normalizedColorCodeMatrix;
+        this.normalizedFeatureMartix = normalizedFeatureMartix;
+        this.featureRows = featureRows;
+        this.histogramRows = histogramRows;
+        if (histogramRows != null) {
+            int intensityCols = histogramRows.intensityCols();
+            setWeights(QueryCache.INTENSITY, 1, intensityCols, featureRows.averageSd());
+            setWeights(QueryCache.COLOR_CODE, intensityCols, histogramRows.cols(), featureRows.averageSd());
+        }
+        this.featureIndex = featureIndex;
+        this.ivfIndex = ivfIndex;
+        this.quantizedFeatureMatrix = quantizedFeatureMatrix;
+        this.featureNormalization = featureNormalization;
+        for (int i = 0; i < queryCaches.length; i++) {
+            queryCaches[i] = new QueryCache(Math.max(1, CACHE_CAPACITY / CACHE_STRIPES));
+        }
+    }
+
+    /**
+     * build method normalizes the histograms and makes the index or
+     * representation chosen by the -Dcbir.ann, -Dcbir.ivf and
+     * -Dcbir.quantization properties
+     *
+     * pre: intensityMatrix and colorCodeMatrix have a row per image,
+     * imageSize holds the number of pixels of every image
+     *
+     * post: returns the engine of the images
+     */
+    public static RetrievalEngine build(IntMatrix intensityMatrix, IntMatrix colorCodeMatrix, int[] imageSize) {
+        return build(intensityMatrix, colorCodeMatrix, imageSize, null);
+    }
+
+    /**
+     * build method normalizes the histograms with the statistics kept by
+     * ReadImage and makes the index or representation of the engine
+     *
+     * pre: intensityMatrix and colorCodeMatrix have a row per image,
+     * imageSize holds the number of pixels of every image, stats is null or
+     * holds the statistics of their features
+     *
+     * post: returns the engine of the images, the statistics are only
+     * calculated from every image if stats is null or of another number of
+     * images
+     */
+    public static RetrievalEngine build(IntMatrix intensityMatrix, IntMatrix colorCodeMatrix, int[] imageSize,
+            RunningStats stats) {
+        CalculateUtil calculate = new CalculateUtil();
+        if (stats != null && stats.count() != intensityMatrix.rows() - 1) {
+            stats = null;
+        }
+        if (QUANTIZATION_BITS != 0 && !USE_INDEX && !USE_IVF) {
+            // the rows are calculated from the histograms when they are needed
+            FeatureRows featureRows = FeatureRows.normalize(intensityMatrix, colorCodeMatrix, imageSize, stats);
+            return new RetrievalEngine(null, null, null, featureRows,
+                    FeatureRows.areaNormalize(intensityMatrix, colorCodeMatrix, imageSize), null, null,
+                    QuantizedMatrix.quantize(featureRows, QUANTIZATION_BITS), null);
+        }
+        DoubleMatrix normalizedIntensityMatrix = new DoubleMatrix(intensityMatrix.cols());
+        DoubleMatrix normalizedColorCodeMatrix = new DoubleMatrix(colorCodeMatrix.cols());
+        calculate.calculateAreaNormalization(normalizedIntensityMatrix, intensityMatrix, imageSize);
+        calculate.calculateAreaNormalization(normalizedColorCodeMatrix, colorCodeMatrix, imageSize);
+        DoubleMatrix normalizedFeatureMartix = new DoubleMatrix(intensityMatrix.rows(),
+                intensityMatrix.cols() + colorCodeMatrix.cols() - 1);
+        FeatureNormalization featureNormalization = calculate.calculateGaussianNormalization(
+                normalizedFeatureMartix, intensityMatrix, colorCodeMatrix, imageSize, stats);
+
+        HnswIndex featureIndex = null;
+        IvfPqIndex ivfIndex = null;
+        if (USE_INDEX) {
+            featureIndex = HnswIndex.open(normalizedFeatureMartix, "Combined");
+        } else if (USE_IVF) {
+            ivfIndex = IvfPqIndex.open(normalizedFeatureMartix, "CombinedIvf", IvfPqIndex.DEFAULT_LISTS,
+                    IvfPqIndex.DEFAULT_SUBSPACES);
+        }
+        return new RetrievalEngine(normalizedIntensityMatrix, normalizedColorCodeMatrix, normalizedFeatureMartix,
+                new FeatureRows(normalizedFeatureMartix), null, featureIndex, ivfIndex, null, featureNormalization);
+    }
+
+    /**
+     * setWeights method sets the weights of a sort on the features from to to
+     *
+     * pre: avgSd holds the average and standard deviation of every feature
+     *
+     * post: the code weights are the standard deviations of the features and
+     * the histogram weights 1, both are 0 for the other features
+     */
+    private void setWeights(int mode, int from, int to, double[][] avgSd) {
+        codeWeights[mode] = new double[avgSd.length];
+        histogramWeights[mode] = new double[avgSd.length];
+        for (int j = from; j < to; j++) {
+            // a feature without deviation has the same code for every image
+            codeWeights[mode][j] = Double.isNaN(avgSd[j][1]) ? 0 : avgSd[j][1];
+            histogramWeights[mode][j] = 1;
+        }
+    }
+
+    /**
+     * newSession method starts the session of a user
+     *
+     * pre: none
+     *
+     * post: returns a session without a query image
+     */
+    public RetrievalSession newSession() {
+        return new RetrievalSession(this);
+    }
+
+    public int imageCount() {
+        return featureRows.rows() - 1;
+    }
+
+    DoubleMatrix getNormalizedIntensityMatrix() {
+        return normalizedIntensityMatrix;
+    }
+
+    DoubleMatrix getNormalizedColorCodeMatrix() {
+        return normalizedColorCodeMatrix;
+    }
+
+    DoubleMatrix getNormalizedFeatureMartix() {
+        return normalizedFeatureMartix;
+    }
+
+    FeatureRows getFeatureRows() {
+        return featureRows;
+    }
+
+    FeatureRows getHistogramRows() {
+        return histogramRows;
+    }
+
+    double[] getCodeWeight(int mode) {
+        return codeWeights[mode];
+    }
+
+    double[] getHistogramWeight(int mode) {
+        return histogramWeights[mode];
+    }
+
+    HnswIndex getFeatureIndex() {
+        return featureIndex;
+    }
+
+    IvfPqIndex getIvfIndex() {
+        return ivfIndex;
+    }
+
+    QuantizedMatrix getQuantizedFeatureMatrix() {
+        return quantizedFeatureMatrix;
+    }
+
+    FeatureNormalization getFeatureNormalization() {
+        return featureNormalization;
+    }
+
+    /**
+     * queryCache method returns the stripe of the cache that keeps the
+     * rankings of a query image
+     *
+     * pre: picNo > 0
+     *
+     * post: returns the same stripe for every ranking of picNo
+     */
+    QueryCache queryCache(int picNo) {
+        return queryCaches[picNo % queryCaches.length];
+    }
+
+    /**
+     * report method returns the counters of all stripes of the cache
+     *
+     * pre: none
+     *
+     * post: returns hits, misses, hit rate, evictions and invalidations
+     */
+    public String report() {
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+        long invalidations = 0;
+        for (QueryCache queryCache : queryCaches) {
+            hits += queryCache.getHits();
+            misses += queryCache.getMisses();
+            evictions += queryCache.getEvictions();
+            invalidations += queryCache.getInvalidations();
+        }
+        return String.format("Query cache: %d hits, %d misses (%.1f%% hit rate), %d evictions, %d invalidated "
+                + "in %d stripes of %d KB", hits, misses, (hits + misses == 0) ? 0.0 : 100.0 * hits / (hits + misses),
+                evictions, invalidations, queryCaches.length, (CACHE_CAPACITY / CACHE_STRIPES) >> 10);
+    }
+}
@@ -0,0 +1,261 @@
+
+/**
+ * The RetrievalSession holds the query of one user: the query image, the
+ * images marked as relevant, the weights of the color code + intensity sort
+ * and the ranked images, and ranks them on a shared RetrievalEngine.
+ *
+ * A session has its own CalculateUtil, so its rankings do not share a TopK
+ * with the rankings of other sessions, and it only reads the engine, so
+ * sessions on different threads do not wait for each other except on the
+ * stripes of the cache. A session itself is used by one thread at a time.
+ *
+ * The scans of a session report to the Progress set by setProgress. A
+ * cancelled scan throws a CancellationException and leaves buttonOrder and
+ * getResultCount as they were before the query.
+ */
+
+import java.util.Set;
+
+public class RetrievalSession {
+
+    // number of images ranked for a query, -Dcbir.topK=0 ranks all images
+    private static final int TOP_K = Integer.getInteger("cbir.topK", 1000);
+    // -Dcbir.feedbackSession=true ranks later feedback rounds over a pool, see FeedbackSession
+    private static final boolean USE_FEEDBACK_SESSION = Boolean.getBoolean("cbir.feedbackSession");
+
+    private final RetrievalEngine engine;
+    private final CalculateUtil calculate = new CalculateUtil();
+    private final RelevanceFeedback relevanceFeedback;
+    private final FeedbackSession feedbackSession;
+    private final double[] weight;
+    // buttonOrder stores the order in which the images are to be displayed
+    private final int[] buttonOrder;
+    // resultCount is the number of images in buttonOrder that are ranked
+    private int resultCount;
+    private int picNo = 0;
+
+    /**
+     * constructor
+     *
+     * pre: none
+     *
+     * post: instantiates RetrievalSession without a query image, buttonOrder
+     * holds every image in ascending order
+     */
+    RetrievalSession(RetrievalEngine engine) {
+        this.engine = engine;
+        DoubleMatrix normalizedFeatureMartix = engine.getNormalizedFeatureMartix();
+        FeatureRows featureRows = engine.getFeatureRows();
+        relevanceFeedback = new RelevanceFeedback(featureRows);
+        feedbackSession = (USE_FEEDBACK_SESSION && normalizedFeatureMartix != null)
+                ? new FeedbackSession(calculate, normalizedFeatureMartix) : null;
+        weight = new double[featureRows.cols()];
+        buttonOrder = new int[featureRows.rows()];
+        resetOrder();
+    }
+
+    /**
+     * select method makes an image the query image
+     *
+     * pre: picNo is an image of the engine
+     *
+     * post: picNo is the query image and no image is marked as relevant
+     */
+    public void select(int picNo) {
+        this.picNo = picNo;
+        relevanceFeedback.clear();
+        if (feedbackSession != null) {
+            feedbackSession.reset();
+        }
+    }
+
+    /**
+     * reset method drops the query image
+     *
+     * pre: none
+     *
+     * post: there is no query image and buttonOrder holds every image in
+     * ascending order
+     */
+    public void reset() {
+        picNo = 0;
+        resetOrder();
+    }
+
+    private void resetOrder() {
+        for (int i = 1; i < buttonOrder.length; i++) {
+            buttonOrder[i] = i;
+        }
+        resultCount = buttonOrder.length - 1;
+    }
+
+    /**
+     * toggleRelevant method marks an image that is not relevant and unmarks a
+     * relevant one
+     *
+     * pre: image is an image of the engine
+     *
+     * post: returns true if the image is relevant now
+     */
+    public boolean toggleRelevant(int image) {
+        return relevanceFeedback.toggle(image);
+    }
+
+    /**
+     * rankColorCode method ranks the images by the Manhattan distance of their
+     * color code histograms to the query image
+     *
+     * pre: a query image is selected
+     *
+     * post: buttonOrder holds the closest images from element 1, returns their
+     * number
+     */
+    public int rankColorCode() {
+        return rank(QueryCache.COLOR_CODE, engine.getNormalizedColorCodeMatrix());
+    }
+
+    /**
+     * rankIntensity method ranks the images by the Manhattan distance of their
+     * intensity histograms to the query image
+     *
+     * pre: a query image is selected
+     *
+     * post: buttonOrder holds the closest images from element 1, returns their
+     * number
+     */
+    public int rankIntensity() {
+        return rank(QueryCache.INTENSITY, engine.getNormalizedIntensityMatrix());
+    }
+
+    private int rank(int mode, DoubleMatrix matrix) {
+        QueryCache queryCache = engine.queryCache(picNo);
+        int count = queryCache.get(mode, matrix, picNo, null, topK(), buttonOrder);
+        if (count < 0 && engine.getQuantizedFeatureMatrix() != null) {
+            count = calculate.calculateQuantizedDistance(engine.getQuantizedFeatureMatrix(),
+                    engine.getCodeWeight(mode), engine.getHistogramRows(), engine.getHistogramWeight(mode), picNo,
+                    buttonOrder, topK());
+            queryCache.put(mode, matrix, picNo, null, topK(), buttonOrder, count);
+        } else if (count < 0) {
+            count = calculate.calculateManhattanDistance(matrix, picNo, buttonOrder, topK());
+            queryCache.put(mode, matrix, picNo, null, topK(), buttonOrder, count);
+        }
+        resultCount = count;
+        return resultCount;
+    }
+
+    /**
+     * rankColorIntensity method ranks the images by the weighted color code +
+     * intensity distance, with the index or representation of the engine
+     *
+     * pre: a query image is selected
+     *
+     * post: weight holds the weights of the relevant images, buttonOrder holds
+     * the closest images from element 1, returns their number
+     */
+    public int rankColorIntensity() {
+        DoubleMatrix normalizedFeatureMartix = engine.getNormalizedFeatureMartix();
+        relevanceFeedback.calculateWeight(weight, picNo);
+        QueryCache queryCache = engine.queryCache(picNo);
+        int count = queryCache.get(QueryCache.COMBINED, normalizedFeatureMartix, picNo, weight, topK(),
+                buttonOrder);
+        if (count >= 0) {
+            resultCount = count;
+            return resultCount;
+        }
+        if (engine.getFeatureIndex() != null) {
+            count = engine.getFeatureIndex().search(picNo, weight, topK(), HnswIndex.DEFAULT_EF_SEARCH,
+                    buttonOrder, 1);
+        } else if (engine.getIvfIndex() != null) {
+            count = engine.getIvfIndex().search(picNo, weight, topK(), IvfPqIndex.DEFAULT_NPROBE,
+                    buttonOrder, 1);
+        } else if (engine.getQuantizedFeatureMatrix() != null) {
+            count = calculate.calculateQuantizedDistance(engine.getQuantizedFeatureMatrix(), weight,
+                    engine.getFeatureRows(), weight, picNo, buttonOrder, topK());
+        } else if (feedbackSession != null) {
+            count = feedbackSession.rank(weight, picNo, buttonOrder, topK());
+        } else {
+            count = calculate.calculateDistanceMetrix(normalizedFeatureMartix, weight, picNo, buttonOrder,
+                    topK());
+        }
+        // a round over the pool of the session is not the ranking of a full
+        // scan, and the cache is shared with the other sessions
+        if (feedbackSession != null && feedbackSession.isPooled()) {
+            resultCount = count;
+            return resultCount;
+        }
+        queryCache.put(QueryCache.COMBINED, normalizedFeatureMartix, picNo, weight, topK(), buttonOrder,
+                count);
+        resultCount = count;
+        return resultCount;
+    }
+
+    /**
+     * topK method returns the number of images to rank for a query
+     *
+     * pre: none
+     *
+     * post: returns TOP_K, or the number of images if it is 0 or larger
+     */
+    private int topK() {
+        int imageCount = buttonOrder.length - 1;
+        return (TOP_K > 0) ? Math.min(TOP_K, imageCount) : imageCount;
+    }
+
+    /**
+     * setProgress method sets the Progress of the scans of the queries that
+     * follow
+     *
+     * pre: none
+     *
+     * post: the scans report to progress, or to nothing if it is null
+     */
+    public void setProgress(CalculateUtil.Progress progress) {
+        calculate.setProgress(progress);
+    }
+
+    public int getPicNo() {
+        return picNo;
+    }
+
+    /**
+     * getButtonOrder method returns the ranked images
+     *
+     * pre: none
+     *
+     * post: returns the array the session ranks into, element 1 to
+     * getResultCount() are the ranked images
+     */
+    public int[] getButtonOrder() {
+        return buttonOrder;
+    }
+
+    public int getResultCount() {
+        return resultCount;
+    }
+
+    /**
+     * relevantImages method returns the images marked as relevant
+     *
+     * pre: none
+     *
+     * post: returns a read only view that follows the changes
+     */
+    public Set<Integer> relevantImages() {
+        return relevanceFeedback.images();
+    }
+
+    /**
+     * report method returns the counters of the session
+     *
+     * pre: none
+     *
+     * post: returns the pruning and feedback session counters
+     */
+    public String report() {
+        String report = calculate.pruningReport();
+        if (feedbackSession != null) {
+            report += System.lineSeparator() + feedbackSession.report();
+        }
+        return report;
+    }
+}
@@ -0,0 +1,312 @@
+
+/**
+ * The RunningStats class keeps the number of rows, the mean and the sum of
+ * squared deviations from the mean of every column of a feature matrix.
+ *
+ * A row is added or removed in O(columns) with the updates of Welford, and the
+ * statistics of two sets of rows are combined with the formula of Chan et al.,
+ * so the statistics of partitions can be calculated apart and merged. The
+ * statistics of a whole matrix are calculated in two passes, the first for the
+ * means and the second for the deviations, in the same order as the sorts
+ * always did, so they give the same averages and standard deviations.
+ *
+ * The columns are numbered from 1 like the columns of the matrices.
+ *
+ * save writes the statistics to name.bin with a 64 byte header of magic,
+ * version, header size, cols, count and the fingerprint of the rows they
+ * belong to, followed by the means and sums of squares as little endian
+ * doubles. load returns them only for the same fingerprint.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+public class RunningStats {
+
+    private static final int MAGIC = 0x54415453; // "STAT"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+
+    private final int cols;
+    private long count = 0;
+    private final double[] mean;
+    // sum of the squared deviations from the mean
+    private final double[] m2;
+
+    RunningStats(int cols) {
+        this.cols = cols;
+        this.mean = new double[cols];
+        this.m2 = new double[cols];
+    }
+
+    /**
+     * of method calculates the statistics of every row of a matrix from row 1
+     *
+     * pre: none
+     *
+     * post: returns the statistics of the rows 1 to matrix.rows() - 1
+     */
+    public static RunningStats of(DoubleMatrix matrix) {
+        RunningStats stats = new RunningStats(matrix.cols());
+        stats.count = matrix.rows() - 1;
+        for (int i = 1; i < matrix.cols(); i++) {
+            for (int j = 1; j < matrix.rows(); j++) {
+                stats.mean[i] += matrix.get(j, i);
+            }
+            stats.mean[i] /= (double) stats.count;
+            for (int j = 1; j < matrix.rows(); j++) {
+                stats.m2[i] += Math.pow(matrix.get(j, i) - stats.mean[i], 2);
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * of method calculates the statistics of every row from row 1, in two
+     * passes over the rows that add up every column in the same order as
+     * of(DoubleMatrix)
+     *
+     * pre: none
+     *
+     * post: returns the statistics of the rows 1 to rows.rows() - 1
+     */
+    public static RunningStats of(FeatureRows rows) {
+        RunningStats stats = new RunningStats(rows.cols());
+        stats.count = rows.rows() - 1;
+        double[] row = new double[rows.cols()];
+        for (int j = 1; j < rows.rows(); j++) {
+            rows.row(j, row, 0);
+            for (int i = 1; i < stats.cols; i++) {
+                stats.mean[i] += row[i];
+            }
+        }
+        for (int i = 1; i < stats.cols; i++) {
+            stats.mean[i] /= (double) stats.count;
+        }
+        for (int j = 1; j < rows.rows(); j++) {
+            rows.row(j, row, 0);
+            for (int i = 1; i < stats.cols; i++) {
+                stats.m2[i] += Math.pow(row[i] - stats.mean[i], 2);
+            }
+        }
+        return stats;
+    }
+
+    public int cols() {
+        return cols;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public double mean(int col) {
+        return mean[col];
+    }
+
+    /**
+     * variance method returns the sample variance of a column
+     *
+     * pre: none
+     *
+     * post: returns the sum of squared deviations divided by count - 1
+     */
+    public double variance(int col) {
+        return m2[col] / (double) (count - 1);
+    }
+
+    /**
+     * add method adds a row
+     *
+     * pre: values[offset + j] is the value of column j
+     *
+     * post: the statistics include the row
+     */
+    public void add(double[] values, int offset) {
+        count++;
+        for (int j = 1; j < cols; j++) {
+            double delta = values[offset + j] - mean[j];
+            mean[j] += delta / count;
+            m2[j] += delta * (values[offset + j] - mean[j]);
+        }
+    }
+
+    /**
+     * remove method removes a row that was added before
+     *
+     * pre: values[offset + j] is the value of column j of a row in the
+     * statistics
+     *
+     * post: the statistics do not include the row
+     */
+    public void remove(double[] values, int offset) {
+        if (count <= 1) {
+            clear();
+            return;
+        }
+        count--;
+        for (int j = 1; j < cols; j++) {
+            double delta = values[offset + j] - mean[j];
+            mean[j] -= delta / count;
+            // a single row has no deviation, and rounding must not make the
+            // sum of squares negative
+            m2[j] = (count == 1) ? 0.0 : Math.max(0.0, m2[j] - delta * (values[offset + j] - mean[j]));
+        }
+    }
+
+    /**
+     * merge method adds the rows of other statistics
+     *
+     * pre: other has the same number of columns
+     *
+     * post: the statistics include the rows of both
+     */
+    public void merge(RunningStats other) {
+        if (other.count == 0) {
+            return;
+        }
+        long total = count + other.count;
+        for (int j = 1; j < cols; j++) {
+            double delta = other.mean[j] - mean[j];
+            mean[j] += delta * other.count / total;
+            m2[j] += other.m2[j] + delta * delta * count * other.count / total;
+        }
+        count = total;
+    }
+
+    /**
+     * copyFrom method makes the statistics a copy of other
+     *
+     * pre: other has the same number of columns
+     *
+     * post: the statistics are the ones of other
+     */
+    public void copyFrom(RunningStats other) {
+        count = other.count;
+        System.arraycopy(other.mean, 0, mean, 0, cols);
+        System.arraycopy(other.m2, 0, m2, 0, cols);
+    }
+
+    /**
+     * save method writes the statistics to name.bin in the pwd, through a
+     * temporary file that is moved over name.bin
+     *
+     * pre: fingerprint identifies the rows of the statistics, e.g.
+     * FeatureStore.fingerprint of the feature files
+     *
+     * post: name.bin holds the header, the means and the sums of squares
+     */
+    public void save(String name, long fingerprint) {
+        Path statsFile = Paths.get("").toAbsolutePath().resolve(name + ".bin");
+        Path tempFile = statsFile.resolveSibling(name + ".bin.tmp");
+        ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + 2 * cols * Double.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        data.putInt(MAGIC).putInt(VERSION).putInt(HEADER_SIZE).putInt(cols).putLong(count).putLong(fingerprint);
+        data.position(HEADER_SIZE);
+        for (int j = 0; j < cols; j++) {
+            data.putDouble(mean[j]);
+        }
+        for (int j = 0; j < cols; j++) {
+            data.putDouble(m2[j]);
+        }
+        data.flip();
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            System.out.println("Unable to write into " + name + ".bin file");
+            e.printStackTrace();
+            return;
+        }
+        try {
+            Files.move(tempFile, statsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Unable to write into " + name + ".bin file");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * load method reads the statistics saved as name.bin
+     *
+     * pre: none
+     *
+     * post: returns the statistics, or null if there are none or they were
+     * saved for other rows or another number of columns
+     */
+    public static RunningStats load(String name, int cols, long fingerprint) {
+        Path statsFile = Paths.get("").toAbsolutePath().resolve(name + ".bin");
+        if (!Files.exists(statsFile)) {
+            return null;
+        }
+        try {
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(statsFile)).order(ByteOrder.LITTLE_ENDIAN);
+            if (data.limit() < HEADER_SIZE || data.getInt(0) != MAGIC || data.getInt(4) != VERSION
+                    || data.getInt(8) != HEADER_SIZE) {
+                throw new IOException("unknown file format");
+            }
+            if (data.getInt(12) != cols || data.getLong(24) != fingerprint
+                    || data.limit() != HEADER_SIZE + 2 * cols * Double.BYTES) {
+                return null;
+            }
+            RunningStats stats = new RunningStats(cols);
+            stats.count = data.getLong(16);
+            data.position(HEADER_SIZE);
+            for (int j = 0; j < cols; j++) {
+                stats.mean[j] = data.getDouble();
+            }
+            for (int j = 0; j < cols; j++) {
+                stats.m2[j] = data.getDouble();
+            }
+            return stats;
+        } catch (IOException e) {
+            System.out.println("The statistics " + name + ".bin are damaged, calculating them again");
+            return null;
+        }
+    }
+
+    public void clear() {
+        count = 0;
+        Arrays.fill(mean, 0.0);
+        Arrays.fill(m2, 0.0);
+    }
+
+    /**
+     * averageSd method writes the average and standard deviation of every
+     * column, with the corner case of a standard deviation of 0
+     *
+     * pre: avgSdMatrix has cols rows of 2 elements
+     *
+     * post: avgSdMatrix[j][0] is the average and avgSdMatrix[j][1] the standard
+     * deviation of column j. A column with a standard deviation of 0 and a non
+     * zero average gets half of the smallest non zero standard deviation.
+     */
+    public void averageSd(double[][] avgSdMatrix) {
+        // Corner case if SD = 0
+        double minStandardDeviation = Double.MAX_VALUE;
+        for (int j = 1; j < cols; j++) {
+            avgSdMatrix[j][0] = mean[j];
+            avgSdMatrix[j][1] = Math.sqrt(variance(j));
+            if (avgSdMatrix[j][1] != 0 && avgSdMatrix[j][1] < minStandardDeviation) {
+                minStandardDeviation = avgSdMatrix[j][1];
+            }
+        }
+
+        // Fix corner case
+        for (int j = 1; j < cols; j++) {
+            if (avgSdMatrix[j][1] == 0 && avgSdMatrix[j][0] != 0) {
+                avgSdMatrix[j][1] = 0.5 * minStandardDeviation;
+            }
+        }
+    }
+}
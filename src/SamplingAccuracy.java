@@ -0,0 +1,141 @@
+
+/**
+ * The SamplingAccuracy class measures how far the histograms of subsampled
+ * images drift from the histograms calculated from every pixel.
+ *
+ * It decodes a sample of the images twice, once completely and once with the
+ * configured stride of the ImageDecoder, and reports
+ * (a) the mean and maximum Manhattan distance between the normalized histograms
+ * (b) the overlap of the top 10 Manhattan distance rankings within the sample
+ * (c) how much faster the subsampled extraction is
+ */
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+public class SamplingAccuracy {
+
+    private static final int TOP_K = 10;
+
+    private SamplingAccuracy() {
+    }
+
+    /**
+     * report method compares subsampled and complete extraction on evenly spaced
+     * images
+     *
+     * pre: imagePaths holds the file of each image number, element 0 is not used
+     *
+     * post: the drift of the histograms and rankings is printed
+     */
+    public static void report(Path[] imagePaths, int imageCount) {
+        int count = Math.min(imageCount, imagePaths.length - 1);
+        if (count < 1) {
+            return;
+        }
+        double[][] fullIntensity = new double[count][];
+        double[][] fullColorCode = new double[count][];
+        double[][] sampledIntensity = new double[count][];
+        double[][] sampledColorCode = new double[count][];
+        int[] intensityBins = new int[26];
+        int[] colorCodeBins = new int[65];
+        ImageDecoder decoder = new ImageDecoder();
+        HistogramKernel kernel = new HistogramKernel();
+        long fullTime = 0;
+        long sampledTime = 0;
+
+        int sampled = 0;
+        for (int n = 0; n < count; n++) {
+            Path path = imagePaths[1 + (int) ((long) n * (imagePaths.length - 1) / count)];
+            try {
+                byte[] content = Files.readAllBytes(path);
+
+                long start = System.nanoTime();
+                BufferedImage image = decoder.decode(content, 1);
+                if (image == null || !kernel.calculate(image, intensityBins, colorCodeBins)) {
+                    continue;
+                }
+                fullTime += System.nanoTime() - start;
+                long fullArea = (long) decoder.getWidth() * decoder.getHeight();
+                fullIntensity[sampled] = normalize(intensityBins, fullArea);
+                fullColorCode[sampled] = normalize(colorCodeBins, fullArea);
+
+                start = System.nanoTime();
+                image = decoder.decode(content);
+                kernel.calculate(image, intensityBins, colorCodeBins);
+                long sampledArea = (long) image.getWidth() * image.getHeight();
+                ImageDecoder.scaleBins(intensityBins, fullArea, sampledArea);
+                ImageDecoder.scaleBins(colorCodeBins, fullArea, sampledArea);
+                sampledTime += System.nanoTime() - start;
+                sampledIntensity[sampled] = normalize(intensityBins, fullArea);
+                sampledColorCode[sampled] = normalize(colorCodeBins, fullArea);
+                sampled++;
+            } catch (IOException e) {
+                System.out.println("Error occurred when reading the image file " + path);
+            }
+        }
+        if (sampled == 0) {
+            return;
+        }
+
+        System.out.println(String.format("Sampling accuracy on %d images, %.1fx faster than reading every pixel",
+                sampled, fullTime / (double) Math.max(1, sampledTime)));
+        printDrift("Intensity", fullIntensity, sampledIntensity, sampled);
+        printDrift("Color code", fullColorCode, sampledColorCode, sampled);
+    }
+
+    private static void printDrift(String name, double[][] full, double[][] sampled, int count) {
+        double sum = 0.0;
+        double max = 0.0;
+        for (int i = 0; i < count; i++) {
+            double distance = distance(full[i], sampled[i]);
+            sum += distance;
+            max = Math.max(max, distance);
+        }
+
+        int k = Math.min(TOP_K, count);
+        double overlap = 0.0;
+        for (int query = 0; query < count; query++) {
+            Set<Integer> sampledTop = topK(sampled, query, count, k);
+            sampledTop.retainAll(topK(full, query, count, k));
+            overlap += sampledTop.size() / (double) k;
+        }
+
+        System.out.println(String.format("  %s: histogram drift mean %.5f max %.5f, top %d overlap %.1f%%", name,
+                sum / count, max, k, 100 * overlap / count));
+    }
+
+    private static Set<Integer> topK(double[][] features, int query, int count, int k) {
+        TopK closest = new TopK(k);
+        for (int i = 0; i < count; i++) {
+            closest.offer(i, distance(features[query], features[i]));
+        }
+        int[] order = new int[k];
+        closest.drainTo(order, 0);
+        Set<Integer> images = new HashSet<Integer>();
+        for (int image : order) {
+            images.add(image);
+        }
+        return images;
+    }
+
+    private static double distance(double[] first, double[] second) {
+        double distance = 0.0;
+        for (int j = 1; j < first.length; j++) {
+            distance += Math.abs(first[j] - second[j]);
+        }
+        return distance;
+    }
+
+    private static double[] normalize(int[] bins, long area) {
+        double[] normalized = new double[bins.length];
+        for (int j = 1; j < bins.length; j++) {
+            normalized[j] = bins[j] / (double) area;
+        }
+        return normalized;
+    }
+}
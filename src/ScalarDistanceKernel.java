@@ -0,0 +1,66 @@
+
+/**
+ * The ScalarDistanceKernel adds up the distance one feature at a time, in the
+ * same order as the sorts always did, so it gives the reference distances.
+ *
+ * For batches it adds up the distances to 4 query rows side by side. Each sum
+ * is still added in the same order, but the 4 additions do not wait for each
+ * other and the row is read once for all 4 queries.
+ */
+
+public class ScalarDistanceKernel implements DistanceKernel {
+
+    public double distance(double[] values, int query, int row, int cols) {
+        double distance = 0.0;
+        for (int j = 1; j < cols; j++) {
+            distance += Math.abs(values[query + j] - values[row + j]);
+        }
+        return distance;
+    }
+
+    public double weightedDistance(double[] values, double[] weight, int query, int row, int cols) {
+        double distance = 0.0;
+        for (int j = 1; j < cols; j++) {
+            distance += weight[j] * Math.abs(values[query + j] - values[row + j]);
+        }
+        return distance;
+    }
+
+    @Override
+    public void distances(double[] values, double[] weight, int[] queries, int row, int cols, double[] distances) {
+        if (queries.length != 4) {
+            DistanceKernel.super.distances(values, weight, queries, row, cols, distances);
+            return;
+        }
+        int q0 = queries[0];
+        int q1 = queries[1];
+        int q2 = queries[2];
+        int q3 = queries[3];
+        double d0 = 0.0;
+        double d1 = 0.0;
+        double d2 = 0.0;
+        double d3 = 0.0;
+        if (weight == null) {
+            for (int j = 1; j < cols; j++) {
+                double x = values[row + j];
+                d0 += Math.abs(values[q0 + j] - x);
+                d1 += Math.abs(values[q1 + j] - x);
+                d2 += Math.abs(values[q2 + j] - x);
+                d3 += Math.abs(values[q3 + j] - x);
+            }
+        } else {
+            for (int j = 1; j < cols; j++) {
+                double x = values[row + j];
+                double w = weight[j];
+                d0 += w * Math.abs(values[q0 + j] - x);
+                d1 += w * Math.abs(values[q1 + j] - x);
+                d2 += w * Math.abs(values[q2 + j] - x);
+                d3 += w * Math.abs(values[q3 + j] - x);
+            }
+        }
+        distances[0] = d0;
+        distances[1] = d1;
+        distances[2] = d2;
+        distances[3] = d3;
+    }
+}
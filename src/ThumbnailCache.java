@@ -0,0 +1,180 @@
+
+/**
+ * The ThumbnailCache keeps recently shown thumbnails in memory on top of the
+ * thumbnails saved by the ThumbnailStore.
+ *
+ * The memory tier is a least recently used map bounded by the number of bytes
+ * of the decoded thumbnails, 64 MB unless -Dcbir.thumbnailCacheMB is set.
+ * Thumbnails that are not in memory are read from the pack by background threads
+ * and handed to the caller on the event dispatch thread, so scrolling never
+ * waits for the disk.
+ *
+ * Hits, misses, loads and evictions are counted and printed by report.
+ */
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import javax.imageio.ImageIO;
+import javax.swing.ImageIcon;
+import javax.swing.SwingUtilities;
+
+public class ThumbnailCache {
+
+    private static final long DEFAULT_CAPACITY = Math.max(1, Long.getLong("cbir.thumbnailCacheMB", 64)) << 20;
+    private static final int LOAD_THREADS = Math.max(1, Integer.getInteger("cbir.thumbnailThreads", 2));
+
+    private final long capacity;
+    // access ordered, so the first entry is the least recently used one
+    private final LinkedHashMap<ThumbnailStore.Thumbnail, ImageIcon> icons
+            = new LinkedHashMap<ThumbnailStore.Thumbnail, ImageIcon>(16, 0.75f, true);
+    // callers waiting for a thumbnail that is being read
+    private final Map<ThumbnailStore.Thumbnail, List<Consumer<ImageIcon>>> pending
+            = new HashMap<ThumbnailStore.Thumbnail, List<Consumer<ImageIcon>>>();
+    private final ExecutorService loader;
+    private long size = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long loads = 0;
+    private long evictions = 0;
+
+    ThumbnailCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    ThumbnailCache(long capacity) {
+        this.capacity = capacity;
+        AtomicInteger threadCount = new AtomicInteger();
+        loader = Executors.newFixedThreadPool(LOAD_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "cbir-thumbnail-" + threadCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * request method returns the thumbnail if it is in memory, otherwise it reads
+     * the thumbnail in the background
+     *
+     * pre: thumbnail is saved by the ThumbnailStore
+     *
+     * post: returns the icon on a hit. On a miss null is returned and listener is
+     * called on the event dispatch thread once the icon is read, it is not
+     * called if the thumbnail cannot be read
+     */
+    public synchronized ImageIcon request(ThumbnailStore.Thumbnail thumbnail, Consumer<ImageIcon> listener) {
+        ImageIcon icon = icons.get(thumbnail);
+        if (icon != null) {
+            hits++;
+            return icon;
+        }
+        misses++;
+        List<Consumer<ImageIcon>> listeners = pending.get(thumbnail);
+        if (listeners == null) {
+            listeners = new ArrayList<Consumer<ImageIcon>>();
+            pending.put(thumbnail, listeners);
+            loader.execute(() -> load(thumbnail));
+        }
+        listeners.add(listener);
+        return null;
+    }
+
+    private void load(ThumbnailStore.Thumbnail thumbnail) {
+        ImageIcon icon = null;
+        try {
+            BufferedImage image = ImageIO.read(new ByteArrayInputStream(thumbnail.read()));
+            if (image != null) {
+                icon = new ImageIcon(image);
+            }
+        } catch (IOException e) {
+            // reported below
+        }
+        if (icon == null) {
+            System.out.println("Unable to read the thumbnail " + thumbnail);
+        }
+
+        List<Consumer<ImageIcon>> listeners;
+        synchronized (this) {
+            listeners = pending.remove(thumbnail);
+            if (icon != null) {
+                loads++;
+                put(thumbnail, icon);
+            }
+        }
+        if (icon != null) {
+            ImageIcon loaded = icon;
+            SwingUtilities.invokeLater(() -> {
+                for (Consumer<ImageIcon> listener : listeners) {
+                    listener.accept(loaded);
+                }
+            });
+        }
+    }
+
+    /**
+     * put method adds the icon and evicts the least recently used icons until
+     * the cache fits in its capacity
+     *
+     * pre: caller holds the lock of the cache
+     *
+     * post: icon is cached
+     */
+    private void put(ThumbnailStore.Thumbnail thumbnail, ImageIcon icon) {
+        ImageIcon previous = icons.put(thumbnail, icon);
+        if (previous != null) {
+            size -= bytes(previous);
+        }
+        size += bytes(icon);
+        Iterator<ImageIcon> eldest = icons.values().iterator();
+        while (size > capacity && icons.size() > 1) {
+            size -= bytes(eldest.next());
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private static long bytes(ImageIcon icon) {
+        return (long) icon.getIconWidth() * icon.getIconHeight() * Integer.BYTES;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized double getHitRate() {
+        return (hits + misses == 0) ? 0.0 : hits / (double) (hits + misses);
+    }
+
+    /**
+     * report method returns the counters of the cache
+     *
+     * pre: none
+     *
+     * post: returns hits, misses, hit rate, loads, evictions and memory in use
+     */
+    public synchronized String report() {
+        return String.format("Thumbnail cache: %d hits, %d misses (%.1f%% hit rate), %d loads, %d evictions, "
+                + "%d icons in %d of %d KB", hits, misses, 100 * getHitRate(), loads, evictions, icons.size(),
+                size >> 10, capacity >> 10);
+    }
+}
@@ -0,0 +1,465 @@
+/**
+ * The ThumbnailStore keeps the pre-scaled thumbnails of the images in two
+ * packed files in the pwd, Thumbnails.pack and Thumbnails.idx, instead of a
+ * file per thumbnail.
+ *
+ * Every image has a 100x100 icon and a 300x300 preview, which are encoded as
+ * JPEG and appended to the pack one after the other. The index has a record
+ * of 80 bytes per saved image: the content hash of the image, the offset of
+ * its icon in the pack and the lengths of the icon and preview. Keying them
+ * by hash keeps them valid when images are renamed or renumbered. A record
+ * with lengths of 0 marks the thumbnails of a deleted image, and when the
+ * deleted thumbnails take more space than the others, retain writes the pack
+ * and index again with only the thumbnails that are left.
+ *
+ * Both files start with a 16 byte header of magic, version and the
+ * generation of the pack, which changes whenever the pack is written again,
+ * so an index is never read with the pack of another generation. Index
+ * records of thumbnails beyond the end of the pack, left by an interrupted
+ * run, are not read.
+ *
+ * The thumbnails are made by ReadImage from the image it decoded for the
+ * histograms, so the GUI never has to decode the original images. It reads
+ * them through a Thumbnail of the image.
+ */
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.imageio.ImageIO;
+
+public class ThumbnailStore {
+
+    static final int ICON_SIZE = 100;
+    static final int PREVIEW_SIZE = 300;
+
+    private static final int MAGIC = 0x424d4854; // "THMB"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    // the content hash is a SHA-256 in hex
+    private static final int HASH_LENGTH = 64;
+    private static final int RECORD_SIZE = HASH_LENGTH + 16;
+
+    /**
+     * The Thumbnail refers to the icon or preview of an image in the store,
+     * like the path of a thumbnail file
+     */
+    static final class Thumbnail {
+        private final ThumbnailStore store;
+        private final String hash;
+        private final int size;
+
+        private Thumbnail(ThumbnailStore store, String hash, int size) {
+            this.store = store;
+            this.hash = hash;
+            this.size = size;
+        }
+
+        /**
+         * read method returns the JPEG bytes of the thumbnail
+         *
+         * pre: none
+         *
+         * post: returns the encoded thumbnail, throws IOException if it is not
+         * stored or cannot be read
+         */
+        byte[] read() throws IOException {
+            return store.read(hash, size);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Thumbnail)) {
+                return false;
+            }
+            Thumbnail thumbnail = (Thumbnail) other;
+            return store == thumbnail.store && size == thumbnail.size && hash.equals(thumbnail.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * hash.hashCode() + size;
+        }
+
+        @Override
+        public String toString() {
+            return hash + "-" + size;
+        }
+    }
+
+    // offset and lengths of the thumbnails of an image in the pack
+    private static final class Location {
+        final long offset;
+        final int iconLength;
+        final int previewLength;
+
+        Location(long offset, int iconLength, int previewLength) {
+            this.offset = offset;
+            this.iconLength = iconLength;
+            this.previewLength = previewLength;
+        }
+
+        int length() {
+            return iconLength + previewLength;
+        }
+    }
+
+    private final String name;
+    private final Path packFile;
+    private final Path indexFile;
+    // locations of the images whose icon and preview are stored
+    private final Map<String, Location> locations = new ConcurrentHashMap<String, Location>();
+    // the channels are replaced when the pack is written again, appends hold the
+    // lock of the store
+    private volatile FileChannel pack;
+    private FileChannel index;
+    private long packEnd;
+    private long indexEnd;
+    // bytes of the pack that belong to deleted thumbnails
+    private long deletedBytes = 0;
+
+    ThumbnailStore(String name) {
+        this.name = name;
+        Path directory = Paths.get("").toAbsolutePath();
+        packFile = directory.resolve(name + ".pack");
+        indexFile = directory.resolve(name + ".idx");
+    }
+
+    /**
+     * load method opens the pack and reads its index
+     *
+     * pre: none
+     *
+     * post: contains returns true for every image with an icon and a preview,
+     * the pack and index are empty if they are missing or of another generation
+     */
+    public synchronized void load() {
+        locations.clear();
+        deletedBytes = 0;
+        try {
+            close();
+            pack = FileChannel.open(packFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            index = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            long generation = readHeader(pack);
+            if (generation == 0 || generation != readHeader(index)) {
+                reset();
+                return;
+            }
+            packEnd = pack.size();
+            readIndex();
+        } catch (IOException e) {
+            System.out.println("Unable to read the thumbnails " + name + ".pack");
+            e.printStackTrace();
+        }
+    }
+
+    public boolean contains(String hash) {
+        return locations.containsKey(hash);
+    }
+
+    /**
+     * thumbnail method returns the thumbnail of an image
+     *
+     * pre: hash of the image content, ICON_SIZE or PREVIEW_SIZE
+     *
+     * post: returns the thumbnail, which may not be stored
+     */
+    public Thumbnail thumbnail(String hash, int size) {
+        return new Thumbnail(this, hash, size);
+    }
+
+    /**
+     * save method scales the image down to the preview and icon size and
+     * appends both thumbnails to the pack
+     *
+     * pre: image is decoded, hash of its file content, load was called
+     *
+     * post: the thumbnails are saved in the pack and the index
+     */
+    public void save(String hash, BufferedImage image) throws IOException {
+        BufferedImage preview = scale(image, PREVIEW_SIZE, PREVIEW_SIZE);
+        byte[] icon = encode(scale(preview, ICON_SIZE, ICON_SIZE));
+        byte[] previewBytes = encode(preview);
+        // the images are encoded by the workers at the same time, only the
+        // appends are one after the other
+        synchronized (this) {
+            if (pack == null) {
+                throw new IOException(name + ".pack is not open");
+            }
+            ByteBuffer data = ByteBuffer.allocate(icon.length + previewBytes.length);
+            data.put(icon).put(previewBytes).flip();
+            writeFully(pack, data, packEnd);
+            Location location = new Location(packEnd, icon.length, previewBytes.length);
+            packEnd += data.capacity();
+            appendRecord(hash, location);
+            Location previous = locations.put(hash, location);
+            if (previous != null) {
+                deletedBytes += previous.length();
+            }
+        }
+    }
+
+    /**
+     * read method returns the JPEG bytes of a thumbnail
+     *
+     * pre: hash of the image content, ICON_SIZE or PREVIEW_SIZE
+     *
+     * post: returns the encoded thumbnail, throws IOException if it is not
+     * stored or cannot be read
+     */
+    byte[] read(String hash, int size) throws IOException {
+        Location location = locations.get(hash);
+        FileChannel channel = pack;
+        if (location == null || channel == null) {
+            throw new IOException("no thumbnail of " + hash);
+        }
+        long offset = (size == ICON_SIZE) ? location.offset : location.offset + location.iconLength;
+        ByteBuffer data = ByteBuffer.allocate((size == ICON_SIZE) ? location.iconLength : location.previewLength);
+        while (data.hasRemaining()) {
+            if (channel.read(data, offset + data.position()) < 0) {
+                throw new IOException("unexpected end of " + name + ".pack");
+            }
+        }
+        return data.array();
+    }
+
+    /**
+     * retain method deletes the thumbnails of images that are no longer in the
+     * database
+     *
+     * pre: hashes of all images in the manifest
+     *
+     * post: only the thumbnails of those images are left, the pack is written
+     * again if the deleted thumbnails take more space than the others
+     */
+    public synchronized void retain(Set<String> hashes) {
+        try {
+            for (String hash : locations.keySet()) {
+                if (!hashes.contains(hash)) {
+                    deletedBytes += locations.remove(hash).length();
+                    appendRecord(hash, new Location(-1, 0, 0));
+                }
+            }
+            if (deletedBytes > packEnd - HEADER_SIZE - deletedBytes) {
+                compact();
+            }
+        } catch (IOException e) {
+            System.out.println("Unable to delete the thumbnails in " + name + ".pack");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * compact method writes the pack and index again with only the stored
+     * thumbnails, through temporary files that are moved over them
+     *
+     * pre: caller holds the lock of the store
+     *
+     * post: the pack has no deleted thumbnails and a new generation
+     */
+    private void compact() throws IOException {
+        Path tempPack = packFile.resolveSibling(name + ".pack.tmp");
+        Path tempIndex = indexFile.resolveSibling(name + ".idx.tmp");
+        long generation = newGeneration();
+        Map<String, Location> compacted = new ConcurrentHashMap<String, Location>();
+        try (FileChannel newPack = FileChannel.open(tempPack, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+                FileChannel newIndex = FileChannel.open(tempIndex, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeHeader(newPack, generation);
+            writeHeader(newIndex, generation);
+            long offset = HEADER_SIZE;
+            long recordOffset = HEADER_SIZE;
+            for (Map.Entry<String, Location> entry : locations.entrySet()) {
+                Location location = entry.getValue();
+                newPack.position(offset);
+                long copied = 0;
+                while (copied < location.length()) {
+                    copied += pack.transferTo(location.offset + copied, location.length() - copied, newPack);
+                }
+                Location moved = new Location(offset, location.iconLength, location.previewLength);
+                writeFully(newIndex, record(entry.getKey(), moved), recordOffset);
+                compacted.put(entry.getKey(), moved);
+                offset += location.length();
+                recordOffset += RECORD_SIZE;
+            }
+            newPack.force(false);
+            newIndex.force(false);
+        }
+        // the index is moved last, an index of the old generation is not read
+        // with the new pack
+        close();
+        Files.move(tempPack, packFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.move(tempIndex, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        pack = FileChannel.open(packFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index = FileChannel.open(indexFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        packEnd = pack.size();
+        indexEnd = index.size();
+        locations.clear();
+        locations.putAll(compacted);
+        deletedBytes = 0;
+    }
+
+    // reads the index records, a later record of a hash replaces the earlier one
+    private void readIndex() throws IOException {
+        long size = index.size();
+        indexEnd = HEADER_SIZE + (size - HEADER_SIZE) / RECORD_SIZE * RECORD_SIZE;
+        ByteBuffer records = ByteBuffer.allocate((int) Math.min(indexEnd - HEADER_SIZE, 1024 * RECORD_SIZE))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        byte[] hash = new byte[HASH_LENGTH];
+        long position = HEADER_SIZE;
+        long storedBytes = 0;
+        while (position < indexEnd) {
+            records.clear();
+            records.limit((int) Math.min(records.capacity(), indexEnd - position));
+            readFully(index, records, position);
+            while (records.remaining() >= RECORD_SIZE) {
+                records.get(hash);
+                Location location = new Location(records.getLong(), records.getInt(), records.getInt());
+                String key = new String(hash, StandardCharsets.US_ASCII);
+                Location previous;
+                if (location.length() == 0) {
+                    previous = locations.remove(key);
+                } else if (location.offset >= HEADER_SIZE && location.offset + location.length() <= packEnd) {
+                    previous = locations.put(key, location);
+                    storedBytes += location.length();
+                } else {
+                    // the thumbnails were not written to the pack
+                    previous = locations.remove(key);
+                }
+                if (previous != null) {
+                    storedBytes -= previous.length();
+                }
+            }
+            position += records.limit();
+        }
+        deletedBytes = packEnd - HEADER_SIZE - storedBytes;
+    }
+
+    private void appendRecord(String hash, Location location) throws IOException {
+        writeFully(index, record(hash, location), indexEnd);
+        indexEnd += RECORD_SIZE;
+    }
+
+    private static ByteBuffer record(String hash, Location location) throws IOException {
+        byte[] hashBytes = hash.getBytes(StandardCharsets.US_ASCII);
+        if (hashBytes.length != HASH_LENGTH) {
+            throw new IOException("unexpected hash " + hash);
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        record.put(hashBytes).putLong(location.offset).putInt(location.iconLength).putInt(location.previewLength);
+        record.flip();
+        return record;
+    }
+
+    // empties the pack and index and starts a new generation
+    private void reset() throws IOException {
+        long generation = newGeneration();
+        pack.truncate(0);
+        index.truncate(0);
+        writeHeader(pack, generation);
+        writeHeader(index, generation);
+        packEnd = HEADER_SIZE;
+        indexEnd = HEADER_SIZE;
+    }
+
+    // returns the generation of a pack or index, 0 if it has no valid header
+    private static long readHeader(FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_SIZE) {
+            return 0;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, 0);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            return 0;
+        }
+        return header.getLong(8);
+    }
+
+    private static void writeHeader(FileChannel channel, long generation) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putLong(generation).flip();
+        writeFully(channel, header, 0);
+    }
+
+    private static long newGeneration() {
+        long generation = System.nanoTime() ^ System.currentTimeMillis() << 20;
+        return (generation == 0) ? 1 : generation;
+    }
+
+    private void close() throws IOException {
+        if (pack != null) {
+            pack.close();
+        }
+        if (index != null) {
+            index.close();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position() - start);
+        }
+    }
+
+    private static byte[] encode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, "jpg", out)) {
+            throw new IOException("no JPEG writer available");
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * scale method scales the image to the given size, halving it in steps so
+     * the bilinear interpolation does not skip pixels of large images
+     *
+     * pre: image is decoded
+     *
+     * post: returns a RGB image of width x height
+     */
+    static BufferedImage scale(BufferedImage image, int width, int height) {
+        BufferedImage scaled = image;
+        int w = image.getWidth();
+        int h = image.getHeight();
+        do {
+            w = Math.max(width, w / 2);
+            h = Math.max(height, h / 2);
+            BufferedImage next = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = next.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(scaled, 0, 0, w, h, null);
+            g.dispose();
+            scaled = next;
+        } while (w != width || h != height);
+        return scaled;
+    }
+}
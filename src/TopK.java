@@ -0,0 +1,153 @@
+
+/**
+ * The TopK class keeps the k images with the smallest distance out of any
+ * number of offered images.
+ *
+ * The images are held in a bounded max heap stored in two parallel arrays of
+ * image numbers and distances, the worst kept image is at the root. Offering
+ * an image does not allocate anything, so a ranking costs O(N log k) time and
+ * O(k) memory. Images with the same distance are ranked by their image number,
+ * so a ranking never depends on the order in which images are offered.
+ */
+
+public class TopK {
+
+    private final int[] images;
+    private final double[] distances;
+    private int size = 0;
+
+    TopK(int k) {
+        images = new int[Math.max(0, k)];
+        distances = new double[Math.max(0, k)];
+    }
+
+    public int capacity() {
+        return images.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * threshold method returns the distance an image has to beat to be kept
+     *
+     * pre: none
+     *
+     * post: returns the largest kept distance once k images are kept, otherwise
+     * positive infinity
+     */
+    public double threshold() {
+        return (size < images.length) ? Double.POSITIVE_INFINITY : distances[0];
+    }
+
+    /**
+     * offer method keeps the image if it is among the k best so far
+     *
+     * pre: distance of the image to the query image
+     *
+     * post: returns true if the image is kept, the worst image is dropped when
+     * more than k images are kept
+     */
+    public boolean offer(int image, double distance) {
+        if (size < images.length) {
+            siftUp(size++, image, distance);
+            return true;
+        }
+        if (size == 0 || !before(image, distance, images[0], distances[0])) {
+            return false;
+        }
+        siftDown(0, image, distance, size);
+        return true;
+    }
+
+    /**
+     * mergeInto method offers every kept image to another TopK
+     *
+     * pre: none
+     *
+     * post: other holds the best images of both, this TopK is unchanged
+     */
+    public void mergeInto(TopK other) {
+        for (int i = 0; i < size; i++) {
+            other.offer(images[i], distances[i]);
+        }
+    }
+
+    /**
+     * drainTo method writes the kept images in rank order and empties the heap
+     *
+     * pre: order has at least from + size() elements
+     *
+     * post: order[from], order[from + 1], ... hold the kept images from the
+     * smallest to the largest distance, returns the number of images written
+     */
+    public int drainTo(int[] order, int from) {
+        int count = size;
+        // heap sort, the root is moved behind the shrinking heap
+        for (int last = count - 1; last > 0; last--) {
+            int image = images[last];
+            double distance = distances[last];
+            images[last] = images[0];
+            distances[last] = distances[0];
+            siftDown(0, image, distance, last);
+        }
+        System.arraycopy(images, 0, order, from, count);
+        size = 0;
+        return count;
+    }
+
+    /**
+     * distanceAt method returns the distance of a drained image
+     *
+     * pre: drainTo was called, rank is smaller than the number of images drained
+     *
+     * post: returns the distance of the image at the rank
+     */
+    public double distanceAt(int rank) {
+        return distances[rank];
+    }
+
+    private void siftUp(int index, int image, double distance) {
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!before(images[parent], distances[parent], image, distance)) {
+                break;
+            }
+            images[index] = images[parent];
+            distances[index] = distances[parent];
+            index = parent;
+        }
+        images[index] = image;
+        distances[index] = distance;
+    }
+
+    private void siftDown(int index, int image, double distance, int heapSize) {
+        int half = heapSize >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < heapSize && before(images[child], distances[child], images[right], distances[right])) {
+                child = right;
+            }
+            if (!before(image, distance, images[child], distances[child])) {
+                break;
+            }
+            images[index] = images[child];
+            distances[index] = distances[child];
+            index = child;
+        }
+        images[index] = image;
+        distances[index] = distance;
+    }
+
+    // true if the first image ranks before the second one
+    private static boolean before(int firstImage, double firstDistance, int secondImage, double secondDistance) {
+        int compare = Double.compare(firstDistance, secondDistance);
+        return compare < 0 || (compare == 0 && firstImage < secondImage);
+    }
+}
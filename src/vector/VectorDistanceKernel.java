@@ -0,0 +1,58 @@
+
+/**
+ * The VectorDistanceKernel calculates the distances with the SIMD registers of
+ * the CPU through the jdk.incubator.vector module, e.g. 4 doubles at a time
+ * with AVX2 and 8 with AVX-512.
+ *
+ * Column 0 of the rows is 0, so the rows are read from column 0 in full
+ * vectors, the remaining columns are added one at a time. The distances are
+ * added up in a different order than by the ScalarDistanceKernel, so they can
+ * differ in the last bits.
+ *
+ * Compile and run with --add-modules jdk.incubator.vector.
+ */
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+public class VectorDistanceKernel implements DistanceKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    public VectorDistanceKernel() {
+    }
+
+    public double distance(double[] values, int query, int row, int cols) {
+        DoubleVector sum = DoubleVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(cols);
+        int j = 0;
+        for (; j < bound; j += SPECIES.length()) {
+            DoubleVector q = DoubleVector.fromArray(SPECIES, values, query + j);
+            DoubleVector x = DoubleVector.fromArray(SPECIES, values, row + j);
+            sum = sum.add(q.sub(x).abs());
+        }
+        double distance = sum.reduceLanes(VectorOperators.ADD);
+        for (; j < cols; j++) {
+            distance += Math.abs(values[query + j] - values[row + j]);
+        }
+        return distance;
+    }
+
+    public double weightedDistance(double[] values, double[] weight, int query, int row, int cols) {
+        DoubleVector sum = DoubleVector.zero(SPECIES);
+        int bound = SPECIES.loopBound(cols);
+        int j = 0;
+        for (; j < bound; j += SPECIES.length()) {
+            DoubleVector q = DoubleVector.fromArray(SPECIES, values, query + j);
+            DoubleVector x = DoubleVector.fromArray(SPECIES, values, row + j);
+            DoubleVector w = DoubleVector.fromArray(SPECIES, weight, j);
+            sum = q.sub(x).abs().fma(w, sum);
+        }
+        double distance = sum.reduceLanes(VectorOperators.ADD);
+        for (; j < cols; j++) {
+            distance += weight[j] * Math.abs(values[query + j] - values[row + j]);
+        }
+        return distance;
+    }
+}